@@ -0,0 +1,129 @@
+package pin.core;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Binds threads to CPUs, so that a hot looper keeps its core and its cache
+ * to itself. Backed by sched_setaffinity(2) through the pinaffinity native,
+ * which is loaded with {@link Pin#loadLibrary(String)} on first use. Where
+ * the native is not available, on other systems or if it fails to load,
+ * every method is a no-op that reports failure, so callers can ask for
+ * affinity unconditionally; the first such request is logged as a warning.
+ *
+ * <p>
+ * Loopers and pools are usually pinned through
+ * {@link LooperConfig#setCpuAffinity(int...)} and
+ * {@link AsyncTask#setCpuAffinity(int...)}. Isolating a core for good also
+ * takes keeping the other threads off it, e.g. by pinning the pools to the
+ * remaining cores, or with the isolcpus kernel option.
+ */
+public final class Affinity {
+	private static final Logger LOGGER = LoggerFactory.getLogger(Affinity.class);
+
+	/** Why affinity is not available, set by {@link #load()}. */
+	private static String sUnavailable;
+
+	private static final boolean SUPPORTED = load();
+
+	/** True once a request that could not be applied has been logged. */
+	private static final AtomicBoolean WARNED = new AtomicBoolean();
+
+	/**
+	 * 私有构造函数
+	 */
+	private Affinity() {
+
+	}
+
+	private static boolean load() {
+		if (!Pin.IS_LINUX) {
+			sUnavailable = "not Linux";
+			return false;
+		}
+		try {
+			Pin.loadLibrary("pinaffinity");
+			return true;
+		} catch (LinkageError e) {
+			sUnavailable = e.toString();
+		} catch (RuntimeException e) {
+			sUnavailable = e.toString();
+		}
+		LOGGER.info("CPU affinity not available: " + sUnavailable);
+		return false;
+	}
+
+	/**
+	 * Returns true if threads can be bound to CPUs on this system.
+	 */
+	public static boolean isSupported() {
+		return SUPPORTED;
+	}
+
+	/**
+	 * Restricts the calling thread to the given CPUs.
+	 *
+	 * @return false if affinity is not supported or the system refused the
+	 *         set, in which case the thread runs unbound
+	 */
+	public static boolean setCurrentThread(int... cpus) {
+		BitSet set = new BitSet();
+		for (int cpu : cpus) {
+			if (cpu < 0) {
+				throw new IllegalArgumentException("cpu: " + cpu);
+			}
+			set.set(cpu);
+		}
+		return setCurrentThread(set);
+	}
+
+	public static boolean setCurrentThread(BitSet cpus) {
+		if (cpus.isEmpty()) {
+			throw new IllegalArgumentException("no cpu");
+		}
+		if (!SUPPORTED) {
+			if (WARNED.compareAndSet(false, true)) {
+				LOGGER.warn("cannot bind " + Thread.currentThread().getName() + " to cpus " + cpus
+						+ ", threads run unbound: CPU affinity not available: " + sUnavailable);
+			}
+			return false;
+		}
+		int error = setAffinity0(cpus.toLongArray());
+		if (error != 0) {
+			LOGGER.warn("cannot bind " + Thread.currentThread().getName() + " to cpus " + cpus + ": errno " + error);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the CPUs the calling thread may run on, or null if affinity is
+	 * not supported.
+	 */
+	public static BitSet getCurrentThread() {
+		if (!SUPPORTED) {
+			return null;
+		}
+		long[] mask = getAffinity0();
+		return (mask == null) ? null : BitSet.valueOf(mask);
+	}
+
+	/**
+	 * Returns the CPU the calling thread is running on, or -1 if unknown.
+	 */
+	public static int getCurrentCpu() {
+		return SUPPORTED ? getCpu0() : -1;
+	}
+
+	/**
+	 * @return 0, or the errno of sched_setaffinity
+	 */
+	private static native int setAffinity0(long[] mask);
+
+	private static native long[] getAffinity0();
+
+	private static native int getCpu0();
+}
@@ -24,12 +24,14 @@ import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -147,6 +149,21 @@ import org.slf4j.LoggerFactory;
  * this step as a parameter.</li>
  * </ol>
  * 
+ * <h2>Loopers</h2>
+ * <p>
+ * The UI thread of a task is the thread that executed it: its
+ * {@link #onProgressUpdate} and {@link #onPostExecute} steps run on the
+ * {@link Looper} of that thread, so every looper gets the results of its own
+ * tasks. Tasks executed from a thread without a looper publish on the looper
+ * of the thread that called {@link #init()}.
+ * </p>
+ *
+ * <p>
+ * For work that is only a computation, {@link #submit(Callable)} returns a
+ * {@link Reply} instead, whose callbacks run on the looper of the submitting
+ * thread and which composes with other replies.
+ * </p>
+ *
  * <h2>Cancelling a task</h2>
  * <p>
  * A task can be cancelled at any time by invoking {@link #cancel(boolean)}.
@@ -195,11 +212,22 @@ public abstract class AsyncTask<Params, Progress, Result> {
 	private static final ThreadFactory sThreadFactory = new ThreadFactory() {
 		private final AtomicInteger mCount = new AtomicInteger(1);
 
-		public Thread newThread(Runnable r) {
-			return new Thread(r, "AsyncTask #" + mCount.getAndIncrement());
+		public Thread newThread(final Runnable r) {
+			final int[] cpus = sCpus;
+			if (cpus == null) {
+				return new Thread(r, "AsyncTask #" + mCount.getAndIncrement());
+			}
+			return new Thread(new Runnable() {
+				public void run() {
+					Affinity.setCurrentThread(cpus);
+					r.run();
+				}
+			}, "AsyncTask #" + mCount.getAndIncrement());
 		}
 	};
 
+	private static volatile int[] sCpus;
+
 	private static final BlockingQueue<Runnable> sPoolWorkQueue = new LinkedBlockingQueue<Runnable>(10);
 
 	/**
@@ -214,10 +242,32 @@ public abstract class AsyncTask<Params, Progress, Result> {
 	 */
 	public static final Executor SERIAL_EXECUTOR = new SerialExecutor();
 
-	private static final int MESSAGE_POST_RESULT = 0x1;
-	private static final int MESSAGE_POST_PROGRESS = 0x2;
+	/**
+	 * An {@link ElasticExecutor} that sizes itself from how long tasks wait,
+	 * queues bursts instead of rejecting them early, and runs tasks on the
+	 * caller once its queue is full. Where only tasks of the same key must not
+	 * overlap, {@link ElasticExecutor#serial(Object)} gives a serial executor
+	 * per key in place of the process-wide {@link #SERIAL_EXECUTOR}. Its
+	 * threads are bound like those of {@link #THREAD_POOL_EXECUTOR}.
+	 */
+	public static final ElasticExecutor ELASTIC_EXECUTOR = new ElasticExecutor(sThreadFactory, 4096).setCallerRuns(true);
+
+	/**
+	 * An {@link Executor} for tasks that block on I/O: a virtual thread per
+	 * task where {@link VirtualThreads#isSupported() supported}, so the
+	 * number of calls in flight is not bounded by a pool, else
+	 * {@link #ELASTIC_EXECUTOR}. The choice is made once, when this class is
+	 * loaded. Virtual threads are not bound by
+	 * {@link #setCpuAffinity(int...)}.
+	 */
+	public static final Executor IO_EXECUTOR = VirtualThreads.isSupported() ? VirtualThreads.newExecutor("AsyncTask virtual #")
+			: ELASTIC_EXECUTOR;
 
-	private static final InternalHandler sHandler = new InternalHandler();
+	/**
+	 * Runs the results of the tasks executed off any looper, on the looper of
+	 * the thread that loads this class.
+	 */
+	private static final Handler sHandler = staticHandler();
 
 	private static volatile Executor sDefaultExecutor = SERIAL_EXECUTOR;
 	private final WorkerRunnable<Params, Result> mWorker;
@@ -225,6 +275,23 @@ public abstract class AsyncTask<Params, Progress, Result> {
 
 	private volatile Status mStatus = Status.PENDING;
 
+	/** Where the steps after doInBackground run, see {@link #handler()}. */
+	private volatile Handler mHandler;
+
+	/**
+	 * Minimum time between two progress updates, or -1 if every update is
+	 * delivered, see {@link #setProgressInterval(long, TimeUnit)}.
+	 */
+	private long mProgressInterval = -1;
+	/** The latest progress not delivered yet, in coalescing mode. */
+	private final AtomicReference<Progress[]> mPendingProgress = new AtomicReference<Progress[]>();
+	/**
+	 * The earliest time of the next update, on the {@link System#nanoTime()}
+	 * scale; seeded on execute and written on the UI thread.
+	 */
+	private volatile long mNextProgress;
+	private Runnable mProgressDelivery;
+
 	private final AtomicBoolean mTaskInvoked = new AtomicBoolean();
 
 	private static class SerialExecutor implements Executor {
@@ -253,6 +320,23 @@ public abstract class AsyncTask<Params, Progress, Result> {
 		}
 	}
 
+	/**
+	 * Binds the threads that {@link #THREAD_POOL_EXECUTOR} and
+	 * {@link #ELASTIC_EXECUTOR} start from now on to the given CPUs, e.g. to
+	 * keep background work off the cores of the hot loopers. Threads already
+	 * running are not moved. Does nothing where {@link Affinity} is not
+	 * supported.
+	 * 
+	 * @param cpus
+	 *            the CPU numbers, or null to stop binding new threads
+	 */
+	public static void setCpuAffinity(int... cpus) {
+		if (cpus != null && cpus.length == 0) {
+			throw new IllegalArgumentException("no cpu");
+		}
+		sCpus = (cpus != null) ? cpus.clone() : null;
+	}
+
 	/**
 	 * Indicates the current status of the task. Each status will be set only
 	 * once during the lifetime of a task.
@@ -272,6 +356,14 @@ public abstract class AsyncTask<Params, Progress, Result> {
 		FINISHED,
 	}
 
+	private static Handler staticHandler() {
+		Looper looper = Looper.myLooper();
+		if (looper == null) {
+			throw new RuntimeException("Can't create handler inside thread that has not called Looper.prepare()");
+		}
+		return looper.replyHandler();
+	}
+
 	/** @hide Used to force static handler to be created. */
 	public static void init() {
 		sHandler.getLooper();
@@ -282,6 +374,48 @@ public abstract class AsyncTask<Params, Progress, Result> {
 		sDefaultExecutor = exec;
 	}
 
+	/**
+	 * Runs the callable on the default executor and returns its pending
+	 * result, whose callbacks run on the looper of the calling thread. Slow
+	 * work can be chained this way without any thread waiting for it:
+	 *
+	 * <pre>
+	 * AsyncTask.submit(fetchProfile).thenOnLooper(storage, saveProfile).timeout(5, TimeUnit.SECONDS)
+	 * 		.whenDone(showProfile);
+	 * </pre>
+	 *
+	 * @throws RejectedExecutionException
+	 *             if the executor does not accept the task
+	 */
+	public static <V> Reply<V> submit(Callable<V> callable) {
+		return submit(sDefaultExecutor, callable);
+	}
+
+	/**
+	 * Same as {@link #submit(Callable)} on the given executor, e.g.
+	 * {@link #THREAD_POOL_EXECUTOR} for independent calls that may run in
+	 * parallel.
+	 */
+	public static <V> Reply<V> submit(Executor exec, final Callable<V> callable) {
+		if (callable == null) {
+			throw new NullPointerException("callable");
+		}
+		final Reply<V> reply = new Reply<V>();
+		exec.execute(new Runnable() {
+			public void run() {
+				V result;
+				try {
+					result = callable.call();
+				} catch (Exception e) {
+					reply.fail(e);
+					return;
+				}
+				reply.complete(result);
+			}
+		});
+		return reply;
+	}
+
 	/**
 	 * Creates a new asynchronous task. This constructor must be invoked on the
 	 * UI thread.
@@ -323,13 +457,60 @@ public abstract class AsyncTask<Params, Progress, Result> {
 		}
 	}
 
+	@SuppressWarnings("unchecked")
 	private Result postResult(Result result) {
-		@SuppressWarnings("unchecked")
-		Message message = sHandler.obtainMessage(MESSAGE_POST_RESULT, new AsyncTaskResult<Result>(this, result));
-		message.sendToTarget();
+		post(new AsyncTaskResult<Result>(false, this, result));
 		return result;
 	}
 
+	private void post(AsyncTaskResult<?> result) {
+		Handler handler = handler();
+		if (!handler.post(result)) {
+			LOGGER.warn(this + " dropped a result, " + handler.getLooper() + " is not accepting messages");
+		}
+	}
+
+	/**
+	 * Returns the handler of the looper that executed the task, or the static
+	 * one for a task executed off any looper, or cancelled before it was
+	 * executed.
+	 */
+	private Handler handler() {
+		Handler handler = mHandler;
+		return (handler != null) ? handler : sHandler;
+	}
+
+	/**
+	 * Coalesces the progress updates of this task: only the latest values
+	 * passed to {@link #publishProgress} are kept pending, replacing older
+	 * ones, and {@link #onProgressUpdate} gets them at most once per
+	 * interval. A task can then report progress as often as it likes without
+	 * flooding the UI thread. The latest values are always delivered, before
+	 * {@link #onPostExecute}. An interval of 0 only coalesces the updates
+	 * that pile up while the UI thread is busy.
+	 * 
+	 * @return This instance of AsyncTask.
+	 * 
+	 * @throws IllegalStateException
+	 *             If the task has already been executed.
+	 */
+	public final AsyncTask<Params, Progress, Result> setProgressInterval(long interval, TimeUnit unit) {
+		if (interval < 0) {
+			throw new IllegalArgumentException("interval must not be negative: " + interval);
+		}
+		if (mStatus != Status.PENDING) {
+			throw new IllegalStateException("Cannot coalesce progress: the task has already been executed");
+		}
+		mProgressInterval = unit.toNanos(interval);
+		mProgressDelivery = new Runnable() {
+			public void run() {
+				mNextProgress = System.nanoTime() + mProgressInterval;
+				deliverProgress();
+			}
+		};
+		return this;
+	}
+
 	/**
 	 * Returns the current status of this task.
 	 * 
@@ -597,10 +778,16 @@ public abstract class AsyncTask<Params, Progress, Result> {
 		}
 
 		mStatus = Status.RUNNING;
+		Looper looper = Looper.myLooper();
+		if (looper != null) {
+			mHandler = looper.replyHandler();
+		}
 
 		onPreExecute();
 
 		mWorker.mParams = params;
+		// nanoTime has no fixed origin, so the first update is due from now
+		mNextProgress = System.nanoTime();
 		exec.execute(mFuture);
 
 		return this;
@@ -616,9 +803,11 @@ public abstract class AsyncTask<Params, Progress, Result> {
 
 	/**
 	 * This method can be invoked from {@link #doInBackground} to publish
-	 * updates on the UI thread while the background computation is still
+	 * updates on the UI thread, that is the looper that executed the task,
+	 * while the background computation is still
 	 * running. Each call to this method will trigger the execution of
-	 * {@link #onProgressUpdate} on the UI thread.
+	 * {@link #onProgressUpdate} on the UI thread, unless the updates are
+	 * coalesced with {@link #setProgressInterval(long, TimeUnit)}.
 	 * 
 	 * {@link #onProgressUpdate} will note be called if the task has been
 	 * canceled.
@@ -630,12 +819,37 @@ public abstract class AsyncTask<Params, Progress, Result> {
 	 * @see #doInBackground
 	 */
 	protected final void publishProgress(Progress... values) {
-		if (!isCancelled()) {
-			sHandler.obtainMessage(MESSAGE_POST_PROGRESS, new AsyncTaskResult<Progress>(this, values)).sendToTarget();
+		if (isCancelled()) {
+			return;
+		}
+		if (mProgressInterval < 0) {
+			post(new AsyncTaskResult<Progress>(true, this, values));
+		} else if (mPendingProgress.getAndSet(values) == null) {
+			// nothing was pending, so no delivery is scheduled
+			long delay = mNextProgress - System.nanoTime();
+			Handler handler = handler();
+			if (!handler.postDelayed(mProgressDelivery, Math.max(delay, 0), TimeUnit.NANOSECONDS)) {
+				LOGGER.warn(this + " dropped a progress update, " + handler.getLooper() + " is not accepting messages");
+			}
+		}
+	}
+
+	/**
+	 * Delivers the pending progress, if any. UI thread only.
+	 */
+	private void deliverProgress() {
+		Progress[] values = mPendingProgress.getAndSet(null);
+		if (values != null && !isCancelled()) {
+			onProgressUpdate(values);
 		}
 	}
 
 	private void finish(Result result) {
+		if (mProgressDelivery != null) {
+			// the last update may still wait for its interval
+			handler().removeCallbacks(mProgressDelivery);
+			deliverProgress();
+		}
 		if (isCancelled()) {
 			onCancelled();
 		} else {
@@ -644,37 +858,34 @@ public abstract class AsyncTask<Params, Progress, Result> {
 		mStatus = Status.FINISHED;
 	}
 
-	private static class InternalHandler extends Handler {
-		@SuppressWarnings("unchecked")
-		@Override
-		public void handleMessage(Message msg) {
-			@SuppressWarnings("rawtypes")
-			AsyncTaskResult result = (AsyncTaskResult) msg.obj;
-			switch (msg.what) {
-			case MESSAGE_POST_RESULT:
-				// There is only one result
-				result.mTask.finish(result.mData[0]);
-				break;
-			case MESSAGE_POST_PROGRESS:
-				result.mTask.onProgressUpdate(result.mData);
-				break;
-			}
-		}
-	}
-
 	private static abstract class WorkerRunnable<Params, Result> implements Callable<Result> {
 		Params[] mParams;
 	}
 
-	private static class AsyncTaskResult<Data> {
+	/**
+	 * The result or a progress update of a task, posted to its looper.
+	 */
+	private static class AsyncTaskResult<Data> implements Runnable {
+		final boolean mProgress;
 		@SuppressWarnings("rawtypes")
 		final AsyncTask mTask;
 		final Data[] mData;
 
 		@SuppressWarnings("rawtypes")
-		AsyncTaskResult(AsyncTask task, Data... data) {
+		AsyncTaskResult(boolean progress, AsyncTask task, Data... data) {
+			mProgress = progress;
 			mTask = task;
 			mData = data;
 		}
+
+		@SuppressWarnings("unchecked")
+		public void run() {
+			if (mProgress) {
+				mTask.onProgressUpdate(mData);
+			} else {
+				// There is only one result
+				mTask.finish(mData[0]);
+			}
+		}
 	}
 }
@@ -0,0 +1,220 @@
+package pin.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dispatch instrumentation of every {@link Looper}, kept per {@link Handler}
+ * class and per message <em>what</em>:
+ * <ul>
+ * <li><em>queue wait</em> is the time from a message becoming due (when it
+ * was sent, or its scheduled time for delayed and periodic messages) to the
+ * start of its dispatch;</li>
+ * <li><em>handling</em> is the time spent in
+ * {@link Handler#dispatchMessage(Message)}.</li>
+ * </ul>
+ *
+ * <p>
+ * Recording is off by default. Once {@link #setEnabled(boolean) enabled}, it
+ * costs one extra clock read and a few atomic increments per message and does
+ * not allocate after the first message of a given handler class and what.
+ *
+ * <pre>
+ * DispatchStats.setEnabled(true);
+ * ...
+ * LOGGER.info(&quot;wait &quot; + DispatchStats.getQueueWait(GameHandler.class));
+ * LOGGER.info(&quot;move &quot; + DispatchStats.getHandling(GameHandler.class, MSG_MOVE).getPercentile(99));
+ * </pre>
+ */
+public final class DispatchStats {
+	private static volatile boolean sEnabled;
+
+	private static final ConcurrentHashMap<Class<?>, HandlerStats> sHandlers = new ConcurrentHashMap<Class<?>, HandlerStats>();
+
+	/**
+	 * 私有构造函数
+	 */
+	private DispatchStats() {
+
+	}
+
+	public static void setEnabled(boolean enabled) {
+		sEnabled = enabled;
+	}
+
+	public static boolean isEnabled() {
+		return sEnabled;
+	}
+
+	/**
+	 * Returns the handler classes that have recorded anything.
+	 */
+	public static List<Class<?>> getHandlerClasses() {
+		return new ArrayList<Class<?>>(sHandlers.keySet());
+	}
+
+	/**
+	 * Returns the message codes recorded for a handler class.
+	 */
+	public static int[] getWhats(Class<? extends Handler> handlerClass) {
+		HandlerStats stats = sHandlers.get(handlerClass);
+		if (stats == null) {
+			return new int[0];
+		}
+		WhatStats[] table = stats.mTable;
+		int[] whats = new int[table.length];
+		int n = 0;
+		for (WhatStats w : table) {
+			if (w != null) {
+				whats[n++] = w.mWhat;
+			}
+		}
+		return Arrays.copyOf(whats, n);
+	}
+
+	/**
+	 * Returns the queue wait of all messages of a handler class.
+	 */
+	public static HistogramSnapshot getQueueWait(Class<? extends Handler> handlerClass) {
+		return merge(handlerClass, true);
+	}
+
+	public static HistogramSnapshot getQueueWait(Class<? extends Handler> handlerClass, int what) {
+		WhatStats stats = find(handlerClass, what);
+		return (stats == null) ? HistogramSnapshot.empty() : stats.mQueueWait.snapshot();
+	}
+
+	/**
+	 * Returns the handling time of all messages of a handler class.
+	 */
+	public static HistogramSnapshot getHandling(Class<? extends Handler> handlerClass) {
+		return merge(handlerClass, false);
+	}
+
+	public static HistogramSnapshot getHandling(Class<? extends Handler> handlerClass, int what) {
+		WhatStats stats = find(handlerClass, what);
+		return (stats == null) ? HistogramSnapshot.empty() : stats.mHandling.snapshot();
+	}
+
+	/**
+	 * Clears every histogram.
+	 */
+	public static void reset() {
+		for (HandlerStats stats : sHandlers.values()) {
+			for (WhatStats w : stats.mTable) {
+				if (w != null) {
+					w.mQueueWait.reset();
+					w.mHandling.reset();
+				}
+			}
+		}
+	}
+
+	static void record(Handler h, int what, long queueWait, long handling) {
+		HandlerStats stats = h.mDispatchStats;
+		if (stats == null) {
+			stats = forClass(h.getClass());
+			h.mDispatchStats = stats;
+		}
+		WhatStats w = stats.get(what);
+		w.mQueueWait.record(queueWait);
+		w.mHandling.record(handling);
+	}
+
+	private static HandlerStats forClass(Class<?> handlerClass) {
+		HandlerStats stats = sHandlers.get(handlerClass);
+		if (stats == null) {
+			HandlerStats created = new HandlerStats();
+			stats = sHandlers.putIfAbsent(handlerClass, created);
+			if (stats == null) {
+				stats = created;
+			}
+		}
+		return stats;
+	}
+
+	private static WhatStats find(Class<?> handlerClass, int what) {
+		HandlerStats stats = sHandlers.get(handlerClass);
+		return (stats == null) ? null : stats.find(what);
+	}
+
+	private static HistogramSnapshot merge(Class<?> handlerClass, boolean queueWait) {
+		HistogramSnapshot merged = HistogramSnapshot.empty();
+		HandlerStats stats = sHandlers.get(handlerClass);
+		if (stats != null) {
+			for (WhatStats w : stats.mTable) {
+				if (w != null) {
+					merged = merged.merge((queueWait ? w.mQueueWait : w.mHandling).snapshot());
+				}
+			}
+		}
+		return merged;
+	}
+
+	/**
+	 * The histograms of one handler class, in an open addressing table keyed
+	 * by what. The table is copied on insert so that lookups from the
+	 * loopers never lock.
+	 */
+	static final class HandlerStats {
+		private volatile WhatStats[] mTable = new WhatStats[8];
+		private int mCount;
+
+		WhatStats get(int what) {
+			WhatStats stats = find(what);
+			return (stats != null) ? stats : add(what);
+		}
+
+		WhatStats find(int what) {
+			WhatStats[] table = mTable;
+			int mask = table.length - 1;
+			for (int i = what & mask;; i = (i + 1) & mask) {
+				WhatStats stats = table[i];
+				if (stats == null || stats.mWhat == what) {
+					return stats;
+				}
+			}
+		}
+
+		private synchronized WhatStats add(int what) {
+			WhatStats stats = find(what);
+			if (stats != null) {
+				return stats;
+			}
+			WhatStats[] table = mTable;
+			int length = ((mCount + 1) * 2 > table.length) ? table.length << 1 : table.length;
+			WhatStats[] copy = new WhatStats[length];
+			for (WhatStats w : table) {
+				if (w != null) {
+					insert(copy, w);
+				}
+			}
+			stats = new WhatStats(what);
+			insert(copy, stats);
+			mCount++;
+			mTable = copy;
+			return stats;
+		}
+
+		private static void insert(WhatStats[] table, WhatStats stats) {
+			int mask = table.length - 1;
+			int i = stats.mWhat & mask;
+			while (table[i] != null) {
+				i = (i + 1) & mask;
+			}
+			table[i] = stats;
+		}
+	}
+
+	static final class WhatStats {
+		final int mWhat;
+		final LatencyHistogram mQueueWait = new LatencyHistogram();
+		final LatencyHistogram mHandling = new LatencyHistogram();
+
+		WhatStats(int what) {
+			mWhat = what;
+		}
+	}
+}
@@ -0,0 +1,462 @@
+package pin.core;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A thread pool that sizes itself from the time tasks wait for a thread.
+ * It starts with one thread per core; when tasks wait longer than the
+ * {@link #setTargetWait(long, TimeUnit) target wait} on average, or stop
+ * being taken at all because every thread is blocked, it grows by half, up to
+ * {@link #setMaxThreads(int) the maximum}; when tasks hardly wait and most
+ * threads are idle, it shrinks again. So CPU-bound work keeps about one
+ * thread per core while blocking I/O gets the threads it needs, without
+ * spawning a thread per task in a burst. Idle threads end after
+ * {@value #KEEP_ALIVE_SECONDS} seconds.
+ *
+ * <p>
+ * Tasks that find the threads busy wait in a bounded queue. When it is full
+ * the task is rejected with a {@link RejectedExecutionException}, or with
+ * {@link #setCallerRuns(boolean) caller-runs}, run by the thread that
+ * submitted it, which slows the producer down to the pace of the pool.
+ *
+ * <p>
+ * Tasks submitted with a key, directly or through {@link #serial(Object)},
+ * run one at a time in the order they were submitted, while tasks of other
+ * keys run in parallel; the pending tasks of a key are run by the thread that
+ * took its first one.
+ */
+public class ElasticExecutor implements Executor {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ElasticExecutor.class);
+	private static final int KEEP_ALIVE_SECONDS = 10;
+	private static final int DEFAULT_QUEUE_CAPACITY = 4096;
+	private static final long ADJUST_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private final ThreadPoolExecutor mPool;
+	private final int mMinThreads;
+	private volatile int mMaxThreads;
+	/** The number of threads the pool may run now. */
+	private volatile int mSize;
+	private volatile long mTargetWait = TimeUnit.MILLISECONDS.toNanos(10);
+	private volatile boolean mCallerRuns;
+
+	/** Waits of the tasks started since the last adjustment. */
+	private final AtomicLong mWindowWait = new AtomicLong();
+	private final AtomicLong mWindowTasks = new AtomicLong();
+	private final AtomicLong mLastAdjust = new AtomicLong(System.nanoTime());
+
+	private final LatencyHistogram mQueueWait = new LatencyHistogram();
+	private final AtomicLong mRejected = new AtomicLong();
+
+	/** The keys with pending tasks, which also guards them. */
+	private final Map<Object, Serial> mKeys = new HashMap<Object, Serial>();
+	/** Tasks waiting behind another task of their key. */
+	private int mKeyed;
+
+	public ElasticExecutor(String name) {
+		this(name, DEFAULT_QUEUE_CAPACITY);
+	}
+
+	/**
+	 * @param name
+	 *            prefix of the thread names
+	 * @param queueCapacity
+	 *            the number of tasks that may wait for a thread
+	 */
+	public ElasticExecutor(final String name, int queueCapacity) {
+		this(new ThreadFactory() {
+			private final AtomicInteger mCount = new AtomicInteger(1);
+
+			public Thread newThread(Runnable r) {
+				return new Thread(r, name + " #" + mCount.getAndIncrement());
+			}
+		}, queueCapacity);
+	}
+
+	public ElasticExecutor(ThreadFactory factory, int queueCapacity) {
+		if (queueCapacity < 1) {
+			throw new IllegalArgumentException("queueCapacity must be positive: " + queueCapacity);
+		}
+		int cores = Runtime.getRuntime().availableProcessors();
+		mMinThreads = cores;
+		mMaxThreads = Math.max(cores * 16, 128);
+		mSize = cores;
+		mPool = new ThreadPoolExecutor(cores, cores, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(
+				queueCapacity), factory, new Saturated());
+		mPool.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Sets the most threads the pool grows to, by default 16 per core and at
+	 * least 128. With fewer than one per core, the pool keeps that size.
+	 */
+	public ElasticExecutor setMaxThreads(int maxThreads) {
+		if (maxThreads < 1) {
+			throw new IllegalArgumentException("maxThreads must be positive: " + maxThreads);
+		}
+		synchronized (this) {
+			mMaxThreads = maxThreads;
+			resize(Math.max(Math.min(mSize, maxThreads), minThreads()));
+		}
+		return this;
+	}
+
+	public int getMaxThreads() {
+		return mMaxThreads;
+	}
+
+	/**
+	 * Sets the mean wait for a thread above which the pool grows, 10ms by
+	 * default.
+	 */
+	public ElasticExecutor setTargetWait(long wait, TimeUnit unit) {
+		if (wait <= 0) {
+			throw new IllegalArgumentException("wait must be positive: " + wait);
+		}
+		mTargetWait = unit.toNanos(wait);
+		return this;
+	}
+
+	/**
+	 * Runs the tasks that find the queue full on the submitting thread
+	 * instead of rejecting them. Beware of loopers submitting: a looper that
+	 * runs a task is blocked for as long as the task takes.
+	 */
+	public ElasticExecutor setCallerRuns(boolean callerRuns) {
+		mCallerRuns = callerRuns;
+		return this;
+	}
+
+	/**
+	 * @throws RejectedExecutionException
+	 *             if the queue is full and the executor does not run tasks
+	 *             on the caller, or if it has been shut down
+	 */
+	@Override
+	public void execute(Runnable command) {
+		if (command == null) {
+			throw new NullPointerException("command");
+		}
+		submit(command, true);
+	}
+
+	/**
+	 * @param callerRuns
+	 *            false to reject the task rather than run it on the caller
+	 *            if the queue is full, whatever {@link #setCallerRuns}
+	 *            says
+	 */
+	private void submit(Runnable command, boolean callerRuns) {
+		long now = System.nanoTime();
+		mPool.execute(new Task(command, now, callerRuns));
+		adjust(now);
+	}
+
+	/**
+	 * Executes the task once the tasks submitted before it with an equal key
+	 * are done. If the key had no pending task and its task cannot be
+	 * started, the tasks that other threads queued behind it in the meantime
+	 * are rejected too: they are counted by {@link #getRejectedCount()} and
+	 * logged, as their submitters have returned already.
+	 */
+	public void execute(Object key, Runnable command) {
+		if (command == null) {
+			throw new NullPointerException("command");
+		}
+		Serial serial;
+		synchronized (mKeys) {
+			serial = mKeys.get(key);
+			if (serial != null) {
+				serial.mTasks.offer(command);
+				mKeyed++;
+				return;
+			}
+			serial = new Serial(key, command);
+			mKeys.put(key, serial);
+		}
+		try {
+			submit(serial, true);
+		} catch (RuntimeException e) {
+			serial.reject(0, e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns an executor that runs its tasks one at a time on this pool, in
+	 * the order they were submitted: an executor per player, per account or
+	 * per file, rather than one for the whole process.
+	 */
+	public Executor serial(final Object key) {
+		return new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				ElasticExecutor.this.execute(key, command);
+			}
+		};
+	}
+
+	/**
+	 * Returns the number of threads running a task.
+	 */
+	public int getActiveCount() {
+		return mPool.getActiveCount();
+	}
+
+	/**
+	 * Returns the number of threads alive, busy or idle.
+	 */
+	public int getPoolSize() {
+		return mPool.getPoolSize();
+	}
+
+	/**
+	 * Returns the number of threads the pool may run at the moment, as last
+	 * adjusted.
+	 */
+	public int getTargetSize() {
+		return mSize;
+	}
+
+	/**
+	 * Returns the number of tasks waiting, for a thread or for the tasks
+	 * before them with the same key.
+	 */
+	public int getQueuedCount() {
+		synchronized (mKeys) {
+			return mPool.getQueue().size() + mKeyed;
+		}
+	}
+
+	/**
+	 * Returns how many tasks found the queue full, rejected or run by their
+	 * caller.
+	 */
+	public long getRejectedCount() {
+		return mRejected.get();
+	}
+
+	public long getCompletedCount() {
+		return mPool.getCompletedTaskCount();
+	}
+
+	/**
+	 * Returns the distribution of the time tasks waited for a thread.
+	 */
+	public HistogramSnapshot getQueueWait() {
+		return mQueueWait.snapshot();
+	}
+
+	/**
+	 * Stops accepting tasks; those already submitted still run.
+	 */
+	public void shutdown() {
+		mPool.shutdown();
+	}
+
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return mPool.awaitTermination(timeout, unit);
+	}
+
+	private int minThreads() {
+		return Math.min(mMinThreads, mMaxThreads);
+	}
+
+	/**
+	 * Resizes the pool from the waits of the tasks started since the last
+	 * time, at most once per {@link #ADJUST_INTERVAL}. Called on submission
+	 * and on every task start, so a pool whose threads are all blocked still
+	 * notices its queue growing.
+	 */
+	private void adjust(long now) {
+		long last = mLastAdjust.get();
+		if (now - last < ADJUST_INTERVAL || !mLastAdjust.compareAndSet(last, now)) {
+			return;
+		}
+		long tasks = mWindowTasks.getAndSet(0);
+		long wait = mWindowWait.getAndSet(0);
+		boolean queued = !mPool.getQueue().isEmpty();
+		synchronized (this) {
+			int size = mSize;
+			long target = mTargetWait;
+			if (queued && (tasks == 0 || wait / tasks > target)) {
+				// waiting too long, or stalled on blocked threads
+				resize(Math.min(size + Math.max(1, size / 2), mMaxThreads));
+			} else if (!queued && (tasks == 0 || wait / tasks < target / 4) && mPool.getActiveCount() < size / 2) {
+				resize(Math.max(size - Math.max(1, size / 4), minThreads()));
+			}
+		}
+	}
+
+	/**
+	 * Sets the size of the pool, under the lock of the executor.
+	 */
+	private void resize(int size) {
+		if (size == mSize) {
+			return;
+		}
+		// the core size may never exceed the maximum size
+		if (size > mSize) {
+			mPool.setMaximumPoolSize(size);
+			mPool.setCorePoolSize(size);
+		} else {
+			mPool.setCorePoolSize(size);
+			mPool.setMaximumPoolSize(size);
+		}
+		mSize = size;
+	}
+
+	@Override
+	public String toString() {
+		return "ElasticExecutor{" + getActiveCount() + "/" + mSize + " threads, " + getQueuedCount() + " queued, "
+				+ mRejected.get() + " rejected}";
+	}
+
+	/**
+	 * A task with the time it was submitted.
+	 */
+	private final class Task implements Runnable {
+		private final Runnable mCommand;
+		private final long mSubmitted;
+		/** False if the task may not run on its caller when rejected. */
+		final boolean mCallerRuns;
+
+		Task(Runnable command, long submitted, boolean callerRuns) {
+			mCommand = command;
+			mSubmitted = submitted;
+			mCallerRuns = callerRuns;
+		}
+
+		@Override
+		public void run() {
+			long start = System.nanoTime();
+			long wait = start - mSubmitted;
+			mQueueWait.record(wait);
+			mWindowWait.addAndGet(wait);
+			mWindowTasks.incrementAndGet();
+			adjust(start);
+			mCommand.run();
+		}
+	}
+
+	/**
+	 * The pending tasks of a key, run by one thread until there are none
+	 * left.
+	 */
+	private final class Serial implements Runnable {
+		private final Object mKey;
+		private final ArrayDeque<Runnable> mTasks = new ArrayDeque<Runnable>();
+		private Runnable mFirst;
+
+		Serial(Object key, Runnable first) {
+			mKey = key;
+			mFirst = first;
+		}
+
+		@Override
+		public void run() {
+			Runnable task = mFirst;
+			mFirst = null;
+			while (task != null) {
+				boolean thrown = true;
+				try {
+					task.run();
+					thrown = false;
+				} catch (RuntimeException e) {
+					// the next tasks of the key still run
+					LOGGER.error("error on task of key " + mKey, e);
+					thrown = false;
+				} finally {
+					if (thrown) {
+						// an Error ends this thread; the key goes on elsewhere
+						resubmit();
+					}
+				}
+				task = poll();
+			}
+		}
+
+		/**
+		 * Takes the next task of the key, or forgets the key if there is none.
+		 */
+		private Runnable poll() {
+			synchronized (mKeys) {
+				Runnable task = mTasks.poll();
+				if (task == null) {
+					mKeys.remove(mKey);
+				} else {
+					mKeyed--;
+				}
+				return task;
+			}
+		}
+
+		/**
+		 * Hands the key to another thread after an Error. Never runs the
+		 * tasks on this thread, which is unwinding: if the pool is
+		 * saturated, they are rejected.
+		 */
+		private void resubmit() {
+			mFirst = poll();
+			if (mFirst == null) {
+				return;
+			}
+			try {
+				submit(this, false);
+			} catch (RuntimeException e) {
+				mFirst = null;
+				reject(1, e);
+			}
+		}
+
+		/**
+		 * Forgets the key after its tasks could not be handed to a thread,
+		 * rejecting the tasks queued behind the taken ones, whose submitters
+		 * cannot be told any more.
+		 *
+		 * @param taken
+		 *            tasks of the key already taken off the queue and lost
+		 *            with it, for the log
+		 */
+		void reject(int taken, RuntimeException cause) {
+			int queued;
+			synchronized (mKeys) {
+				mKeys.remove(mKey);
+				queued = mTasks.size();
+				mTasks.clear();
+				mKeyed -= queued;
+			}
+			mRejected.addAndGet(queued);
+			if (taken + queued > 0) {
+				LOGGER.error("rejected " + (taken + queued) + " tasks of key " + mKey, cause);
+			}
+		}
+	}
+
+	private final class Saturated implements RejectedExecutionHandler {
+		@Override
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor pool) {
+			if (pool.isShutdown()) {
+				throw new RejectedExecutionException(ElasticExecutor.this + " is shut down");
+			}
+			mRejected.incrementAndGet();
+			if (!mCallerRuns || !((Task) r).mCallerRuns) {
+				throw new RejectedExecutionException(ElasticExecutor.this + " is saturated");
+			}
+			r.run();
+		}
+	}
+}
@@ -1,8 +1,10 @@
 package pin.core;
 
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.Delayed;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,10 +13,35 @@ public abstract class Handler {
 
 	private static final String TAG = "Handler";
 	private static final Logger logger = LoggerFactory.getLogger(Handler.class);
-	private final BlockingQueue<Message> mQueue;
+	private final MessageQueue mQueue;
 	private final Looper mLooper;
 	private final Callback mCallback;
 
+	/**
+	 * The messages this handler has pending that can be removed: delayed and
+	 * periodic ones, and tracked due ones. Guarded by its own monitor.
+	 */
+	final MessageIndex mIndex = new MessageIndex();
+
+	/** Histograms of this handler's class, looked up on first dispatch. */
+	DispatchStats.HandlerStats mDispatchStats;
+
+	/**
+	 * Messages that missed their deadline, counted by the looper or by the
+	 * peers that steal from it.
+	 */
+	final AtomicLong mExpired = new AtomicLong();
+
+	/** True if idle peers of the looper may dispatch due messages. */
+	volatile boolean mStealable;
+
+	/** True if due messages are indexed while they wait; off by default. */
+	volatile boolean mTracking;
+
+	/** The journal of the long timers of this handler, and its name there. */
+	volatile MessageJournal mJournal;
+	String mJournalName;
+
 	/**
 	 * Callback interface you can use when instantiating a Handler to avoid
 	 * having to implement your own subclass of Handler.
@@ -28,6 +55,61 @@ public abstract class Handler {
 	 */
 	public abstract void handleMessage(Message msg);
 
+	/**
+	 * Called on the looper thread, in place of the dispatch, for a message
+	 * that missed its {@link Message#setDeadline deadline}. The message is
+	 * recycled afterwards; if it was sent with {@link #ask(Message)} and not
+	 * answered here, its reply fails with a
+	 * {@link java.util.concurrent.TimeoutException}. Does nothing by default.
+	 */
+	public void onExpired(Message msg) {
+	}
+
+	/**
+	 * Returns how many messages of this handler missed their deadline.
+	 */
+	public final long getExpiredCount() {
+		return mExpired.get();
+	}
+
+	/**
+	 * Lets the other loopers of the {@link LooperGroup} of this handler's
+	 * looper dispatch its due messages when they are idle, so that a burst
+	 * on one thread spreads over the whole group. Only for stateless
+	 * handlers that do not care about order: messages of a stealable handler
+	 * may run concurrently on several threads, and {@link Looper#myLooper()}
+	 * in handleMessage is the looper that took the message. Messages with a
+	 * priority, delayed and periodic messages, and loopers in fixed-tick mode
+	 * are never stolen. Handlers are not stealable by default, and their
+	 * messages are never affected by the stealable ones.
+	 */
+	public final void setStealable(boolean stealable) {
+		mStealable = stealable;
+	}
+
+	public final boolean isStealable() {
+		return mStealable;
+	}
+
+	/**
+	 * Indexes the messages of this handler that are due when sent while they
+	 * wait in the queue, so that {@link #removeMessages(int)},
+	 * {@link #removeCallbacks(Runnable)} and {@link #hasMessages(int)} see
+	 * them like the delayed ones. Off by default: every tracked send and
+	 * dispatch takes the lock of this handler, where untracked due messages
+	 * go through the lock-free lane without it. Turn it on for a handler
+	 * that removes or looks up messages it sends without a delay. Due
+	 * messages held in the slots of a
+	 * {@link LooperConfig#setRingBuffer(int) ring buffer} are never tracked.
+	 */
+	public final void setTracking(boolean tracking) {
+		mTracking = tracking;
+	}
+
+	public final boolean isTracking() {
+		return mTracking;
+	}
+
 	/**
 	 * Handle system messages here.
 	 */
@@ -174,11 +256,105 @@ public abstract class Handler {
 	 *         looper processing the message queue is exiting.
 	 */
 	public final boolean sendMessage(Message msg) {
-		return sendMessageAtTime(msg, now());
+		long now = now();
+		return enqueueMessage(msg, now, now);
+	}
+
+	/**
+	 * Sends a message with the given what, due now. Same as
+	 * {@link #sendMessage(int, int, int, Object)} with the other fields left
+	 * at 0 and null.
+	 */
+	public final boolean sendMessage(int what) {
+		return sendMessage(what, 0, 0, null);
+	}
+
+	public final boolean sendMessage(int what, Object obj) {
+		return sendMessage(what, 0, 0, obj);
+	}
+
+	public final boolean sendMessage(int what, int arg1, int arg2) {
+		return sendMessage(what, arg1, arg2, null);
+	}
+
+	/**
+	 * Sends a message with the given contents, due now, without the caller
+	 * obtaining one. On a looper with a ring buffer (see
+	 * {@link LooperConfig#setRingBuffer(int)}) the contents are written
+	 * straight into a preallocated slot and nothing is allocated.
+	 * 
+	 * @return Returns true if the message was successfully placed in to the
+	 *         message queue.
+	 */
+	public final boolean sendMessage(int what, int arg1, int arg2, Object obj) {
+		return enqueue(what, arg1, arg2, obj, null);
+	}
+
+	/**
+	 * Same as {@link #sendMessageCoalesced(Message, boolean)} keyed by what
+	 * only.
+	 */
+	public final boolean sendMessageCoalesced(Message msg) {
+		return sendMessageCoalesced(msg, false);
+	}
+
+	/**
+	 * Sends a message unless one with the same key, sent through this method,
+	 * is still pending for this handler; the pending one then takes the
+	 * arg1, arg2 and obj of msg in place, keeping its place in the queue, and
+	 * msg is returned to the message pool. Suits "state changed,
+	 * please resync" messages of which only the latest matters. The pending
+	 * message is found in constant time.
+	 * 
+	 * @param msg
+	 *            a message that is due now
+	 * @param matchObj
+	 *            true to key by what and obj, false to key by what only
+	 * @return Returns true if the message was placed in to the message queue
+	 *         or merged into a pending one.
+	 */
+	public final boolean sendMessageCoalesced(Message msg, boolean matchObj) {
+		if (msg.period != 0) {
+			throw new IllegalArgumentException("periodic messages cannot be coalesced");
+		}
+		if (mQueue == null) {
+			RuntimeException e = new RuntimeException(this + " sendMessageCoalesced() called with no mQueue");
+			logger.warn(TAG, e);
+			return false;
+		}
+		msg = detach(msg);
+		msg.target = this;
+		long now = now();
+		msg.time = now;
+		msg.when = now;
+		return mQueue.enqueueCoalesced(msg, matchObj);
+	}
+
+	/**
+	 * Enqueue a message at the front of the message queue, to be processed
+	 * before any other message that is due, except urgent ones sent earlier.
+	 * Same as sending it with {@link Message#PRIORITY_URGENT}.
+	 * 
+	 * @return Returns true if the message was successfully placed in to the
+	 *         message queue.
+	 */
+	public final boolean sendMessageAtFrontOfQueue(Message msg) {
+		msg = detach(msg);
+		msg.setPriority(Message.PRIORITY_URGENT);
+		return sendMessage(msg);
+	}
+
+	/**
+	 * Posts a runnable at the front of the message queue; see
+	 * {@link #sendMessageAtFrontOfQueue(Message)}.
+	 */
+	public final boolean postAtFrontOfQueue(Runnable r) {
+		return sendMessageAtFrontOfQueue(Message.obtain(this, r));
 	}
 
 	public final boolean sendMessageDelayed(Message msg, long delay, TimeUnit unit) {
-		return sendMessageAtTime(msg, triggerTime(delay, unit));
+		long now = now();
+		return enqueueMessage(msg, triggerTime(now, delay, unit), now);
 	}
 	
 	public final boolean sendMessageAtFixedRate(Message msg, long initialDelay, long period, TimeUnit unit) {
@@ -190,9 +366,10 @@ public abstract class Handler {
 			throw new IllegalArgumentException();
 		}
 		
+		msg = detach(msg);
 		msg.period = unit.toNanos(period);
-		sendMessageAtTime(msg, triggerTime(initialDelay, unit));
-		return true;
+		long now = now();
+		return enqueueMessage(msg, triggerTime(now, initialDelay, unit), now);
 	}
 	
 	public final boolean sendMessageAtFixedDelay(Message msg, long initialDelay, long delay, TimeUnit unit) {
@@ -204,36 +381,227 @@ public abstract class Handler {
 			throw new IllegalArgumentException();
 		}
 		
+		msg = detach(msg);
 		msg.period = unit.toNanos(-delay);
-		sendMessageAtTime(msg, triggerTime(initialDelay, unit));
-		return true;
+		long now = now();
+		return enqueueMessage(msg, triggerTime(now, initialDelay, unit), now);
+	}
+
+	/**
+	 * Causes the Runnable r to be added to the message queue. The runnable will
+	 * be run on the thread to which this handler is attached.
+	 * 
+	 * @param r
+	 *            The Runnable that will be executed.
+	 * @return Returns true if the Runnable was successfully placed in to the
+	 *         message queue.
+	 */
+	public final boolean post(Runnable r) {
+		return enqueue(0, 0, 0, null, r);
+	}
+
+	/**
+	 * Runs the callable on the looper of this handler and returns its result
+	 * as a {@link Reply}, whose callbacks run on the looper of the calling
+	 * thread. No thread waits for the result. A call that cannot be queued
+	 * fails the reply with a {@link RejectedExecutionException}.
+	 */
+	public final <V> Reply<V> call(final Callable<V> callable) {
+		final Reply<V> reply = new Reply<V>();
+		boolean sent = post(new Runnable() {
+			@Override
+			public void run() {
+				V result;
+				try {
+					result = callable.call();
+				} catch (Exception e) {
+					reply.fail(e);
+					return;
+				}
+				reply.complete(result);
+			}
+		});
+		if (!sent) {
+			reply.fail(new RejectedExecutionException(this + " is not accepting messages"));
+		}
+		return reply;
+	}
+
+	/**
+	 * Sends a message that this handler answers with
+	 * {@link Message#reply(Object)}, and returns the answer as a
+	 * {@link Reply}, whose callbacks run on the looper of the calling thread.
+	 * A message that cannot be queued fails the reply with a
+	 * {@link RejectedExecutionException}, one that is removed or dropped
+	 * before it is handled with a
+	 * {@link java.util.concurrent.CancellationException}, and one that misses
+	 * its deadline with a {@link java.util.concurrent.TimeoutException}. If
+	 * this handler throws, the reply fails with the exception; if it returns
+	 * without answering, nor keeping {@link Message#getReply()} to answer
+	 * later, with an {@link IllegalStateException}.
+	 */
+	public final <V> Reply<V> ask(Message msg) {
+		Reply<V> reply = new Reply<V>();
+		msg = detach(msg);
+		msg.reply = reply;
+		if (!sendMessage(msg)) {
+			reply.fail(new RejectedExecutionException(this + " is not accepting messages"));
+		}
+		return reply;
+	}
+
+	/**
+	 * Causes the Runnable r to be added to the message queue, to be run after
+	 * the specified amount of time elapses.
+	 * 
+	 * @param r
+	 *            The Runnable that will be executed.
+	 * @param delay
+	 *            The delay before the Runnable will be executed.
+	 * @param unit
+	 *            The unit of delay.
+	 * @return Returns true if the Runnable was successfully placed in to the
+	 *         message queue.
+	 */
+	public final boolean postDelayed(Runnable r, long delay, TimeUnit unit) {
+		return sendMessageDelayed(Message.obtain(this, r), delay, unit);
+	}
+
+	private boolean enqueue(int what, int arg1, int arg2, Object obj, Runnable callback) {
+		if (mQueue == null) {
+			RuntimeException e = new RuntimeException(this + " sendMessage() called with no mQueue");
+			logger.warn(TAG, e);
+			return false;
+		}
+		return mQueue.enqueue(this, what, arg1, arg2, obj, callback);
 	}
 
 	public boolean sendMessageAtTime(Message msg, long uptimeNanos) {
+		return enqueueMessage(msg, uptimeNanos, now());
+	}
+
+	/**
+	 * Returns msg, or a copy of it if it is a ring buffer slot, which must
+	 * not be queued again: its looper reuses it once it has been handled.
+	 * Lets a handler resend the message it is handling.
+	 */
+	private static Message detach(Message msg) {
+		return ((msg.flags & Message.FLAG_SLOT) != 0) ? Message.obtain(msg) : msg;
+	}
+
+	/**
+	 * Common tail of the send methods, which read the clock once and pass it
+	 * as now.
+	 */
+	private boolean enqueueMessage(Message msg, long uptimeNanos, long now) {
+		msg = detach(msg);
 		if (mQueue != null) {
 			msg.target = this;
 			msg.time = uptimeNanos;
-			msg.when = now();
+			msg.when = now;
 		} else {
 			RuntimeException e = new RuntimeException(this + " sendMessageAtTime() called with no mQueue");
 			logger.warn(TAG, e);
 			return false;
 		}
-		return mQueue.offer(msg);
+		MessageJournal journal = mJournal;
+		if (journal == null || (uptimeNanos - now <= 0 && msg.period == 0)) {
+			return mQueue.enqueueMessage(msg);
+		}
+		journal.schedule(this, msg, now);
+		long journalId = msg.journalId;
+		if (!mQueue.enqueueMessage(msg)) {
+			if (journalId != 0) {
+				journal.cancel(journalId);
+			}
+			return false;
+		}
+		return true;
 	}
 	
+	/**
+	 * Remove any pending posts of messages with code 'what' that are in the
+	 * message queue.
+	 * 
+	 * <p>
+	 * This covers messages scheduled for later, including periodic messages,
+	 * which stop repeating even when they are being dispatched at the time of
+	 * the call, and messages that were due when sent and still wait in the
+	 * queue, but only if this handler {@link #setTracking(boolean) tracks}
+	 * them and they do not sit in a ring buffer, or they were sent with
+	 * {@link #sendMessageCoalesced(Message)}, or the looper coalesces on
+	 * overflow. Removed messages are returned to the message pool.
+	 */
+	public final void removeMessages(int what) {
+		mQueue.removeMessages(this, what, null);
+	}
+
+	/**
+	 * Remove any pending posts of messages with code 'what' and whose obj is
+	 * 'object' that are in the message queue. If <var>object</var> is null,
+	 * all messages will be removed.
+	 * 
+	 * @see #removeMessages(int)
+	 */
+	public final void removeMessages(int what, Object object) {
+		mQueue.removeMessages(this, what, object);
+	}
+
+	/**
+	 * Remove any pending posts of Runnable r that are in the message queue.
+	 * 
+	 * @see #removeMessages(int)
+	 */
+	public final void removeCallbacks(Runnable r) {
+		mQueue.removeCallbacks(this, r, null);
+	}
+
+	/**
+	 * Remove any pending posts of Runnable <var>r</var> with Object
+	 * <var>token</var> that are in the message queue. If <var>token</var> is
+	 * null, all callbacks will be removed.
+	 * 
+	 * @see #removeMessages(int)
+	 */
+	public final void removeCallbacks(Runnable r, Object token) {
+		mQueue.removeCallbacks(this, r, token);
+	}
+
+	/**
+	 * Check if there are any pending posts of messages with code 'what' in
+	 * the message queue. The same messages as with
+	 * {@link #removeMessages(int)} are taken into account.
+	 */
+	public final boolean hasMessages(int what) {
+		return mQueue.hasMessages(this, what, null);
+	}
+
+	/**
+	 * Check if there are any pending posts of messages with code 'what' and
+	 * whose obj is 'object' in the message queue.
+	 * 
+	 * @see #hasMessages(int)
+	 */
+	public final boolean hasMessages(int what, Object object) {
+		return mQueue.hasMessages(this, what, object);
+	}
+
 	/**
 	 * Returns the trigger time of a delayed action.
 	 */
-	private long triggerTime(long delay, TimeUnit unit) {
-		return triggerTime(unit.toNanos((delay < 0) ? 0 : delay));
+	private long triggerTime(long now, long delay, TimeUnit unit) {
+		return triggerTime(now, unit.toNanos((delay < 0) ? 0 : delay));
 	}
 
 	/**
 	 * Returns the trigger time of a delayed action.
 	 */
 	long triggerTime(long delay) {
-		return now() + ((delay < (Long.MAX_VALUE >> 1)) ? delay : overflowFree(delay));
+		return triggerTime(now(), delay);
+	}
+
+	private long triggerTime(long now, long delay) {
+		return now + ((delay < (Long.MAX_VALUE >> 1)) ? delay : overflowFree(delay));
 	}
 
 	/**
@@ -243,7 +611,7 @@ public abstract class Handler {
 	 * some other task is added with a delay of Long.MAX_VALUE.
 	 */
 	private long overflowFree(long delay) {
-		Delayed head = (Delayed) mQueue.peek();
+		Delayed head = mQueue.peekDelayed();
 		if (head != null) {
 			long headDelay = head.getDelay(TimeUnit.NANOSECONDS);
 			if (headDelay < 0 && (delay - headDelay < 0)) {
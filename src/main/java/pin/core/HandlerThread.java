@@ -8,17 +8,33 @@ public class HandlerThread extends Thread {
 	private int mPriority;
 	private long mTid = -1;
 	private Looper mLooper;
+	private final LooperConfig mConfig;
 
 	public HandlerThread(String name) {
+		this(name, new LooperConfig());
+	}
+
+	/**
+	 * Constructs a HandlerThread whose looper is prepared with the given
+	 * options.
+	 * 
+	 * @param name
+	 *            The name of the thread.
+	 * @param config
+	 *            The options of the looper.
+	 */
+	public HandlerThread(String name, LooperConfig config) {
 		super(name);
 		mPriority = currentThread().getPriority();
 		setPriority(mPriority);
+		mConfig = config;
 	}
 
 	/**
 	 * Constructs a HandlerThread.
 	 * 
 	 * @param name
+	 *            The name of the thread.
 	 * @param priority
 	 *            The priority to run the thread at.
 	 */
@@ -26,6 +42,7 @@ public class HandlerThread extends Thread {
 		super(name);
 		mPriority = priority;
 		setPriority(mPriority);
+		mConfig = new LooperConfig();
 	}
 
 	/**
@@ -38,7 +55,7 @@ public class HandlerThread extends Thread {
 	@Override
 	public void run() {
 		mTid = currentThread().getId();
-		Looper.prepare();
+		Looper.prepare(mConfig);
 		synchronized (this) {
 			mLooper = Looper.myLooper();
 			notifyAll();
@@ -0,0 +1,95 @@
+package pin.core;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Immutable copy of a {@link LatencyHistogram}. All values are nanoseconds.
+ */
+public final class HistogramSnapshot {
+	private final long[] mCounts;
+	private final long mSum;
+	private final long mCount;
+
+	HistogramSnapshot(long[] counts, long sum) {
+		mCounts = counts;
+		mSum = sum;
+		long count = 0;
+		for (long c : counts) {
+			count += c;
+		}
+		mCount = count;
+	}
+
+	/**
+	 * Returns an empty snapshot.
+	 */
+	static HistogramSnapshot empty() {
+		return new HistogramSnapshot(new long[LatencyHistogram.BUCKETS], 0);
+	}
+
+	/**
+	 * Returns a snapshot holding the values of both snapshots.
+	 */
+	public HistogramSnapshot merge(HistogramSnapshot other) {
+		long[] counts = new long[mCounts.length];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = mCounts[i] + other.mCounts[i];
+		}
+		return new HistogramSnapshot(counts, mSum + other.mSum);
+	}
+
+	public long getCount() {
+		return mCount;
+	}
+
+	public long getMean() {
+		return (mCount == 0) ? 0 : mSum / mCount;
+	}
+
+	/**
+	 * Returns the value below which the given share of the recorded values
+	 * fall, rounded up to the bucket bound.
+	 *
+	 * @param percentile
+	 *            between 0 and 100
+	 */
+	public long getPercentile(double percentile) {
+		if (percentile < 0 || percentile > 100) {
+			throw new IllegalArgumentException("percentile: " + percentile);
+		}
+		if (mCount == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(mCount * percentile / 100);
+		if (rank < 1) {
+			rank = 1;
+		}
+		long seen = 0;
+		for (int i = 0; i < mCounts.length; i++) {
+			seen += mCounts[i];
+			if (seen >= rank) {
+				return LatencyHistogram.upperBound(i);
+			}
+		}
+		return LatencyHistogram.upperBound(mCounts.length - 1);
+	}
+
+	public long getMax() {
+		for (int i = mCounts.length - 1; i >= 0; i--) {
+			if (mCounts[i] != 0) {
+				return LatencyHistogram.upperBound(i);
+			}
+		}
+		return 0;
+	}
+
+	@Override
+	public String toString() {
+		return "{ count=" + mCount + " mean=" + micros(getMean()) + "us p50=" + micros(getPercentile(50)) + "us p99="
+				+ micros(getPercentile(99)) + "us p999=" + micros(getPercentile(99.9)) + "us max=" + micros(getMax()) + "us }";
+	}
+
+	private static long micros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+}
@@ -0,0 +1,39 @@
+package pin.core;
+
+/**
+ * The queue of due messages of a {@link MessageQueue}: the default unbounded
+ * {@link MessageLane} or the preallocated {@link RingLane}. Producers may
+ * offer from any thread; everything else is called by the looper thread only.
+ */
+interface Lane {
+	/**
+	 * Appends a message that is due.
+	 *
+	 * @return false if the lane is closed and the message was not queued
+	 */
+	boolean offer(Message msg);
+
+	/**
+	 * Appends a message with the given contents, due now, without the caller
+	 * having to obtain one.
+	 *
+	 * @return false if the lane is closed and the message was not queued
+	 */
+	boolean offer(Handler target, int what, int arg1, int arg2, Object obj, Runnable callback);
+
+	Message peek();
+
+	Message poll();
+
+	boolean isEmpty();
+
+	/**
+	 * Hands back a polled message once it has been dispatched.
+	 */
+	void release(Message msg);
+
+	/**
+	 * Refuses further offers and wakes up producers waiting for room.
+	 */
+	void close();
+}
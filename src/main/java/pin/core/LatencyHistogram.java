@@ -0,0 +1,72 @@
+package pin.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of nanosecond durations with log-linear buckets: every
+ * power of two is split into {@value #SUB_BUCKETS} buckets, which keeps the
+ * relative error of a percentile below 12.5% from 8ns up to about three days.
+ * Recording is two atomic increments and never allocates, so it can stay on
+ * the dispatch path of a looper.
+ */
+public final class LatencyHistogram {
+	private static final int SUB_BITS = 3;
+	static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int MAX_EXPONENT = 48;
+	static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong mSum = new AtomicLong();
+
+	/**
+	 * Records one duration. Negative values count as 0.
+	 */
+	public void record(long nanos) {
+		mCounts.incrementAndGet(bucketOf(nanos));
+		if (nanos > 0) {
+			mSum.addAndGet(nanos);
+		}
+	}
+
+	/**
+	 * Returns a consistent enough copy of the current counts. Durations
+	 * recorded while the copy is made may or may not be included.
+	 */
+	public HistogramSnapshot snapshot() {
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = mCounts.get(i);
+		}
+		return new HistogramSnapshot(counts, mSum.get());
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			mCounts.set(i, 0);
+		}
+		mSum.set(0);
+	}
+
+	static int bucketOf(long nanos) {
+		if (nanos < SUB_BUCKETS) {
+			return (nanos < 0) ? 0 : (int) nanos;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		int index = (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+		return (index < BUCKETS) ? index : BUCKETS - 1;
+	}
+
+	/**
+	 * Returns the largest value that falls into the given bucket.
+	 */
+	static long upperBound(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+		return lower + (1L << shift) - 1;
+	}
+}
@@ -7,6 +7,7 @@ import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -50,10 +51,48 @@ public final class Looper {
 
 	// sThreadLocal.get() will return null unless you've called prepare().
 	static final ThreadLocal<Looper> sThreadLocal = new ThreadLocal<Looper>();
-	final BlockingQueue<Message> mQueue;
+	final MessageQueue mQueue;
 	final Thread mThread;
+	final int mBatchSize;
 	volatile boolean mRun;
 
+	/**
+	 * The current dispatch, published for the {@link LooperWatchdog} only
+	 * while one is watching. mDispatchStart is written last and is 0 while
+	 * idle.
+	 */
+	volatile LooperWatchdog mWatchdog;
+	volatile Handler mDispatchTarget;
+	volatile int mDispatchWhat;
+	volatile long mDispatchStart;
+
+	/**
+	 * Runs the callbacks of the replies this looper waits for, and the
+	 * results of the tasks it executed.
+	 */
+	private volatile Handler mReplyHandler;
+
+	/** Fixed-tick mode, see {@link LooperConfig#setTickRate}. */
+	final long mTickPeriod;
+	private final TickListener mTickListener;
+	private final LatencyHistogram mTickDurations;
+	private volatile long mTicks;
+	private volatile long mTickOverruns;
+	private volatile long mSkippedTicks;
+
+	/**
+	 * Called by a looper in fixed-tick mode at the end of every tick, on the
+	 * looper thread, once the messages of the tick have been dispatched.
+	 */
+	public interface TickListener {
+		/**
+		 * @param tick
+		 *            number of the tick since the loop started; skipped ticks
+		 *            leave gaps
+		 */
+		public void onTick(long tick);
+	}
+
 	/**
 	 * Initialize the current thread as a looper. This gives you a chance to
 	 * create handlers that then reference this looper, before actually starting
@@ -61,10 +100,25 @@ public final class Looper {
 	 * end it by calling {@link #quit()}.
 	 */
 	public static void prepare() {
+		prepare(new LooperConfig());
+	}
+
+	/**
+	 * Same as {@link #prepare()}, but lets the caller choose how the looper
+	 * queues its messages.
+	 * 
+	 * @param config
+	 *            the options of the new looper
+	 */
+	public static void prepare(LooperConfig config) {
 		if (sThreadLocal.get() != null) {
 			throw new RuntimeException("Only one Looper may be created per thread");
 		}
-		sThreadLocal.set(new Looper());
+		int[] cpus = config.getCpuAffinity();
+		if (cpus != null) {
+			Affinity.setCurrentThread(cpus);
+		}
+		sThreadLocal.set(new Looper(config));
 	}
 
 	/**
@@ -76,37 +130,335 @@ public final class Looper {
 		if (me == null) {
 			throw new RuntimeException("No Looper; Looper.prepare() wasn't called on this thread.");
 		}
-		BlockingQueue<Message> queue = me.mQueue;
+		MessageQueue queue = me.mQueue;
+		if (me.mTickPeriod > 0) {
+			loopTicked(me, queue);
+			return;
+		}
+		if (me.mBatchSize > 1) {
+			loopBatched(me, queue, new Message[me.mBatchSize]);
+			return;
+		}
 
 		while (true) {
 			Message msg;
 			try {
-				msg = queue.take();
+				msg = queue.next();
 
-				if (msg.target == null) {
-					// No target is a magic identifier for the quit message.
+				if (msg == null) {
+					// No message indicates that the message queue is quitting.
 					return;
 				}
 
-				long threadStart = System.currentTimeMillis();
+				dispatch(me, queue, msg, 0);
+			} catch (Exception e) {
+				LOGGER.error("error on loop", e);
+			}
 
-				msg.target.dispatchMessage(msg);
+		}
+	}
 
-				long threadTime = System.currentTimeMillis() - threadStart;
-				LOGGER.debug("dispatchMessage cost time: " + threadTime);
-				
-				if(!msg.isPeriodic()) {
-					msg.recycle();
-				} else {
-					setNextRunTime(msg);
-					queue.offer(msg);
+	/**
+	 * Batched variant of {@link #loop()}: every message that is due is
+	 * drained into the batch at once, taking the timer lock a single time,
+	 * and then dispatched.
+	 */
+	private static void loopBatched(Looper me, MessageQueue queue, Message[] batch) {
+		while (true) {
+			int count;
+			try {
+				count = queue.nextBatch(batch);
+			} catch (InterruptedException e) {
+				LOGGER.error("error on loop", e);
+				continue;
+			}
+
+			if (count < 0) {
+				// The message queue is quitting.
+				return;
+			}
+
+			// with stats on, the end of one dispatch is the start of the next,
+			// so the batch costs one clock read per message plus one
+			long start = DispatchStats.isEnabled() ? System.nanoTime() : 0;
+			for (int i = 0; i < count; i++) {
+				Message msg = batch[i];
+				batch[i] = null;
+				if (queue.isQuitting()) {
+					queue.discard(msg);
+					for (int j = i + 1; j < count; j++) {
+						queue.discard(batch[j]);
+						batch[j] = null;
+					}
+					return;
 				}
-				
-			} catch (Exception e) {
+				if (!queue.take(msg)) {
+					// removed by an earlier message of the batch
+					continue;
+				}
+				try {
+					start = dispatch(me, queue, msg, start);
+				} catch (Exception e) {
+					LOGGER.error("error on loop", e);
+					start = 0;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Fixed-tick variant of {@link #loop()}: sleeps until the next tick of
+	 * the grid, dispatches what the tick covers, then calls the listener.
+	 */
+	private static void loopTicked(Looper me, MessageQueue queue) {
+		long period = me.mTickPeriod;
+		long next = System.nanoTime();
+		long tick = 0;
+		while (true) {
+			try {
+				queue.awaitTick(next);
+			} catch (InterruptedException e) {
 				LOGGER.error("error on loop", e);
+				continue;
+			}
+			if (queue.isQuitting()) {
+				return;
+			}
+
+			long start = System.nanoTime();
+			Message msg;
+			while ((msg = queue.nextInTick(start)) != null) {
+				try {
+					dispatch(me, queue, msg, 0);
+				} catch (Exception e) {
+					LOGGER.error("error on loop", e);
+				}
+			}
+			if (queue.isQuitting()) {
+				return;
+			}
+			TickListener listener = me.mTickListener;
+			if (listener != null) {
+				try {
+					listener.onTick(tick);
+				} catch (Exception e) {
+					LOGGER.error("error on tick", e);
+				}
+			}
+			long end = System.nanoTime();
+			me.mTickDurations.record(end - start);
+			me.mTicks++;
+
+			// stay on the grid: a late tick runs right away, and the ticks
+			// whose whole period has passed are skipped
+			next += period;
+			tick++;
+			long late = end - next;
+			if (late > 0) {
+				me.mTickOverruns++;
+				long skipped = late / period;
+				if (skipped > 0) {
+					next += skipped * period;
+					tick += skipped;
+					me.mSkippedTicks += skipped;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Dispatches a message, then recycles it or schedules its next run.
+	 *
+	 * @param start
+	 *            the time the dispatch starts if already known, or 0
+	 * @return the time the dispatch ended if the clock was read, or 0
+	 */
+	private static long dispatch(Looper me, MessageQueue queue, Message msg, long start) {
+		if (msg.deadline != 0) {
+			if (start == 0) {
+				start = System.nanoTime();
+			}
+			if (start - due(msg) > msg.deadline) {
+				expire(queue, msg);
+				return start;
+			}
+		}
+		long end;
+		if ((msg.flags & Message.FLAG_SLOT) != 0) {
+			// a ring slot must be released even if the handler throws, or
+			// the ring would stall
+			try {
+				end = deliver(me, msg, start);
+				failUnanswered(msg, null);
+			} catch (RuntimeException e) {
+				failUnanswered(msg, e);
+				throw e;
+			} catch (Error e) {
+				failUnanswered(msg, e);
+				throw e;
+			} finally {
+				if (msg.journalId != 0) {
+					journalDone(msg);
+				}
+				queue.release(msg);
+			}
+			return end;
+		}
+
+		boolean delivered = false;
+		try {
+			end = deliver(me, msg, start);
+			delivered = true;
+		} catch (RuntimeException e) {
+			failUnanswered(msg, e);
+			throw e;
+		} catch (Error e) {
+			failUnanswered(msg, e);
+			throw e;
+		} finally {
+			if (!delivered && msg.isPeriodic()) {
+				// the handler threw: stop repeating rather than leave the
+				// message indexed but never scheduled again
+				queue.abandon(msg);
+			}
+		}
+		failUnanswered(msg, null);
+
+		if (!msg.isPeriodic()) {
+			if (msg.journalId != 0) {
+				journalDone(msg);
+			}
+			msg.recycle();
+		} else {
+			setNextRunTime(msg);
+			if (msg.journalId != 0) {
+				journalDone(msg);
+			}
+			queue.requeue(msg);
+		}
+		return end;
+	}
+
+	/**
+	 * Hands a message that missed its deadline to its handler instead of
+	 * dispatching it, then recycles it or schedules its next run.
+	 */
+	private static void expire(MessageQueue queue, Message msg) {
+		Handler target = msg.target;
+		target.mExpired.incrementAndGet();
+		try {
+			target.onExpired(msg);
+		} finally {
+			Reply<?> reply = msg.reply;
+			if (reply != null && !reply.isDone()) {
+				// onExpired did not answer
+				reply.fail(new TimeoutException("message missed its deadline"));
+			}
+			if ((msg.flags & Message.FLAG_SLOT) != 0) {
+				if (msg.journalId != 0) {
+					journalDone(msg);
+				}
+				queue.release(msg);
+			} else if (!msg.isPeriodic()) {
+				if (msg.journalId != 0) {
+					journalDone(msg);
+				}
+				msg.recycle();
+			} else {
+				setNextRunTime(msg);
+				if (msg.journalId != 0) {
+					journalDone(msg);
+				}
+				queue.requeue(msg);
+			}
+		}
+	}
+
+	/**
+	 * Fails the reply of an asked message that is still pending after its
+	 * dispatch, with what the handler threw, or because it returned without
+	 * answering. A reply the handler kept to answer later is left alone.
+	 */
+	private static void failUnanswered(Message msg, Throwable thrown) {
+		Reply<?> reply = msg.reply;
+		if (reply == null || msg.replyKept || reply.isDone()) {
+			return;
+		}
+		if (thrown == null) {
+			thrown = new IllegalStateException(msg.target + " did not reply to what=" + msg.what);
+		}
+		reply.fail(thrown);
+	}
+
+	/**
+	 * Tells the journal of the target that a journaled message has run: a
+	 * one-shot message is done, a periodic one has its next run recorded.
+	 */
+	private static void journalDone(Message msg) {
+		MessageJournal journal = msg.target.mJournal;
+		if (journal == null) {
+			return;
+		}
+		if (msg.isPeriodic()) {
+			journal.reschedule(msg);
+		} else {
+			journal.cancel(msg.journalId);
+		}
+	}
+
+	/**
+	 * Returns when a message became due: when it was sent, or its scheduled
+	 * time if later.
+	 */
+	private static long due(Message msg) {
+		return (msg.time - msg.when > 0) ? msg.time : msg.when;
+	}
+
+	private static long deliver(Looper me, Message msg, long start) {
+		Handler target = msg.target;
+		if (me.mWatchdog != null) {
+			return deliverWatched(me, msg, start);
+		}
+		if (DispatchStats.isEnabled()) {
+			// queue wait counts from the moment the message became due
+			long due = due(msg);
+			int what = msg.what;
+			if (start == 0) {
+				start = System.nanoTime();
 			}
+			target.dispatchMessage(msg);
+			long end = System.nanoTime();
+			DispatchStats.record(target, what, start - due, end - start);
+			return end;
+		}
+		target.dispatchMessage(msg);
+		return 0;
+	}
 
+	/**
+	 * Same as {@link #deliver(Looper, Message, long)}, publishing the
+	 * dispatch to the watchdog.
+	 */
+	private static long deliverWatched(Looper me, Message msg, long start) {
+		Handler target = msg.target;
+		long due = due(msg);
+		int what = msg.what;
+		if (start == 0) {
+			start = System.nanoTime();
 		}
+		me.mDispatchTarget = target;
+		me.mDispatchWhat = what;
+		me.mDispatchStart = start;
+		try {
+			target.dispatchMessage(msg);
+		} finally {
+			me.mDispatchStart = 0;
+		}
+		long end = System.nanoTime();
+		if (DispatchStats.isEnabled()) {
+			DispatchStats.record(target, what, start - due, end - start);
+		}
+		return end;
 	}
 	
 	/**
@@ -129,12 +481,33 @@ public final class Looper {
 		return sThreadLocal.get();
 	}
 
-	private Looper() {
-		mQueue = new DelayedWorkQueue();
+	private Looper(LooperConfig config) {
+		mQueue = config.newMessageQueue();
+		mBatchSize = config.getBatchSize();
+		mTickPeriod = config.getTickPeriod();
+		mTickListener = config.getTickListener();
+		mTickDurations = (mTickPeriod > 0) ? new LatencyHistogram() : null;
 		mRun = true;
 		mThread = Thread.currentThread();
 	}
 
+	/**
+	 * Returns the handler that runs reply callbacks on this looper.
+	 */
+	Handler replyHandler() {
+		Handler handler = mReplyHandler;
+		if (handler == null) {
+			synchronized (this) {
+				handler = mReplyHandler;
+				if (handler == null) {
+					handler = new Reply.ReplyHandler(this);
+					mReplyHandler = handler;
+				}
+			}
+		}
+		return handler;
+	}
+
 	/**
 	 * Return the Thread associated with this Looper.
 	 */
@@ -142,35 +515,115 @@ public final class Looper {
 		return mThread;
 	}
 
+	/**
+	 * Returns the number of messages in the queue: sent and not yet
+	 * dispatched nor removed, periodic messages counting once. Safe to call
+	 * from any thread, e.g. by a metrics reporter.
+	 */
+	public int getQueueDepth() {
+		return mQueue.depth();
+	}
+
+	/**
+	 * Returns the highest queue depth seen by a sender. Approximate under
+	 * concurrent sends.
+	 */
+	public int getPeakQueueDepth() {
+		return mQueue.peakDepth();
+	}
+
+	/**
+	 * Returns the capacity of the queue, or 0 if it is unbounded.
+	 */
+	public int getQueueCapacity() {
+		return mQueue.capacity();
+	}
+
+	/**
+	 * Returns how many messages were sent while the queue was full, whatever
+	 * the {@link OverflowPolicy} did with them.
+	 */
+	public long getOverflowCount() {
+		return mQueue.overflowCount();
+	}
+
+	/**
+	 * Returns how many times the looper thread went to sleep waiting for
+	 * work, which is about how many context switches it paid for waiting.
+	 */
+	public long getParkCount() {
+		return mQueue.parkCount();
+	}
+
+	/**
+	 * Returns how many messages of {@link Handler#setStealable(boolean)
+	 * stealable} handlers this looper took from its peers in a
+	 * {@link LooperGroup}.
+	 */
+	public long getStealCount() {
+		return mQueue.stealCount();
+	}
+
+	/**
+	 * Returns the number of ticks run by a looper in fixed-tick mode.
+	 */
+	public long getTickCount() {
+		return mTicks;
+	}
+
+	/**
+	 * Returns how many ticks ended after the start of the next one.
+	 */
+	public long getTickOverruns() {
+		return mTickOverruns;
+	}
+
+	/**
+	 * Returns how many ticks were skipped because an earlier tick ran past
+	 * their whole period.
+	 */
+	public long getSkippedTicks() {
+		return mSkippedTicks;
+	}
+
+	/**
+	 * Returns the durations of the ticks, from their start to the end of the
+	 * tick listener, or an empty snapshot if the looper is not in fixed-tick
+	 * mode.
+	 */
+	public HistogramSnapshot getTickDurations() {
+		return (mTickDurations != null) ? mTickDurations.snapshot() : HistogramSnapshot.empty();
+	}
+
 	public void dump(String prefix) {
 		LOGGER.info(prefix, this.toString());
 		LOGGER.info(prefix, "mRun=" + mRun);
 		LOGGER.info(prefix, "mThread=" + mThread);
 		LOGGER.info(prefix, "mQueue=" + ((mQueue != null) ? mQueue : "(null"));
 		if (mQueue != null) {
-			synchronized (mQueue) {
-				Iterator<Message> it = mQueue.iterator();
-				while (it.hasNext()) {
-					LOGGER.info(prefix, it.next().toString());
-				}
-				LOGGER.info("(Total messages: " + mQueue.size() + ")");
+			// Only the delayed messages can be listed; due messages sit in the
+			// lock-free lane, which only the looper thread may walk.
+			Message[] delayed = mQueue.delayedMessages();
+			for (Message msg : delayed) {
+				LOGGER.info(prefix, msg.toString());
 			}
+			LOGGER.info("(Total delayed messages: " + delayed.length + ")");
 		}
 	}
 
+	/**
+	 * Quits the looper. The loop returns before dispatching any further
+	 * message and later sends return false.
+	 */
 	public void quit() {
-		Message msg = Message.obtain();
-		// NOTE: By enqueueing directly into the message queue, the
-		// message is left with a null target. This is how we know it is
-		// a quit message.
-		mQueue.offer(msg);
+		mQueue.quit();
 	}
 
 	public String toString() {
 		return "Looper{" + Integer.toHexString(System.identityHashCode(this)) + "}";
 	}
 
-	static class DelayedWorkQueue extends AbstractQueue<Message> implements BlockingQueue<Message> {
+	static class DelayedWorkQueue extends AbstractQueue<Message> implements BlockingQueue<Message>, TimerQueue {
 
 		/*
 		 * A DelayedWorkQueue is based on a heap-based data structure like those
@@ -219,6 +672,28 @@ public final class Looper {
 		 */
 		private final Condition available = lock.newCondition();
 
+		/**
+		 * Trigger time of the head of the heap, mirrored so that the looper
+		 * can tell whether a delayed message is due without taking the lock.
+		 * Only meaningful while {@link #hasHead} is true.
+		 */
+		private volatile long headTime;
+		private volatile boolean hasHead;
+
+		/**
+		 * Refresh the lock-free mirror of the head. Call only when holding
+		 * lock, after any change to queue[0].
+		 */
+		private void updateHead() {
+			Message first = queue[0];
+			if (first != null) {
+				headTime = first.time;
+				hasHead = true;
+			} else {
+				hasHead = false;
+			}
+		}
+
 		/**
 		 * Set f's heapIndex
 		 */
@@ -321,6 +796,7 @@ public final class Looper {
 					if (queue[i] == replacement)
 						siftUp(i, replacement);
 				}
+				updateHead();
 				return true;
 			} finally {
 				lock.unlock();
@@ -358,6 +834,12 @@ public final class Looper {
 
 		@Override
 		public boolean offer(Message x) {
+			schedule(x);
+			return true;
+		}
+
+		@Override
+		public boolean schedule(Message x) {
 			if (x == null)
 				throw new NullPointerException();
 			final ReentrantLock lock = this.lock;
@@ -374,13 +856,61 @@ public final class Looper {
 					siftUp(i, x);
 				}
 				if (queue[0] == x) {
+					updateHead();
 					leader = null;
 					available.signal();
+					return true;
 				}
+				return false;
 			} finally {
 				lock.unlock();
 			}
-			return true;
+		}
+
+		@Override
+		public boolean cancel(Message x) {
+			return remove(x);
+		}
+
+		@Override
+		public Message pollDue(long now) {
+			final ReentrantLock lock = this.lock;
+			lock.lock();
+			try {
+				Message first = queue[0];
+				if (first == null || first.time - now > 0)
+					return null;
+				else
+					return finishPoll(first);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public int drainDue(long now, Message[] batch, int max) {
+			final ReentrantLock lock = this.lock;
+			lock.lock();
+			try {
+				int n = 0;
+				Message first;
+				while (n < max && (first = queue[0]) != null && first.time - now <= 0) {
+					batch[n++] = finishPoll(first);
+				}
+				return n;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return hasHead;
+		}
+
+		@Override
+		public long nextTime() {
+			return headTime;
 		}
 
 		@Override
@@ -412,6 +942,7 @@ public final class Looper {
 			if (s != 0)
 				siftDown(0, x);
 			setIndex(f, -1);
+			updateHead();
 			return f;
 		}
 
@@ -518,6 +1049,7 @@ public final class Looper {
 					}
 				}
 				size = 0;
+				updateHead();
 			} finally {
 				lock.unlock();
 			}
@@ -579,11 +1111,11 @@ public final class Looper {
 		}
 
 		@Override
-		public Object[] toArray() {
+		public Message[] toArray() {
 			final ReentrantLock lock = this.lock;
 			lock.lock();
 			try {
-				return Arrays.copyOf(queue, size, Object[].class);
+				return Arrays.copyOf(queue, size);
 			} finally {
 				lock.unlock();
 			}
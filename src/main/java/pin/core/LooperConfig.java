@@ -0,0 +1,362 @@
+package pin.core;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Options for a {@link Looper}, passed to {@link Looper#prepare(LooperConfig)}
+ * or to {@link HandlerThread#HandlerThread(String, LooperConfig)}. A looper
+ * prepared without a config uses the defaults described on each setter.
+ *
+ * <pre>
+ * HandlerThread thread = new HandlerThread(&quot;buff&quot;, new LooperConfig().setTimingWheel(10, TimeUnit.MILLISECONDS));
+ * </pre>
+ */
+public final class LooperConfig {
+	private long mWheelTickNanos;
+	private int mBatchSize = 1;
+	private WaitStrategy mWaitStrategy = WaitStrategy.PARK;
+	private int mRingCapacity;
+	private int mCapacity;
+	private OverflowPolicy mOverflowPolicy = OverflowPolicy.REJECT;
+	private long mBlockNanos;
+	private long mTickNanos;
+	private Looper.TickListener mTickListener;
+	private int[] mCpus;
+	private long mSlackNanos;
+
+	public LooperConfig() {
+	}
+
+	LooperConfig(LooperConfig o) {
+		mWheelTickNanos = o.mWheelTickNanos;
+		mBatchSize = o.mBatchSize;
+		mWaitStrategy = o.mWaitStrategy;
+		mRingCapacity = o.mRingCapacity;
+		mCapacity = o.mCapacity;
+		mOverflowPolicy = o.mOverflowPolicy;
+		mBlockNanos = o.mBlockNanos;
+		mTickNanos = o.mTickNanos;
+		mTickListener = o.mTickListener;
+		mCpus = o.mCpus;
+		mSlackNanos = o.mSlackNanos;
+	}
+
+	/**
+	 * Keeps delayed and periodic messages in a hierarchical timing wheel with
+	 * the given tick instead of the default binary heap. Scheduling and
+	 * cancelling become O(1), and messages are dispatched on the first tick at
+	 * or after their time, so the tick is the worst case lateness.
+	 *
+	 * @param tick
+	 *            resolution of the wheel
+	 * @param unit
+	 *            unit of tick
+	 * @return this config
+	 */
+	public LooperConfig setTimingWheel(long tick, TimeUnit unit) {
+		if (unit == null) {
+			throw new NullPointerException();
+		}
+		if (tick <= 0) {
+			throw new IllegalArgumentException();
+		}
+		mWheelTickNanos = unit.toNanos(tick);
+		return this;
+	}
+
+	/**
+	 * Returns the tick of the timing wheel in nanoseconds, or 0 if delayed
+	 * messages are kept in the heap.
+	 */
+	public long getTimingWheelTick() {
+		return mWheelTickNanos;
+	}
+
+	/**
+	 * Lets the looper drain up to batchSize due messages at a time and
+	 * dispatch them one after the other, instead of going back to the queue
+	 * for every message. This takes the timer lock once per batch rather than
+	 * once per delayed message and cuts the synchronization per message under
+	 * bursty load. The default of 1 dispatches message by message.
+	 * 
+	 * @param batchSize
+	 *            the maximum number of messages drained at once
+	 * @return this config
+	 */
+	public LooperConfig setBatchSize(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException();
+		}
+		mBatchSize = batchSize;
+		return this;
+	}
+
+	public int getBatchSize() {
+		return mBatchSize;
+	}
+
+	/**
+	 * Sets how the looper waits while it has nothing to dispatch. The default
+	 * {@link WaitStrategy#PARK} costs no CPU when idle; the spinning
+	 * strategies cut the wake-up latency at the price of a busy core.
+	 * 
+	 * @param waitStrategy
+	 *            the strategy
+	 * @return this config
+	 */
+	public LooperConfig setWaitStrategy(WaitStrategy waitStrategy) {
+		if (waitStrategy == null) {
+			throw new NullPointerException();
+		}
+		mWaitStrategy = waitStrategy;
+		return this;
+	}
+
+	public WaitStrategy getWaitStrategy() {
+		return mWaitStrategy;
+	}
+
+	/**
+	 * Queues the messages that are due when sent in a ring of capacity
+	 * preallocated slots instead of the default unbounded lane. Senders
+	 * write the contents of a message straight into a slot, so
+	 * {@link Handler#sendMessage(int, int, int, Object)} and
+	 * {@link Handler#post(Runnable)} allocate nothing and never touch the
+	 * message pool. Messages sent with {@link Handler#sendMessage(Message)}
+	 * are copied into a slot and recycled. When all slots are in use, the
+	 * message is rejected as by a full queue, except that senders wait for
+	 * the looper to free a slot with {@link OverflowPolicy#BLOCK}, up to its
+	 * timeout, or with no capacity set, for as long as it takes. A message
+	 * handled from a slot must not be kept once handled; sending it again
+	 * sends a copy. Delayed and periodic messages are not affected. Messages
+	 * in slots cannot be removed nor found with
+	 * {@link Handler#hasMessages(int)}, even by a handler that
+	 * {@link Handler#setTracking(boolean) tracks} its due messages.
+	 * 
+	 * @param capacity
+	 *            number of slots, a power of two
+	 * @return this config
+	 */
+	public LooperConfig setRingBuffer(int capacity) {
+		if (capacity < 1 || (capacity & (capacity - 1)) != 0) {
+			throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+		}
+		if (mCapacity > 0 && mOverflowPolicy == OverflowPolicy.COALESCE) {
+			throw new IllegalArgumentException("a ring buffer cannot coalesce");
+		}
+		mRingCapacity = capacity;
+		return this;
+	}
+
+	/**
+	 * Returns the number of ring slots, or 0 if due messages go through the
+	 * unbounded lane.
+	 */
+	public int getRingBufferCapacity() {
+		return mRingCapacity;
+	}
+
+	/**
+	 * Limits the looper to capacity queued messages, delayed and periodic
+	 * ones included. A message sent to a full queue is handled by the
+	 * policy; see {@link OverflowPolicy}. The default is unbounded. Use
+	 * {@link #setCapacity(int, long, TimeUnit)} for
+	 * {@link OverflowPolicy#BLOCK}.
+	 * 
+	 * @param capacity
+	 *            the maximum number of queued messages
+	 * @param policy
+	 *            what to do with a message sent to a full queue
+	 * @return this config
+	 */
+	public LooperConfig setCapacity(int capacity, OverflowPolicy policy) {
+		if (policy == null) {
+			throw new NullPointerException();
+		}
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be positive: " + capacity);
+		}
+		if (policy == OverflowPolicy.BLOCK) {
+			throw new IllegalArgumentException("BLOCK needs a timeout");
+		}
+		if (policy == OverflowPolicy.COALESCE && mRingCapacity > 0) {
+			throw new IllegalArgumentException("a ring buffer cannot coalesce");
+		}
+		mCapacity = capacity;
+		mOverflowPolicy = policy;
+		mBlockNanos = 0;
+		return this;
+	}
+
+	/**
+	 * Limits the looper to capacity queued messages with
+	 * {@link OverflowPolicy#BLOCK}: senders wait up to timeout for room and
+	 * then give up.
+	 * 
+	 * @param capacity
+	 *            the maximum number of queued messages
+	 * @param timeout
+	 *            how long a sender waits at most
+	 * @param unit
+	 *            unit of timeout
+	 * @return this config
+	 */
+	public LooperConfig setCapacity(int capacity, long timeout, TimeUnit unit) {
+		if (unit == null) {
+			throw new NullPointerException();
+		}
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be positive: " + capacity);
+		}
+		if (timeout < 0) {
+			throw new IllegalArgumentException();
+		}
+		mCapacity = capacity;
+		mOverflowPolicy = OverflowPolicy.BLOCK;
+		mBlockNanos = unit.toNanos(timeout);
+		return this;
+	}
+
+	/**
+	 * Returns the maximum number of queued messages, or 0 if unbounded.
+	 */
+	public int getCapacity() {
+		return mCapacity;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return mOverflowPolicy;
+	}
+
+	/**
+	 * Returns how long a sender waits for room under
+	 * {@link OverflowPolicy#BLOCK}, in nanoseconds.
+	 */
+	public long getBlockTimeout() {
+		return mBlockNanos;
+	}
+
+	/**
+	 * Runs the looper in fixed ticks of the given period instead of
+	 * dispatching messages as they come. At every tick, the looper
+	 * dispatches the messages sent before the tick started and the delayed
+	 * messages due by then, as one batch, and then calls the listener;
+	 * messages sent during a tick wait for the next one. Ticks are kept on a
+	 * fixed grid from the start of the loop, so they do not drift. A tick
+	 * that runs into the next one delays it, and the ticks whose whole
+	 * period has passed are skipped; see {@link Looper#getSkippedTicks()}.
+	 * The batch size does not apply in this mode.
+	 * 
+	 * @param period
+	 *            time between the starts of two ticks
+	 * @param unit
+	 *            unit of period
+	 * @param listener
+	 *            called at the end of every tick, or null
+	 * @return this config
+	 */
+	public LooperConfig setTickRate(long period, TimeUnit unit, Looper.TickListener listener) {
+		if (unit == null) {
+			throw new NullPointerException();
+		}
+		if (period <= 0) {
+			throw new IllegalArgumentException("period must be positive: " + period);
+		}
+		mTickNanos = unit.toNanos(period);
+		mTickListener = listener;
+		return this;
+	}
+
+	/**
+	 * Returns the tick period in nanoseconds, or 0 if the looper is not in
+	 * fixed-tick mode.
+	 */
+	public long getTickPeriod() {
+		return mTickNanos;
+	}
+
+	public Looper.TickListener getTickListener() {
+		return mTickListener;
+	}
+
+	/**
+	 * Lets delayed and periodic messages run up to slack late so that the
+	 * looper wakes up for them in shared slots: time is cut into slots of
+	 * slack, and an idle looper sleeps until the end of the slot of its next
+	 * timer, then dispatches every timer due by then in time order. Many
+	 * timers with scattered times then cost one wake-up per slot instead of
+	 * one each. Messages keep their exact times, so periodic messages do not
+	 * drift, and a looper woken by other messages still dispatches due
+	 * timers right away. The default of 0 wakes up for every timer.
+	 * 
+	 * @param slack
+	 *            the most a timer may be delayed
+	 * @param unit
+	 *            unit of slack
+	 * @return this config
+	 */
+	public LooperConfig setTimerSlack(long slack, TimeUnit unit) {
+		if (unit == null) {
+			throw new NullPointerException();
+		}
+		if (slack < 0) {
+			throw new IllegalArgumentException("slack must not be negative: " + slack);
+		}
+		mSlackNanos = unit.toNanos(slack);
+		return this;
+	}
+
+	/**
+	 * Returns the timer slack in nanoseconds, or 0.
+	 */
+	public long getTimerSlack() {
+		return mSlackNanos;
+	}
+
+	/**
+	 * Binds the looper thread to the given CPUs when it is prepared. Binding
+	 * a busy looper to a core of its own keeps its cache warm and spares it
+	 * the scheduling of other threads; it goes well with a spinning
+	 * {@link WaitStrategy}. A {@link LooperGroup} binds each of its threads
+	 * to one of the CPUs in turn. Does nothing where {@link Affinity} is not
+	 * supported. The default is unbound.
+	 * 
+	 * @param cpus
+	 *            the CPU numbers
+	 * @return this config
+	 */
+	public LooperConfig setCpuAffinity(int... cpus) {
+		if (cpus.length == 0) {
+			throw new IllegalArgumentException("no cpu");
+		}
+		for (int cpu : cpus) {
+			if (cpu < 0) {
+				throw new IllegalArgumentException("cpu: " + cpu);
+			}
+		}
+		mCpus = cpus.clone();
+		return this;
+	}
+
+	/**
+	 * Returns the CPUs the looper thread is bound to, or null if unbound.
+	 */
+	public int[] getCpuAffinity() {
+		return (mCpus != null) ? mCpus.clone() : null;
+	}
+
+	/**
+	 * Creates the queue of a looper. Called on the looper thread.
+	 */
+	MessageQueue newMessageQueue() {
+		Lane lane;
+		if (mRingCapacity > 0) {
+			long wait = (mCapacity == 0) ? -1 : (mOverflowPolicy == OverflowPolicy.BLOCK) ? mBlockNanos : 0;
+			lane = new RingLane(mRingCapacity, wait);
+		} else {
+			lane = new MessageLane();
+		}
+		TimerQueue timers = (mWheelTickNanos > 0) ? new TimingWheel(mWheelTickNanos) : new Looper.DelayedWorkQueue();
+		return new MessageQueue(lane, timers, this);
+	}
+}
@@ -0,0 +1,244 @@
+package pin.core;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A fixed group of {@link HandlerThread}s that share the work of one logical
+ * handler by key. Messages for the same key always go to the same thread, so
+ * they are processed one at a time and in the order they were sent, while
+ * different keys spread over all cores, which gives actor-style sharding
+ * without any routing code in the application.
+ *
+ * <pre>
+ * LooperGroup group = new LooperGroup(&quot;logic&quot;);
+ * ShardedHandler players = group.newHandler(new LooperGroup.HandlerFactory() {
+ * 	public Handler newHandler(Looper looper) {
+ * 		return new PlayerHandler(looper);
+ * 	}
+ * });
+ * players.obtainMessage(playerId, MSG_MOVE, move).sendToTarget();
+ * ...
+ * group.quitSafely(10, TimeUnit.SECONDS);
+ * </pre>
+ *
+ * The threads are started by the constructor.
+ *
+ * <p>
+ * Handlers that are stateless and insensitive to order may be made
+ * {@link Handler#setStealable(boolean) stealable}: their due messages are
+ * then dispatched by whichever looper of the group is idle first, while every
+ * other handler keeps its thread and its order.
+ */
+public class LooperGroup {
+	private static final Logger LOGGER = LoggerFactory.getLogger(LooperGroup.class);
+
+	private final String mName;
+	private final HandlerThread[] mThreads;
+	private final Handler[] mHandlers;
+
+	/**
+	 * Creates a handler for one looper of the group.
+	 */
+	public interface HandlerFactory {
+		public Handler newHandler(Looper looper);
+	}
+
+	/**
+	 * Creates a group with one thread per available processor.
+	 */
+	public LooperGroup(String name) {
+		this(name, Runtime.getRuntime().availableProcessors());
+	}
+
+	public LooperGroup(String name, int size) {
+		this(name, size, new LooperConfig());
+	}
+
+	/**
+	 * @param name
+	 *            prefix of the thread names
+	 * @param size
+	 *            number of threads
+	 * @param config
+	 *            the options every looper of the group is prepared with;
+	 *            with a {@link LooperConfig#setCpuAffinity(int...) CPU
+	 *            affinity}, thread i is bound to the i-th CPU of the list
+	 *            alone, wrapping around
+	 */
+	public LooperGroup(String name, int size, LooperConfig config) {
+		if (size < 1) {
+			throw new IllegalArgumentException("size must be positive: " + size);
+		}
+		mName = name;
+		mThreads = new HandlerThread[size];
+		mHandlers = new Handler[size];
+		int[] cpus = config.getCpuAffinity();
+		for (int i = 0; i < size; i++) {
+			LooperConfig threadConfig = config;
+			if (cpus != null) {
+				threadConfig = new LooperConfig(config).setCpuAffinity(cpus[i % cpus.length]);
+			}
+			mThreads[i] = newThread(name + "-" + i, threadConfig);
+			mThreads[i].start();
+		}
+		for (int i = 0; i < size; i++) {
+			mHandlers[i] = new BarrierHandler(mThreads[i].getLooper());
+		}
+		for (int i = 0; i < size; i++) {
+			// each looper steals from the others, starting with the next one
+			MessageQueue[] peers = new MessageQueue[size - 1];
+			for (int j = 0; j < peers.length; j++) {
+				peers[j] = mThreads[(i + 1 + j) % size].getLooper().mQueue;
+			}
+			mThreads[i].getLooper().mQueue.setPeers(peers);
+		}
+	}
+
+	/**
+	 * Creates one thread of the group. Subclasses may override this to return
+	 * their own HandlerThread, which must not be started yet.
+	 */
+	protected HandlerThread newThread(String name, LooperConfig config) {
+		return new HandlerThread(name, config);
+	}
+
+	public String getName() {
+		return mName;
+	}
+
+	public int size() {
+		return mThreads.length;
+	}
+
+	public Looper getLooper(int index) {
+		return mThreads[index].getLooper();
+	}
+
+	public HandlerThread getThread(int index) {
+		return mThreads[index];
+	}
+
+	/**
+	 * Creates one handler per looper with the factory and returns them as a
+	 * single handler routed by key.
+	 */
+	public ShardedHandler newHandler(HandlerFactory factory) {
+		Handler[] handlers = new Handler[mThreads.length];
+		for (int i = 0; i < handlers.length; i++) {
+			handlers[i] = factory.newHandler(getLooper(i));
+		}
+		return new ShardedHandler(handlers);
+	}
+
+	/**
+	 * Same as {@link #newHandler(HandlerFactory)} for handlers that only
+	 * forward to a callback. The callback is shared by every thread of the
+	 * group, but calls for one key always come from the same thread.
+	 * There is no handler behind the callback to fall back on: a message for
+	 * which it returns false is dropped, and logged as a warning.
+	 */
+	public ShardedHandler newHandler(final Handler.Callback callback) {
+		return newHandler(new HandlerFactory() {
+			@Override
+			public Handler newHandler(Looper looper) {
+				return new Handler(looper, callback) {
+					@Override
+					public void handleMessage(Message msg) {
+						LOGGER.warn(this + " dropped what=" + msg.what + ", its callback did not handle it");
+					}
+				};
+			}
+		});
+	}
+
+	/**
+	 * Waits until every message that was due on any looper of the group when
+	 * this method was called has been dispatched. Messages scheduled for
+	 * later are not waited for.
+	 *
+	 * @return false if the timeout elapsed first
+	 */
+	public boolean drain(long timeout, TimeUnit unit) throws InterruptedException {
+		final CountDownLatch drained = new CountDownLatch(mHandlers.length);
+		Runnable barrier = new Runnable() {
+			@Override
+			public void run() {
+				drained.countDown();
+			}
+		};
+		for (Handler handler : mHandlers) {
+			if (!handler.post(barrier)) {
+				// already quitting, nothing left to wait for
+				drained.countDown();
+			}
+		}
+		return drained.await(timeout, unit);
+	}
+
+	/**
+	 * Quits every looper of the group right away.
+	 */
+	public void quit() {
+		for (HandlerThread thread : mThreads) {
+			thread.quit();
+		}
+	}
+
+	/**
+	 * Drains the group, quits it and waits for its threads to end.
+	 *
+	 * @return false if the timeout elapsed first; the loopers are quit
+	 *         anyway
+	 */
+	public boolean quitSafely(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		boolean drained = drain(timeout, unit);
+		quit();
+		return awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS) && drained;
+	}
+
+	/**
+	 * Waits for every thread of the group to end.
+	 *
+	 * @return false if the timeout elapsed first
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (HandlerThread thread : mThreads) {
+			long millis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			if (millis <= 0) {
+				return !isAlive();
+			}
+			thread.join(millis);
+		}
+		return !isAlive();
+	}
+
+	private boolean isAlive() {
+		for (HandlerThread thread : mThreads) {
+			if (thread.isAlive()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return "LooperGroup (" + mName + ") {" + mThreads.length + " threads}";
+	}
+
+	private static class BarrierHandler extends Handler {
+		BarrierHandler(Looper looper) {
+			super(looper);
+		}
+
+		@Override
+		public void handleMessage(Message msg) {
+		}
+	}
+}
@@ -0,0 +1,307 @@
+package pin.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the dispatches of a set of {@link Looper}s from a daemon thread and
+ * reports every dispatch that runs past a threshold, such as a handler
+ * blocked on a slow remote call, which would otherwise freeze its looper
+ * silently. A stall is reported once, while it is still running, with the
+ * stack of the looper thread, the {@link Handler} and the <em>what</em> of
+ * the message; stalls are also counted per handler class.
+ *
+ * <pre>
+ * LooperWatchdog watchdog = new LooperWatchdog(100, TimeUnit.MILLISECONDS);
+ * watchdog.watch(group);
+ * watchdog.start();
+ * ...
+ * LOGGER.info(&quot;stalls &quot; + watchdog.getStallCounts());
+ * </pre>
+ *
+ * By default stalls are logged as warnings; set a {@link Listener} to handle
+ * them otherwise. Watching costs a watched looper one clock read and three
+ * volatile writes per message.
+ */
+public class LooperWatchdog {
+	private static final Logger LOGGER = LoggerFactory.getLogger(LooperWatchdog.class);
+
+	private final long mThresholdNanos;
+	private final long mIntervalNanos;
+	private final CopyOnWriteArrayList<Watched> mLoopers = new CopyOnWriteArrayList<Watched>();
+	private final ConcurrentHashMap<Class<?>, AtomicLong> mStalls = new ConcurrentHashMap<Class<?>, AtomicLong>();
+	private volatile Listener mListener;
+	private Thread mThread;
+	private volatile boolean mRunning;
+
+	/**
+	 * Receives the stalls, on the watchdog thread.
+	 */
+	public interface Listener {
+		public void onStall(Stall stall);
+	}
+
+	/**
+	 * A dispatch that ran past the threshold.
+	 */
+	public static final class Stall {
+		private final Looper mLooper;
+		private final Handler mHandler;
+		private final int mWhat;
+		private final long mDuration;
+		private final StackTraceElement[] mStackTrace;
+
+		Stall(Looper looper, Handler handler, int what, long duration, StackTraceElement[] stackTrace) {
+			mLooper = looper;
+			mHandler = handler;
+			mWhat = what;
+			mDuration = duration;
+			mStackTrace = stackTrace;
+		}
+
+		public Looper getLooper() {
+			return mLooper;
+		}
+
+		public Handler getHandler() {
+			return mHandler;
+		}
+
+		public int getWhat() {
+			return mWhat;
+		}
+
+		/**
+		 * Returns how long the dispatch had been running when it was caught,
+		 * in nanoseconds.
+		 */
+		public long getDuration() {
+			return mDuration;
+		}
+
+		/**
+		 * Returns the stack of the looper thread when the stall was caught.
+		 */
+		public StackTraceElement[] getStackTrace() {
+			return mStackTrace;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder b = new StringBuilder();
+			b.append("Looper thread ").append(mLooper.getThread().getName()).append(" stalled ")
+					.append(TimeUnit.NANOSECONDS.toMillis(mDuration)).append("ms in ")
+					.append(mHandler.getClass().getName()).append(" what=").append(mWhat);
+			for (StackTraceElement element : mStackTrace) {
+				b.append("\n\tat ").append(element);
+			}
+			return b.toString();
+		}
+	}
+
+	/**
+	 * @param threshold
+	 *            how long a dispatch may run before it counts as a stall
+	 */
+	public LooperWatchdog(long threshold, TimeUnit unit) {
+		if (threshold <= 0) {
+			throw new IllegalArgumentException("threshold must be positive: " + threshold);
+		}
+		mThresholdNanos = unit.toNanos(threshold);
+		// checking four times per threshold catches a stall within 125% of it
+		mIntervalNanos = Math.max(mThresholdNanos / 4, TimeUnit.MILLISECONDS.toNanos(1));
+	}
+
+	public long getThreshold(TimeUnit unit) {
+		return unit.convert(mThresholdNanos, TimeUnit.NANOSECONDS);
+	}
+
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * Starts watching a looper. A looper can be watched by one watchdog at a
+	 * time.
+	 */
+	public void watch(Looper looper) {
+		synchronized (looper) {
+			if (looper.mWatchdog == this) {
+				return;
+			}
+			if (looper.mWatchdog != null) {
+				throw new IllegalStateException(looper + " is already watched");
+			}
+			looper.mWatchdog = this;
+		}
+		mLoopers.add(new Watched(looper));
+	}
+
+	/**
+	 * Starts watching every looper of the group.
+	 */
+	public void watch(LooperGroup group) {
+		for (int i = 0; i < group.size(); i++) {
+			watch(group.getLooper(i));
+		}
+	}
+
+	public void unwatch(Looper looper) {
+		synchronized (looper) {
+			if (looper.mWatchdog != this) {
+				return;
+			}
+			looper.mWatchdog = null;
+		}
+		for (Watched watched : mLoopers) {
+			if (watched.mLooper == looper) {
+				mLoopers.remove(watched);
+			}
+		}
+	}
+
+	/**
+	 * Starts the watchdog thread.
+	 */
+	public synchronized void start() {
+		if (mThread != null) {
+			throw new IllegalStateException("LooperWatchdog already started");
+		}
+		mRunning = true;
+		mThread = new Thread("LooperWatchdog") {
+			@Override
+			public void run() {
+				watchLoop();
+			}
+		};
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	/**
+	 * Stops the watchdog thread. The loopers stay watched until
+	 * {@link #unwatch(Looper)} is called.
+	 */
+	public synchronized void stop() {
+		mRunning = false;
+		if (mThread != null) {
+			mThread.interrupt();
+			mThread = null;
+		}
+	}
+
+	/**
+	 * Returns the number of stalls seen for a handler class.
+	 */
+	public long getStallCount(Class<? extends Handler> handlerClass) {
+		AtomicLong count = mStalls.get(handlerClass);
+		return (count == null) ? 0 : count.get();
+	}
+
+	/**
+	 * Returns the number of stalls per handler class.
+	 */
+	public Map<Class<?>, Long> getStallCounts() {
+		Map<Class<?>, Long> counts = new HashMap<Class<?>, Long>();
+		for (Map.Entry<Class<?>, AtomicLong> e : mStalls.entrySet()) {
+			counts.put(e.getKey(), e.getValue().get());
+		}
+		return counts;
+	}
+
+	public void resetStallCounts() {
+		mStalls.clear();
+	}
+
+	private void watchLoop() {
+		while (mRunning) {
+			check(System.nanoTime());
+			try {
+				TimeUnit.NANOSECONDS.sleep(mIntervalNanos);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Reports the watched loopers whose current dispatch started more than
+	 * the threshold before now.
+	 */
+	void check(long now) {
+		List<Stall> stalls = null;
+		for (Watched watched : mLoopers) {
+			Looper looper = watched.mLooper;
+			long start = looper.mDispatchStart;
+			if (start == 0 || start == watched.mReported || now - start < mThresholdNanos) {
+				continue;
+			}
+			Handler handler = looper.mDispatchTarget;
+			int what = looper.mDispatchWhat;
+			StackTraceElement[] stack = looper.getThread().getStackTrace();
+			if (looper.mDispatchStart != start) {
+				// the dispatch ended while we looked at it
+				continue;
+			}
+			watched.mReported = start;
+			if (stalls == null) {
+				stalls = new ArrayList<Stall>();
+			}
+			stalls.add(new Stall(looper, handler, what, now - start, stack));
+		}
+		if (stalls != null) {
+			for (Stall stall : stalls) {
+				report(stall);
+			}
+		}
+	}
+
+	private void report(Stall stall) {
+		Class<?> handlerClass = stall.getHandler().getClass();
+		AtomicLong count = mStalls.get(handlerClass);
+		if (count == null) {
+			AtomicLong created = new AtomicLong();
+			count = mStalls.putIfAbsent(handlerClass, created);
+			if (count == null) {
+				count = created;
+			}
+		}
+		count.incrementAndGet();
+
+		Listener listener = mListener;
+		if (listener == null) {
+			LOGGER.warn(stall.toString());
+			return;
+		}
+		try {
+			listener.onStall(stall);
+		} catch (Exception e) {
+			LOGGER.error("error on stall listener", e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "LooperWatchdog {threshold=" + TimeUnit.NANOSECONDS.toMillis(mThresholdNanos) + "ms loopers="
+				+ mLoopers.size() + "}";
+	}
+
+	private static final class Watched {
+		final Looper mLooper;
+		/** Start of the last dispatch reported, so each stall is reported once. */
+		long mReported;
+
+		Watched(Looper looper) {
+			mLooper = looper;
+		}
+	}
+}
@@ -44,7 +44,28 @@ public final class Message implements Delayed {
 
 	Runnable callback;
 
+	/**
+	 * How long after becoming due the message may still be dispatched, in
+	 * nanoseconds, or 0 for no deadline.
+	 */
+	long deadline;
+
+	/** Id of the message in the {@link MessageJournal} of its target, or 0. */
+	long journalId;
+
+	/** The reply of a message sent with {@link Handler#ask(Message)}. */
+	Reply<?> reply;
+
+	/** The handler took the reply with {@link #getReply()} to answer later. */
+	boolean replyKept;
+
 	Message next;
+
+	/**
+	 * Link used while the message waits in a {@link MessageLane}. Kept apart
+	 * from {@link #next} so that the pool and the lane never share a link.
+	 */
+	volatile Message laneNext;
 	
 	/**
 	 * Index into delay queue, to support faster cancellation.
@@ -52,18 +73,62 @@ public final class Message implements Delayed {
 	int heapIndex;
 
 	/**
-	 * 用来加锁的变量
+	 * Links of the {@link TimingWheel} slot list holding this message.
 	 */
-	private static final byte[] SPOOLSYNC = new byte[0];
-	private static Message sPool;
-	private static int sPoolSize = 0;
+	Message timerPrev;
+	Message timerNext;
 
-	private static final int MAX_POOL_SIZE = 50;
+	/**
+	 * Links of the {@link MessageIndex} chain of the target handler.
+	 */
+	Message indexPrev;
+	Message indexNext;
+
+	/** Default priority, see {@link #setPriority(int)}. */
+	public static final int PRIORITY_NORMAL = 0;
+
+	/** Priority of messages that go before the normal ones. */
+	public static final int PRIORITY_HIGH = 1;
 
 	/**
-	 * 私有构造函数
+	 * Highest priority, used by {@link Handler#sendMessageAtFrontOfQueue}.
 	 */
-	private Message() {
+	public static final int PRIORITY_URGENT = 2;
+
+	int priority;
+
+	/** The message is in the {@link MessageIndex} of its target. */
+	static final int FLAG_INDEXED = 1 << 0;
+
+	/** The message was removed while the looper was dispatching it. */
+	static final int FLAG_CANCELLED = 1 << 1;
+
+	/**
+	 * The message is a preallocated slot of a {@link RingLane}; it is reused
+	 * in place and never goes to the pool.
+	 */
+	static final int FLAG_SLOT = 1 << 2;
+
+	/**
+	 * The message waits in the lane but is also in the {@link MessageIndex}
+	 * of its target, so that it can be coalesced or removed.
+	 */
+	static final int FLAG_TRACKED = 1 << 3;
+
+	/**
+	 * The message was sent with {@link Handler#sendMessageCoalesced} and is
+	 * keyed in the {@link MessageIndex} of its target, by what, and by obj too
+	 * with {@link #FLAG_MATCH_OBJ}.
+	 */
+	static final int FLAG_COALESCED = 1 << 4;
+	static final int FLAG_MATCH_OBJ = 1 << 5;
+
+	int flags;
+
+	/**
+	 * 包内构造函数, 外部请使用{@link #obtain()}
+	 */
+	Message() {
 
 	}
 
@@ -72,18 +137,10 @@ public final class Message implements Delayed {
 	 * allocating new objects in many cases.
 	 * 
 	 * @return {@link Message}
+	 * @see MessagePool
 	 */
 	public static Message obtain() {
-		synchronized (SPOOLSYNC) {
-			if (sPool != null) {
-				Message m = sPool;
-				sPool = m.next;
-				m.next = null;
-				sPoolSize--;
-				return m;
-			}
-		}
-		return new Message();
+		return MessagePool.obtain();
 	}
 
 	/**
@@ -102,6 +159,8 @@ public final class Message implements Delayed {
 		m.obj = orig.obj;
 		m.target = orig.target;
 		m.callback = orig.callback;
+		m.priority = orig.priority;
+		m.deadline = orig.deadline;
 
 		return m;
 	}
@@ -236,15 +295,12 @@ public final class Message implements Delayed {
 	 * Message after calling this function -- it has effectively been freed.
 	 */
 	public void recycle() {
-		clearForRecycle();
-
-		synchronized (SPOOLSYNC) {
-			if (sPoolSize < MAX_POOL_SIZE) {
-				next = sPool;
-				sPool = this;
-				sPoolSize++;
-			}
+		if ((flags & FLAG_SLOT) != 0) {
+			// ring slots are released by their looper
+			return;
 		}
+		clearForRecycle();
+		MessagePool.recycle(this);
 	}
 
 	/**
@@ -262,6 +318,58 @@ public final class Message implements Delayed {
 		this.obj = o.obj;
 	}
 
+	/**
+	 * Sets the priority of the message. A message of a higher priority that
+	 * is due when sent is dispatched before the due messages of lower
+	 * priorities, in the order of its own priority; see
+	 * {@link #PRIORITY_HIGH} and {@link #PRIORITY_URGENT}. Delayed and
+	 * periodic messages are dispatched in time order whatever their
+	 * priority. A looper still lets some lower priority messages through
+	 * under a steady stream of higher priority ones.
+	 * 
+	 * @param priority
+	 *            from {@link #PRIORITY_NORMAL} to {@link #PRIORITY_URGENT}
+	 */
+	public void setPriority(int priority) {
+		if (priority < PRIORITY_NORMAL || priority > PRIORITY_URGENT) {
+			throw new IllegalArgumentException("priority: " + priority);
+		}
+		this.priority = priority;
+	}
+
+	public int getPriority() {
+		return priority;
+	}
+
+	/**
+	 * Gives the message a deadline: if the looper cannot start dispatching it
+	 * within timeout of it becoming due (when sent, or at its scheduled time
+	 * for delayed and periodic messages), it is not dispatched but passed to
+	 * {@link Handler#onExpired(Message)} and counted by
+	 * {@link Handler#getExpiredCount()}. An expired run of a periodic message
+	 * is skipped and the next run is still scheduled. This lets an
+	 * overloaded looper shed stale work, such as position updates, instead
+	 * of falling further behind.
+	 * 
+	 * @param timeout
+	 *            the allowed lateness, or 0 to clear the deadline
+	 * @param unit
+	 *            unit of timeout
+	 */
+	public void setDeadline(long timeout, TimeUnit unit) {
+		if (timeout < 0) {
+			throw new IllegalArgumentException("timeout must not be negative: " + timeout);
+		}
+		deadline = unit.toNanos(timeout);
+	}
+
+	/**
+	 * Returns the allowed lateness, or 0 if the message has no deadline.
+	 */
+	public long getDeadline(TimeUnit unit) {
+		return unit.convert(deadline, TimeUnit.NANOSECONDS);
+	}
+
 	/**
 	 * Return the targeted delivery time of this message, in milliseconds.
 	 * 
@@ -316,6 +424,38 @@ public final class Message implements Delayed {
 		target.sendMessage(this);
 	}
 
+	/**
+	 * Answers a message sent with {@link Handler#ask(Message)}. Call it
+	 * while handling the message; to answer later, keep {@link #getReply()}
+	 * instead, as the message is recycled after dispatch.
+	 *
+	 * @return false if the message was not asked or was already answered
+	 */
+	public boolean reply(Object result) {
+		return reply != null && reply.completeUnchecked(result);
+	}
+
+	/**
+	 * Fails a message sent with {@link Handler#ask(Message)}.
+	 *
+	 * @return false if the message was not asked or was already answered
+	 */
+	public boolean replyError(Throwable error) {
+		return reply != null && reply.fail(error);
+	}
+
+	/**
+	 * Returns the reply of a message sent with {@link Handler#ask(Message)},
+	 * or null. A handler that takes the reply while handling the message
+	 * is trusted to answer it later; otherwise a reply still pending once
+	 * the message is handled fails with an {@link IllegalStateException}.
+	 */
+	@SuppressWarnings("unchecked")
+	public <V> Reply<V> getReply() {
+		replyKept = true;
+		return (Reply<V>) reply;
+	}
+
 	/**
 	 * 回收之前对消息进行清理
 	 */
@@ -329,6 +469,12 @@ public final class Message implements Delayed {
 		period = 0;
 		target = null;
 		callback = null;
+		flags = 0;
+		priority = 0;
+		deadline = 0;
+		journalId = 0;
+		reply = null;
+		replyKept = false;
 	}
 
 	@Override
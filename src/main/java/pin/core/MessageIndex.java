@@ -0,0 +1,264 @@
+package pin.core;
+
+/**
+ * Per-{@link Handler} index of the messages it has scheduled on its looper's
+ * {@link TimerQueue}, and of its due messages tracked while they wait in a
+ * lane, so that {@link Handler#removeMessages(int)} and friends only look at
+ * the messages with the requested <em>what</em> instead of scanning the
+ * whole queue.
+ *
+ * <p>
+ * Messages are chained per <em>what</em> through
+ * {@link Message#indexPrev}/{@link Message#indexNext}; the chain heads live in
+ * an open addressing table keyed by the primitive <em>what</em>, so neither
+ * adding nor removing allocates. Messages carrying a callback are chained
+ * separately, since they are looked up by their {@link Runnable}.
+ *
+ * <p>
+ * Messages sent with {@link Handler#sendMessageCoalesced} are also kept in a
+ * second open addressing table, of the messages themselves, keyed by what or
+ * by what and obj identity, so that the pending message of a key is found in
+ * constant time however many messages share its what.
+ *
+ * <p>
+ * Not thread safe: callers synchronize on the index.
+ */
+final class MessageIndex {
+	private static final int INITIAL_CAPACITY = 16;
+
+	private int[] mKeys = new int[INITIAL_CAPACITY];
+	private Message[] mHeads = new Message[INITIAL_CAPACITY];
+	private int mUsed;
+	private Message mCallbacks;
+	private int mSize;
+
+	private Message[] mCoalesced = new Message[INITIAL_CAPACITY];
+	private int mCoalescedCount;
+
+	/**
+	 * Adds a message that is not indexed yet.
+	 */
+	void add(Message msg) {
+		msg.flags |= Message.FLAG_INDEXED;
+		msg.indexPrev = null;
+		Message head;
+		if (msg.callback != null) {
+			head = mCallbacks;
+			mCallbacks = msg;
+		} else {
+			int slot = slotFor(msg.what);
+			head = mHeads[slot];
+			mHeads[slot] = msg;
+		}
+		msg.indexNext = head;
+		if (head != null) {
+			head.indexPrev = msg;
+		}
+		mSize++;
+		if ((msg.flags & Message.FLAG_COALESCED) != 0) {
+			addCoalesced(msg);
+		}
+	}
+
+	/**
+	 * Removes a message, doing nothing if it is not indexed.
+	 */
+	void remove(Message msg) {
+		if ((msg.flags & Message.FLAG_INDEXED) == 0) {
+			return;
+		}
+		msg.flags &= ~Message.FLAG_INDEXED;
+		Message prev = msg.indexPrev;
+		Message next = msg.indexNext;
+		if (next != null) {
+			next.indexPrev = prev;
+		}
+		if (prev != null) {
+			prev.indexNext = next;
+		} else if (msg.callback != null) {
+			mCallbacks = next;
+		} else {
+			int slot = find(msg.what);
+			if (next != null) {
+				mHeads[slot] = next;
+			} else {
+				delete(slot);
+			}
+		}
+		msg.indexPrev = null;
+		msg.indexNext = null;
+		mSize--;
+		if ((msg.flags & Message.FLAG_COALESCED) != 0) {
+			removeCoalesced(msg);
+		}
+	}
+
+	/**
+	 * Returns the indexed coalesced message with the given key, or null.
+	 */
+	Message findCoalesced(int what, Object obj, boolean matchObj) {
+		Message[] table = mCoalesced;
+		int mask = table.length - 1;
+		for (int i = coalescedHash(what, obj, matchObj) & mask; table[i] != null; i = (i + 1) & mask) {
+			Message m = table[i];
+			if (m.what == what && ((m.flags & Message.FLAG_MATCH_OBJ) != 0) == matchObj && (!matchObj || m.obj == obj)) {
+				return m;
+			}
+		}
+		return null;
+	}
+
+	private static int coalescedHash(int what, Object obj, boolean matchObj) {
+		return matchObj ? hash(what ^ System.identityHashCode(obj)) : hash(what);
+	}
+
+	private static int coalescedHash(Message msg) {
+		return coalescedHash(msg.what, msg.obj, (msg.flags & Message.FLAG_MATCH_OBJ) != 0);
+	}
+
+	private void addCoalesced(Message msg) {
+		if ((mCoalescedCount + 1) * 2 > mCoalesced.length) {
+			Message[] old = mCoalesced;
+			mCoalesced = new Message[old.length << 1];
+			for (Message m : old) {
+				if (m != null) {
+					insertCoalesced(m);
+				}
+			}
+		}
+		insertCoalesced(msg);
+		mCoalescedCount++;
+	}
+
+	private void insertCoalesced(Message msg) {
+		Message[] table = mCoalesced;
+		int mask = table.length - 1;
+		int i = coalescedHash(msg) & mask;
+		while (table[i] != null) {
+			i = (i + 1) & mask;
+		}
+		table[i] = msg;
+	}
+
+	/**
+	 * Removes a coalesced message, shifting back its probe sequence like
+	 * {@link #delete(int)}.
+	 */
+	private void removeCoalesced(Message msg) {
+		Message[] table = mCoalesced;
+		int mask = table.length - 1;
+		int i = coalescedHash(msg) & mask;
+		while (table[i] != msg) {
+			if (table[i] == null) {
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+		table[i] = null;
+		for (int j = (i + 1) & mask; table[j] != null; j = (j + 1) & mask) {
+			int k = coalescedHash(table[j]) & mask;
+			if ((i <= j) ? (i < k && k <= j) : (i < k || k <= j)) {
+				continue;
+			}
+			table[i] = table[j];
+			table[j] = null;
+			i = j;
+		}
+		mCoalescedCount--;
+	}
+
+	/**
+	 * Returns the first indexed message with the given what and no callback,
+	 * the rest follow through {@link Message#indexNext}.
+	 */
+	Message first(int what) {
+		int slot = find(what);
+		return (slot < 0) ? null : mHeads[slot];
+	}
+
+	/**
+	 * Returns the first indexed message carrying a callback.
+	 */
+	Message firstCallback() {
+		return mCallbacks;
+	}
+
+	int size() {
+		return mSize;
+	}
+
+	private static int hash(int what) {
+		int h = what * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private int find(int what) {
+		int mask = mHeads.length - 1;
+		for (int i = hash(what) & mask; mHeads[i] != null; i = (i + 1) & mask) {
+			if (mKeys[i] == what) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the slot of the given key, claiming an empty one if needed.
+	 */
+	private int slotFor(int what) {
+		int slot = find(what);
+		if (slot >= 0) {
+			return slot;
+		}
+		if ((mUsed + 1) * 2 > mHeads.length) {
+			grow();
+		}
+		int mask = mHeads.length - 1;
+		int i = hash(what) & mask;
+		while (mHeads[i] != null) {
+			i = (i + 1) & mask;
+		}
+		mKeys[i] = what;
+		mUsed++;
+		return i;
+	}
+
+	private void grow() {
+		int[] oldKeys = mKeys;
+		Message[] oldHeads = mHeads;
+		mKeys = new int[oldKeys.length << 1];
+		mHeads = new Message[oldHeads.length << 1];
+		int mask = mHeads.length - 1;
+		for (int j = 0; j < oldHeads.length; j++) {
+			if (oldHeads[j] != null) {
+				int i = hash(oldKeys[j]) & mask;
+				while (mHeads[i] != null) {
+					i = (i + 1) & mask;
+				}
+				mKeys[i] = oldKeys[j];
+				mHeads[i] = oldHeads[j];
+			}
+		}
+	}
+
+	/**
+	 * Empties a slot, shifting back the entries of its probe sequence so
+	 * that lookups never stop at the hole.
+	 */
+	private void delete(int slot) {
+		int mask = mHeads.length - 1;
+		int i = slot;
+		mHeads[i] = null;
+		for (int j = (i + 1) & mask; mHeads[j] != null; j = (j + 1) & mask) {
+			int k = hash(mKeys[j]) & mask;
+			if ((i <= j) ? (i < k && k <= j) : (i < k || k <= j)) {
+				continue;
+			}
+			mKeys[i] = mKeys[j];
+			mHeads[i] = mHeads[j];
+			mHeads[j] = null;
+			i = j;
+		}
+		mUsed--;
+	}
+}
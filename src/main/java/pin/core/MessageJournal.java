@@ -0,0 +1,767 @@
+package pin.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pin.io.Serializable;
+
+/**
+ * Keeps the long delayed and periodic messages of registered handlers in a
+ * log on disk, so that they survive a restart. A schedule record is appended
+ * when such a message is sent, and a cancel record when it is dispatched or
+ * removed; a periodic message appends a new schedule record for every run.
+ * The log is a memory-mapped segment file, so appending is a copy into
+ * memory; it is forced to disk every second and compacted by a background
+ * thread once it is mostly made of dead records or filling up. Every record
+ * carries a checksum, and loading stops at the first record that does not
+ * match it, where a crash cut the log.
+ *
+ * <p>
+ * On startup, {@link #register(String, Handler, Decoder)} sends the pending
+ * messages of a handler again, at their original time, or right away if it
+ * has passed. Missed runs of a periodic message are collapsed into one.
+ *
+ * <pre>
+ * MessageJournal journal = MessageJournal.open(new File(&quot;data/timers&quot;));
+ * journal.register(&quot;buff&quot;, buffHandler, new MessageJournal.Decoder() {
+ * 	public Object deserialize(int what, String data) {
+ * 		return Buff.parse(data);
+ * 	}
+ * });
+ * buffHandler.sendMessageDelayed(buffHandler.obtainMessage(MSG_EXPIRE, buff), 2, TimeUnit.HOURS);
+ * </pre>
+ *
+ * Only messages without a callback, whose obj is null or a
+ * {@link Serializable}, and whose delay or period is at least
+ * {@link #setMinDelay(long, TimeUnit) the minimum delay} are journaled. A
+ * process crash loses nothing that was appended; a system crash may lose the
+ * last second. Records that find the segment full are appended by the
+ * compaction they wake, so a crash just before it loses them.
+ */
+public final class MessageJournal {
+	private static final Logger LOGGER = LoggerFactory.getLogger(MessageJournal.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int MAGIC = 0x504a524e;
+	private static final int HEADER_SIZE = 8;
+	/** Length, checksum, type and id, which every record starts with. */
+	private static final int RECORD_HEADER_SIZE = 4 + 4 + 1 + 8;
+	private static final byte SCHEDULE = 1;
+	private static final byte CANCEL = 2;
+	private static final int DEFAULT_SEGMENT_SIZE = 16 << 20;
+	private static final long FORCE_INTERVAL_MILLIS = 1000;
+
+	/**
+	 * Rebuilds the obj of a journaled message from its
+	 * {@link Serializable#serialize()} form.
+	 */
+	public interface Decoder {
+		public Object deserialize(int what, String data);
+	}
+
+	private final File mDir;
+	private final int mInitialSize;
+	private volatile long mMinDelayNanos = TimeUnit.MINUTES.toNanos(1);
+
+	/** Pending schedule records by id, in log order. Guarded by this. */
+	private final LinkedHashMap<Long, Record> mPending = new LinkedHashMap<Long, Record>();
+	private final Map<String, Handler> mHandlers = new HashMap<String, Handler>();
+	private long mNextId = 1;
+
+	private int mGeneration;
+	private MappedByteBuffer mSegment;
+	/** Bytes of the segment taken by pending schedule records. */
+	private long mLiveBytes;
+	private boolean mDirty;
+	/**
+	 * A record did not fit in the segment; it is only in {@link #mPending}
+	 * until the next compaction writes it.
+	 */
+	private boolean mOverflowed;
+	private long mCompactions;
+	/** Held while rewriting, which is done without holding this. */
+	private final Object mCompactLock = new Object();
+	private boolean mClosed;
+	private final Thread mThread;
+
+	private MessageJournal(File dir, int segmentSize) {
+		mDir = dir;
+		mInitialSize = segmentSize;
+		mThread = new Thread("MessageJournal " + dir.getName()) {
+			@Override
+			public void run() {
+				maintain();
+			}
+		};
+		mThread.setDaemon(true);
+	}
+
+	/**
+	 * Opens the journal kept in dir, creating it if needed, and loads its
+	 * pending messages.
+	 */
+	public static MessageJournal open(File dir) throws IOException {
+		return open(dir, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * @param segmentSize
+	 *            initial size of the segment file; it grows when the
+	 *            pending messages do not fit
+	 */
+	public static MessageJournal open(File dir, int segmentSize) throws IOException {
+		if (segmentSize < 1024) {
+			throw new IllegalArgumentException("segment size too small: " + segmentSize);
+		}
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("cannot create " + dir);
+		}
+		MessageJournal journal = new MessageJournal(dir, segmentSize);
+		journal.load();
+		journal.mThread.start();
+		return journal;
+	}
+
+	/**
+	 * Sets the shortest delay or period of a journaled message. Shorter
+	 * timers are not worth the write; they are simply lost on restart. The
+	 * default is one minute.
+	 */
+	public void setMinDelay(long delay, TimeUnit unit) {
+		if (delay < 0) {
+			throw new IllegalArgumentException("delay must not be negative: " + delay);
+		}
+		mMinDelayNanos = unit.toNanos(delay);
+	}
+
+	/**
+	 * Starts journaling the messages of a handler under a name that must
+	 * stay the same across restarts, and sends the pending messages
+	 * journaled under that name again.
+	 *
+	 * @param decoder
+	 *            rebuilds the obj of the messages, or null if they carry none
+	 * @return the number of messages sent again
+	 */
+	public int register(String name, Handler handler, Decoder decoder) {
+		List<Record> replay = new ArrayList<Record>();
+		synchronized (this) {
+			if (mClosed) {
+				throw new IllegalStateException("journal closed");
+			}
+			if (mHandlers.containsKey(name)) {
+				throw new IllegalArgumentException("name already registered: " + name);
+			}
+			if (handler.mJournal != null) {
+				throw new IllegalStateException(handler + " is already journaled");
+			}
+			mHandlers.put(name, handler);
+			handler.mJournal = this;
+			handler.mJournalName = name;
+			for (Record r : mPending.values()) {
+				if (r.mHandler.equals(name)) {
+					replay.add(r);
+				}
+			}
+		}
+
+		long nowMillis = System.currentTimeMillis();
+		long now = System.nanoTime();
+		int sent = 0;
+		for (Record r : replay) {
+			Message msg = Message.obtain(handler, r.mWhat, r.mArg1, r.mArg2,
+					(r.mData == null || decoder == null) ? null : decoder.deserialize(r.mWhat, r.mData));
+			msg.period = r.mPeriod;
+			msg.journalId = r.mId;
+			long delay = TimeUnit.MILLISECONDS.toNanos(Math.max(0, r.mDueMillis - nowMillis));
+			if (handler.sendMessageAtTime(msg, now + delay)) {
+				sent++;
+			} else {
+				cancel(r.mId);
+			}
+		}
+		return sent;
+	}
+
+	/**
+	 * Returns the number of journaled messages not yet dispatched or
+	 * removed.
+	 */
+	public synchronized int getPendingCount() {
+		return mPending.size();
+	}
+
+	public synchronized long getCompactionCount() {
+		return mCompactions;
+	}
+
+	/**
+	 * Rewrites the segment with the pending messages only.
+	 */
+	public void compact() throws IOException {
+		synchronized (mCompactLock) {
+			while (!rewrite(mInitialSize)) {
+				synchronized (this) {
+					if (mClosed) {
+						throw new IllegalStateException("journal closed");
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forces the journal to disk and stops journaling. Messages already
+	 * scheduled keep running, but are no longer journaled.
+	 */
+	public void close() {
+		MappedByteBuffer segment;
+		synchronized (mCompactLock) {
+			while (true) {
+				synchronized (this) {
+					if (mClosed) {
+						return;
+					}
+					if (!mOverflowed) {
+						mClosed = true;
+						segment = mSegment;
+						for (Handler handler : mHandlers.values()) {
+							handler.mJournal = null;
+						}
+						notifyAll();
+						break;
+					}
+				}
+				// write the records that did not fit first
+				try {
+					rewrite(mInitialSize);
+				} catch (IOException e) {
+					LOGGER.error("cannot journal the last messages, they will be lost on restart", e);
+					synchronized (this) {
+						mOverflowed = false;
+					}
+				}
+			}
+		}
+		mThread.interrupt();
+		// senders need not wait for the disk
+		segment.force();
+	}
+
+	/**
+	 * Journals a message about to be sent, if it qualifies. Called by the
+	 * sending thread before the message is queued.
+	 */
+	void schedule(Handler handler, Message msg, long now) {
+		if (msg.journalId != 0) {
+			// sent again from the journal, already recorded
+			return;
+		}
+		long min = mMinDelayNanos;
+		if (msg.callback != null || (msg.obj != null && !(msg.obj instanceof Serializable))
+				|| (msg.time - now < min && (msg.period == 0 || Math.abs(msg.period) < min))) {
+			return;
+		}
+		String data = (msg.obj == null) ? null : ((Serializable) msg.obj).serialize();
+		long dueMillis = System.currentTimeMillis() + TimeUnit.NANOSECONDS.toMillis(msg.time - now);
+		synchronized (this) {
+			if (mClosed) {
+				return;
+			}
+			Record r = new Record(mNextId++, handler.mJournalName, msg.what, msg.arg1, msg.arg2, dueMillis, msg.period,
+					data);
+			append(r);
+			msg.journalId = r.mId;
+		}
+	}
+
+	/**
+	 * Records the next run of a periodic message, whose time has just been
+	 * advanced. Called by the looper.
+	 */
+	void reschedule(Message msg) {
+		long dueMillis = System.currentTimeMillis() + TimeUnit.NANOSECONDS.toMillis(msg.time - System.nanoTime());
+		synchronized (this) {
+			Record old = mPending.get(msg.journalId);
+			if (old == null || mClosed) {
+				// removed meanwhile
+				return;
+			}
+			append(new Record(old.mId, old.mHandler, old.mWhat, old.mArg1, old.mArg2, dueMillis, old.mPeriod, old.mData));
+		}
+	}
+
+	/**
+	 * Records that a journaled message was dispatched or removed.
+	 */
+	synchronized void cancel(long id) {
+		Record old = mPending.get(id);
+		if (old == null || mClosed) {
+			return;
+		}
+		mPending.remove(id);
+		mLiveBytes -= old.size();
+		if (fits(CANCEL_SIZE)) {
+			write(CANCEL_SIZE, CANCEL, id, null);
+		}
+		if (needsCompaction()) {
+			notifyAll();
+		}
+	}
+
+	private static final int CANCEL_SIZE = RECORD_HEADER_SIZE;
+
+	/**
+	 * Appends a schedule record, replacing the pending one with the same id.
+	 * Call only when holding this.
+	 */
+	private void append(Record r) {
+		Record old = mPending.remove(r.mId);
+		if (old != null) {
+			mLiveBytes -= old.size();
+		}
+		mPending.put(r.mId, r);
+		mLiveBytes += r.size();
+		if (fits(r.size())) {
+			write(r.size(), SCHEDULE, r.mId, r);
+		}
+		if (needsCompaction()) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Returns true if a record of the given size fits in the segment. If not,
+	 * the pending records are already up to date, and the compaction that
+	 * follows writes them to a larger segment if needed; the sender does not
+	 * wait for it. Call only when holding this.
+	 */
+	private boolean fits(int size) {
+		// keep room for the terminating zero length
+		if (mSegment.remaining() >= size + 4) {
+			return true;
+		}
+		mOverflowed = true;
+		return false;
+	}
+
+	/**
+	 * Returns true if the segment is mostly made of dead records, filling
+	 * up, or missing records that did not fit. Call only when holding this.
+	 */
+	private boolean needsCompaction() {
+		int position = mSegment.position();
+		int capacity = mSegment.capacity();
+		return mOverflowed
+				|| (position > capacity / 2 && (mLiveBytes * 2 < position || mSegment.remaining() < capacity / 4));
+	}
+
+	/**
+	 * Writes one record to the segment. Call only when holding this.
+	 */
+	private void write(int size, byte type, long id, Record r) {
+		writeRecord(mSegment, size, type, id, r);
+		mDirty = true;
+	}
+
+	/**
+	 * Writes one record at the position of the segment. The length goes in
+	 * last, so that a record cut by a crash reads as the end of the log; the
+	 * checksum catches a record of which only some pages reached the disk.
+	 */
+	private static void writeRecord(ByteBuffer segment, int size, byte type, long id, Record r) {
+		int start = segment.position();
+		segment.position(start + 8);
+		segment.put(type);
+		segment.putLong(id);
+		if (r != null) {
+			r.writeTo(segment);
+		}
+		segment.putInt(start + 4, checksum(segment, start + 8, start + size));
+		segment.putInt(start, size);
+	}
+
+	/**
+	 * Returns the CRC-32 of the bytes of the segment between from and to.
+	 */
+	private static int checksum(ByteBuffer segment, int from, int to) {
+		CRC32 crc = new CRC32();
+		for (int i = from; i < to; i++) {
+			crc.update(segment.get(i));
+		}
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Writes the pending records to a new segment of the next generation and
+	 * switches to it. The records are written and forced without holding
+	 * this, so senders go on appending to the current segment meanwhile;
+	 * what changed in between is then written to the new segment before the
+	 * switch. The header goes in last, so a rewrite cut by a crash leaves
+	 * the previous generation in use. Call only when holding
+	 * {@link #mCompactLock} and not this.
+	 *
+	 * @return false if the journal was closed, or if the changes made
+	 *         meanwhile did not fit and the rewrite must be tried again
+	 */
+	private boolean rewrite(int size) throws IOException {
+		Map<Long, Record> written;
+		int generation;
+		synchronized (this) {
+			if (mClosed) {
+				return false;
+			}
+			written = new LinkedHashMap<Long, Record>(mPending);
+			generation = mGeneration + 1;
+			long needed = HEADER_SIZE + mLiveBytes + 4;
+			while (size < needed * 2 && size < Integer.MAX_VALUE / 2) {
+				size *= 2;
+			}
+		}
+		File file = segmentFile(generation);
+		MappedByteBuffer segment = map(file, size);
+		segment.position(HEADER_SIZE);
+		for (Record r : written.values()) {
+			writeRecord(segment, r.size(), SCHEDULE, r.mId, r);
+		}
+		segment.force();
+
+		File old;
+		synchronized (this) {
+			if (mClosed || !catchUp(segment, written)) {
+				if (!file.delete()) {
+					LOGGER.warn("cannot delete " + file);
+				}
+				return false;
+			}
+			segment.putInt(0, MAGIC);
+			segment.putInt(4, generation);
+			old = segmentFile(mGeneration);
+			mSegment = segment;
+			mGeneration = generation;
+			mDirty = false;
+			mOverflowed = false;
+			mCompactions++;
+		}
+		segment.force();
+		if (old.exists() && !old.delete()) {
+			LOGGER.warn("cannot delete " + old);
+		}
+		return true;
+	}
+
+	/**
+	 * Writes to a rewritten segment the records scheduled or cancelled
+	 * since the given ones were written to it. Call only when holding this.
+	 *
+	 * @return false if they do not fit
+	 */
+	private boolean catchUp(MappedByteBuffer segment, Map<Long, Record> written) {
+		long size = 0;
+		for (Record r : written.values()) {
+			if (!mPending.containsKey(r.mId)) {
+				size += CANCEL_SIZE;
+			}
+		}
+		for (Record r : mPending.values()) {
+			if (written.get(r.mId) != r) {
+				size += r.size();
+			}
+		}
+		if (segment.remaining() < size + 4) {
+			return false;
+		}
+		for (Record r : written.values()) {
+			if (!mPending.containsKey(r.mId)) {
+				writeRecord(segment, CANCEL_SIZE, CANCEL, r.mId, null);
+			}
+		}
+		for (Record r : mPending.values()) {
+			if (written.get(r.mId) != r) {
+				writeRecord(segment, r.size(), SCHEDULE, r.mId, r);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the newest complete segment of the directory, before the
+	 * background thread starts.
+	 */
+	private void load() throws IOException {
+		File[] files = mDir.listFiles();
+		int newest = 0;
+		MappedByteBuffer found = null;
+		if (files != null) {
+			for (File f : files) {
+				int generation = generationOf(f);
+				if (generation <= newest) {
+					continue;
+				}
+				MappedByteBuffer segment = map(f, 0);
+				if (segment.capacity() >= HEADER_SIZE && segment.getInt(0) == MAGIC && segment.getInt(4) == generation) {
+					newest = generation;
+					found = segment;
+				}
+			}
+		}
+		synchronized (this) {
+			if (found != null) {
+				mGeneration = newest;
+				found.position(HEADER_SIZE);
+				read(found);
+			}
+		}
+		// start from a compacted segment and drop the other generations; the
+		// rewrite has deleted the one it replaced
+		synchronized (mCompactLock) {
+			rewrite(mInitialSize);
+		}
+		if (files != null) {
+			for (File f : files) {
+				int generation = generationOf(f);
+				if (generation > 0 && generation != mGeneration && f.exists() && !f.delete()) {
+					LOGGER.warn("cannot delete " + f);
+				}
+			}
+		}
+		LOGGER.info("journal " + mDir + " loaded, " + mPending.size() + " pending messages");
+	}
+
+	/**
+	 * Reads the records of a segment up to the end of the log, or up to the
+	 * first record that is cut or corrupt.
+	 */
+	private void read(MappedByteBuffer segment) {
+		while (segment.remaining() >= 4) {
+			int start = segment.position();
+			int size = segment.getInt();
+			if (size == 0) {
+				// end of the log
+				break;
+			}
+			if (size < RECORD_HEADER_SIZE || size > segment.limit() - start
+					|| segment.getInt() != checksum(segment, start + 8, start + size)) {
+				LOGGER.warn("bad journal record, stopping at " + start);
+				break;
+			}
+			// the fields are read within the length of the record
+			ByteBuffer record = segment.duplicate();
+			record.limit(start + size);
+			byte type = record.get();
+			long id = record.getLong();
+			if (type == SCHEDULE) {
+				Record r = Record.readFrom(id, record);
+				if (r == null) {
+					LOGGER.warn("bad journal record " + id + ", stopping at " + start);
+					break;
+				}
+				Record old = mPending.remove(id);
+				if (old != null) {
+					mLiveBytes -= old.size();
+				}
+				mPending.put(id, r);
+				mLiveBytes += r.size();
+			} else if (type == CANCEL) {
+				Record old = mPending.remove(id);
+				if (old != null) {
+					mLiveBytes -= old.size();
+				}
+			} else {
+				LOGGER.warn("unknown journal record " + type + ", stopping at " + start);
+				break;
+			}
+			segment.position(start + size);
+			if (id >= mNextId) {
+				mNextId = id + 1;
+			}
+		}
+	}
+
+	/**
+	 * Background thread: forces the segment to disk every second and
+	 * compacts it when woken by a sender. Both happen without holding this,
+	 * so senders and loopers never wait for the disk.
+	 */
+	private void maintain() {
+		boolean failed = false;
+		while (true) {
+			MappedByteBuffer dirty = null;
+			boolean compact;
+			synchronized (this) {
+				if (!mClosed && (failed || !needsCompaction())) {
+					try {
+						wait(FORCE_INTERVAL_MILLIS);
+					} catch (InterruptedException e) {
+						// closed
+					}
+				}
+				if (mClosed) {
+					return;
+				}
+				compact = needsCompaction();
+				if (mDirty) {
+					dirty = mSegment;
+					mDirty = false;
+				}
+			}
+			boolean rewritten = false;
+			try {
+				if (compact) {
+					synchronized (mCompactLock) {
+						rewritten = rewrite(mInitialSize);
+					}
+				}
+				failed = false;
+			} catch (IOException e) {
+				LOGGER.error("error on journal maintenance", e);
+				failed = true;
+			}
+			if (dirty != null && !rewritten) {
+				dirty.force();
+			}
+		}
+	}
+
+	private File segmentFile(int generation) {
+		return new File(mDir, "journal-" + generation + ".log");
+	}
+
+	private static int generationOf(File f) {
+		String name = f.getName();
+		if (!name.startsWith("journal-") || !name.endsWith(".log")) {
+			return 0;
+		}
+		try {
+			return Integer.parseInt(name.substring("journal-".length(), name.length() - ".log".length()));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Maps a segment file, creating it with the given size, or at its
+	 * current size if size is 0.
+	 */
+	private static MappedByteBuffer map(File f, int size) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(f, "rw");
+		try {
+			if (size > 0) {
+				file.setLength(0);
+				file.setLength(size);
+			}
+			FileChannel channel = file.getChannel();
+			// the mapping stays valid once the file is closed
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+		} finally {
+			file.close();
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "MessageJournal (" + mDir + ") {pending=" + mPending.size() + " generation=" + mGeneration + "}";
+	}
+
+	/**
+	 * A pending journaled message.
+	 */
+	private static final class Record {
+		final long mId;
+		final String mHandler;
+		final int mWhat;
+		final int mArg1;
+		final int mArg2;
+		final long mDueMillis;
+		final long mPeriod;
+		final String mData;
+		private final byte[] mHandlerBytes;
+		private final byte[] mDataBytes;
+
+		Record(long id, String handler, int what, int arg1, int arg2, long dueMillis, long period, String data) {
+			mId = id;
+			mHandler = handler;
+			mWhat = what;
+			mArg1 = arg1;
+			mArg2 = arg2;
+			mDueMillis = dueMillis;
+			mPeriod = period;
+			mData = data;
+			mHandlerBytes = handler.getBytes(UTF8);
+			mDataBytes = (data == null) ? null : data.getBytes(UTF8);
+		}
+
+		/**
+		 * Returns the size of the whole record: length, checksum, type, id
+		 * and body.
+		 */
+		int size() {
+			return RECORD_HEADER_SIZE + 4 * 3 + 8 * 2 + 4 + mHandlerBytes.length + 4
+					+ ((mDataBytes == null) ? 0 : mDataBytes.length);
+		}
+
+		void writeTo(ByteBuffer segment) {
+			segment.putInt(mWhat);
+			segment.putInt(mArg1);
+			segment.putInt(mArg2);
+			segment.putLong(mDueMillis);
+			segment.putLong(mPeriod);
+			segment.putInt(mHandlerBytes.length);
+			segment.put(mHandlerBytes);
+			if (mDataBytes == null) {
+				segment.putInt(-1);
+			} else {
+				segment.putInt(mDataBytes.length);
+				segment.put(mDataBytes);
+			}
+		}
+
+		/**
+		 * Reads the body of a record, which ends at the limit of the buffer.
+		 *
+		 * @return the record, or null if the lengths it holds do not fit
+		 */
+		static Record readFrom(long id, ByteBuffer record) {
+			if (record.remaining() < 4 * 3 + 8 * 2 + 4) {
+				return null;
+			}
+			int what = record.getInt();
+			int arg1 = record.getInt();
+			int arg2 = record.getInt();
+			long dueMillis = record.getLong();
+			long period = record.getLong();
+			int handlerLength = record.getInt();
+			if (handlerLength < 0 || handlerLength > record.remaining() - 4) {
+				return null;
+			}
+			byte[] handler = new byte[handlerLength];
+			record.get(handler);
+			int length = record.getInt();
+			String data = null;
+			if (length > record.remaining()) {
+				return null;
+			}
+			if (length >= 0) {
+				byte[] bytes = new byte[length];
+				record.get(bytes);
+				data = new String(bytes, UTF8);
+			}
+			return new Record(id, new String(handler, UTF8), what, arg1, arg2, dueMillis, period, data);
+		}
+	}
+}
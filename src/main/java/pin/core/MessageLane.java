@@ -0,0 +1,132 @@
+package pin.core;
+
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Unbounded lock-free multi-producer/single-consumer FIFO of messages that are
+ * already due.
+ *
+ * <p>
+ * This is Dmitry Vyukov's intrusive MPSC node queue: a producer publishes a
+ * message by swapping it into the tail with a single atomic exchange and then
+ * linking the previous tail to it, so {@link #offer} never blocks and never
+ * allocates. Messages enqueued by one producer are always polled in the order
+ * that producer offered them. Only the thread that owns the lane (the looper
+ * thread) may call {@link #peek}, {@link #poll} and {@link #isEmpty}.
+ */
+final class MessageLane implements Lane {
+	private static final AtomicReferenceFieldUpdater<MessageLane, Message> TAIL_UPDATER = AtomicReferenceFieldUpdater.newUpdater(
+			MessageLane.class, Message.class, "mTail");
+	private static final AtomicReferenceFieldUpdater<Message, Message> NEXT_UPDATER = AtomicReferenceFieldUpdater.newUpdater(
+			Message.class, Message.class, "laneNext");
+
+	/**
+	 * Placeholder node that keeps the lane non-empty from the producers' point
+	 * of view; it is pushed back whenever the consumer takes the last message.
+	 */
+	private final Message mStub = new Message();
+
+	/** Next node to poll, only touched by the consumer. */
+	private Message mHead;
+
+	/** Last node offered, swapped by producers. */
+	private volatile Message mTail;
+
+	MessageLane() {
+		mHead = mStub;
+		mTail = mStub;
+	}
+
+	/**
+	 * Appends a message. Safe to call from any thread.
+	 */
+	@Override
+	public boolean offer(Message msg) {
+		NEXT_UPDATER.lazySet(msg, null);
+		Message prev = TAIL_UPDATER.getAndSet(this, msg);
+		// Between the exchange and this store the lane is momentarily
+		// unlinked; poll() treats that window as "not yet visible".
+		NEXT_UPDATER.lazySet(prev, msg);
+		return true;
+	}
+
+	@Override
+	public boolean offer(Handler target, int what, int arg1, int arg2, Object obj, Runnable callback) {
+		Message msg = Message.obtain(target, what, arg1, arg2, obj);
+		msg.callback = callback;
+		long now = System.nanoTime();
+		msg.when = now;
+		msg.time = now;
+		return offer(msg);
+	}
+
+	/**
+	 * Returns the oldest message without removing it, or null if there is
+	 * none visible yet. Consumer only.
+	 */
+	@Override
+	public Message peek() {
+		Message head = mHead;
+		if (head == mStub) {
+			return head.laneNext;
+		}
+		return head;
+	}
+
+	/**
+	 * Removes and returns the oldest message, or null if the lane is empty or
+	 * a producer is half way through an offer. Consumer only.
+	 */
+	@Override
+	public Message poll() {
+		Message head = mHead;
+		Message next = head.laneNext;
+		if (head == mStub) {
+			if (next == null) {
+				return null;
+			}
+			mHead = next;
+			head = next;
+			next = next.laneNext;
+		}
+		if (next != null) {
+			mHead = next;
+			NEXT_UPDATER.lazySet(head, null);
+			return head;
+		}
+		if (head != mTail) {
+			// a producer has swapped the tail but not linked it yet
+			return null;
+		}
+		offer(mStub);
+		next = head.laneNext;
+		if (next != null) {
+			mHead = next;
+			NEXT_UPDATER.lazySet(head, null);
+			return head;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns true if nothing has been offered since the last message was
+	 * polled. A lane with an offer in progress is not empty. Consumer only.
+	 */
+	@Override
+	public boolean isEmpty() {
+		return mHead == mStub && mTail == mStub;
+	}
+
+	@Override
+	public void release(Message msg) {
+		msg.recycle();
+	}
+
+	/**
+	 * Nothing to do: the lane is unbounded, so no producer ever waits, and
+	 * the {@link MessageQueue} refuses sends once it is quitting.
+	 */
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,288 @@
+package pin.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The pool behind {@link Message#obtain()} and {@link Message#recycle()}.
+ *
+ * <p>
+ * Every thread owns a small local pool that it uses without any
+ * synchronization. When a local pool runs dry it takes a whole batch from a
+ * shared overflow tier, and when it fills up it hands half of its messages
+ * over as one batch, so the shared lock is taken once per batch rather than
+ * once per message. This matters for the usual pattern of producers obtaining
+ * messages on their own threads and the looper recycling them on another one:
+ * the looper's local pool keeps spilling into the overflow tier and the
+ * producers keep refilling from it, and in steady state nothing is allocated.
+ *
+ * <p>
+ * Virtual threads skip the local pool and take and return single messages
+ * straight from the overflow tier: they are usually short lived, and a batch
+ * taken by one would die with it.
+ *
+ * <p>
+ * The capacities can be changed at any time with {@link #setCapacity}. Hit
+ * and miss counters are process wide; hits are counted per thread and
+ * published every {@value #HIT_FLUSH_THRESHOLD} hits and whenever the thread
+ * exchanges a batch with the overflow tier. {@link #getHitCount()} is
+ * therefore approximate: it lags behind slightly, and misses the hits a
+ * thread counted since its last batch exchange if the thread dies.
+ */
+public final class MessagePool {
+	private static final int DEFAULT_LOCAL_CAPACITY = 256;
+	private static final int DEFAULT_GLOBAL_CAPACITY = 64 * 1024;
+	private static final int HIT_FLUSH_THRESHOLD = 1024;
+
+	private static volatile int sLocalCapacity = DEFAULT_LOCAL_CAPACITY;
+	private static volatile int sGlobalCapacity = DEFAULT_GLOBAL_CAPACITY;
+
+	private static final ThreadLocal<LocalPool> sLocalPool = new ThreadLocal<LocalPool>() {
+		@Override
+		protected LocalPool initialValue() {
+			return new LocalPool(VirtualThreads.isVirtual(Thread.currentThread()));
+		}
+	};
+
+	/**
+	 * 全局溢出层, 以批为单位存取, 用sGlobalLock加锁
+	 */
+	private static final Object sGlobalLock = new Object();
+	private static Message[] sBatches = new Message[16];
+	private static int[] sBatchSizes = new int[16];
+	private static int sBatchCount;
+	private static int sGlobalSize;
+
+	private static final AtomicLong sHits = new AtomicLong();
+	private static final AtomicLong sMisses = new AtomicLong();
+	private static final AtomicLong sDiscards = new AtomicLong();
+
+	/**
+	 * 私有构造函数
+	 */
+	private MessagePool() {
+
+	}
+
+	/**
+	 * Sets how many messages each thread keeps for itself and how many the
+	 * shared overflow tier holds. Messages recycled beyond both are left to
+	 * the garbage collector.
+	 *
+	 * @param localCapacity
+	 *            messages per thread, at least 1
+	 * @param globalCapacity
+	 *            messages in the overflow tier, 0 to disable it
+	 */
+	public static void setCapacity(int localCapacity, int globalCapacity) {
+		if (localCapacity < 1 || globalCapacity < 0) {
+			throw new IllegalArgumentException();
+		}
+		sLocalCapacity = localCapacity;
+		sGlobalCapacity = globalCapacity;
+	}
+
+	public static int getLocalCapacity() {
+		return sLocalCapacity;
+	}
+
+	public static int getGlobalCapacity() {
+		return sGlobalCapacity;
+	}
+
+	/**
+	 * Returns how many times {@link Message#obtain()} was served from a pool.
+	 */
+	public static long getHitCount() {
+		return sHits.get();
+	}
+
+	/**
+	 * Returns how many times {@link Message#obtain()} had to allocate.
+	 */
+	public static long getMissCount() {
+		return sMisses.get();
+	}
+
+	/**
+	 * Returns how many recycled messages were dropped because every tier was
+	 * full.
+	 */
+	public static long getDiscardCount() {
+		return sDiscards.get();
+	}
+
+	/**
+	 * Returns how many messages the overflow tier holds right now.
+	 */
+	public static int getGlobalSize() {
+		synchronized (sGlobalLock) {
+			return sGlobalSize;
+		}
+	}
+
+	static Message obtain() {
+		LocalPool local = sLocalPool.get();
+		if (local.virtual) {
+			return obtainShared();
+		}
+		if (local.head == null && !refill(local)) {
+			sMisses.incrementAndGet();
+			return new Message();
+		}
+		Message m = local.head;
+		local.head = m.next;
+		m.next = null;
+		local.size--;
+		if (++local.pendingHits == HIT_FLUSH_THRESHOLD) {
+			sHits.addAndGet(HIT_FLUSH_THRESHOLD);
+			local.pendingHits = 0;
+		}
+		return m;
+	}
+
+	static void recycle(Message m) {
+		LocalPool local = sLocalPool.get();
+		if (local.virtual) {
+			recycleShared(m);
+			return;
+		}
+		if (local.size >= sLocalCapacity) {
+			spill(local);
+		}
+		m.next = local.head;
+		local.head = m;
+		local.size++;
+	}
+
+	/**
+	 * Takes a single message from the overflow tier, for a thread without a
+	 * local pool.
+	 */
+	private static Message obtainShared() {
+		synchronized (sGlobalLock) {
+			if (sBatchCount > 0) {
+				int i = sBatchCount - 1;
+				Message m = sBatches[i];
+				sBatches[i] = m.next;
+				if (--sBatchSizes[i] == 0) {
+					sBatchCount = i;
+				}
+				sGlobalSize--;
+				m.next = null;
+				sHits.incrementAndGet();
+				return m;
+			}
+		}
+		sMisses.incrementAndGet();
+		return new Message();
+	}
+
+	/**
+	 * Returns a single message to the overflow tier, for a thread without a
+	 * local pool. It joins the newest batch unless that one is as large as a
+	 * spilled batch already.
+	 */
+	private static void recycleShared(Message m) {
+		synchronized (sGlobalLock) {
+			if (sGlobalSize < sGlobalCapacity) {
+				int i = sBatchCount - 1;
+				if (i < 0 || sBatchSizes[i] >= Math.max(1, sLocalCapacity >> 1)) {
+					i = addBatch();
+					sBatches[i] = null;
+					sBatchSizes[i] = 0;
+				}
+				m.next = sBatches[i];
+				sBatches[i] = m;
+				sBatchSizes[i]++;
+				sGlobalSize++;
+				return;
+			}
+		}
+		sDiscards.incrementAndGet();
+	}
+
+	/**
+	 * Moves one batch from the overflow tier into an empty local pool.
+	 */
+	private static boolean refill(LocalPool local) {
+		flushHits(local);
+		synchronized (sGlobalLock) {
+			if (sBatchCount == 0) {
+				return false;
+			}
+			int i = --sBatchCount;
+			local.head = sBatches[i];
+			local.size = sBatchSizes[i];
+			sBatches[i] = null;
+			sGlobalSize -= local.size;
+			return true;
+		}
+	}
+
+	/**
+	 * Hands half of a full local pool to the overflow tier, or drops it if
+	 * the tier is full.
+	 */
+	private static void spill(LocalPool local) {
+		int count = Math.max(1, local.size >> 1);
+		Message batch = local.head;
+		Message last = batch;
+		for (int i = 1; i < count; i++) {
+			last = last.next;
+		}
+		local.head = last.next;
+		local.size -= count;
+		last.next = null;
+
+		flushHits(local);
+		synchronized (sGlobalLock) {
+			if (sGlobalSize + count <= sGlobalCapacity) {
+				int i = addBatch();
+				sBatches[i] = batch;
+				sBatchSizes[i] = count;
+				sGlobalSize += count;
+				return;
+			}
+		}
+		sDiscards.addAndGet(count);
+	}
+
+	/**
+	 * Appends a batch slot to the overflow tier, growing it if needed, and
+	 * returns its index. Call with sGlobalLock held.
+	 */
+	private static int addBatch() {
+		if (sBatchCount == sBatches.length) {
+			Message[] batches = new Message[sBatchCount << 1];
+			int[] sizes = new int[sBatchCount << 1];
+			System.arraycopy(sBatches, 0, batches, 0, sBatchCount);
+			System.arraycopy(sBatchSizes, 0, sizes, 0, sBatchCount);
+			sBatches = batches;
+			sBatchSizes = sizes;
+		}
+		return sBatchCount++;
+	}
+
+	/**
+	 * Publishes the hits a thread has counted so far; done at every batch
+	 * exchange, so that few are lost when the thread dies.
+	 */
+	private static void flushHits(LocalPool local) {
+		if (local.pendingHits != 0) {
+			sHits.addAndGet(local.pendingHits);
+			local.pendingHits = 0;
+		}
+	}
+
+	private static final class LocalPool {
+		/** True on a virtual thread, which does not use its local pool. */
+		final boolean virtual;
+		Message head;
+		int size;
+		int pendingHits;
+
+		LocalPool(boolean virtual) {
+			this.virtual = virtual;
+		}
+	}
+}
@@ -0,0 +1,1326 @@
+package pin.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The queue of a {@link Looper}. Messages that are already due when they are
+ * sent go through a lock-free {@link Lane}, either the unbounded
+ * {@link MessageLane} or the preallocated {@link RingLane}, so producers
+ * posting immediate work never contend on a lock; messages scheduled for
+ * later (and every periodic message) are kept in a {@link TimerQueue}, either
+ * the {@link Looper.DelayedWorkQueue} heap or a {@link TimingWheel}.
+ * {@link #next()} merges both by trigger time.
+ *
+ * <p>
+ * Messages sent by one thread through the lane are dispatched in the order
+ * they were sent. Only the looper thread may call {@link #next()}.
+ *
+ * <p>
+ * Due messages with a {@link Message#setPriority(int) priority} go through
+ * one extra {@link MessageLane} per priority and are taken before anything of
+ * a lower priority, the timers included, which are never re-sorted for it.
+ * To keep the lower levels from starving, a priority lane lets one message
+ * of the levels below through after {@value #PRIORITY_BURST} of its own in a
+ * row.
+ *
+ * <p>
+ * The depth of the queue is the number of messages sent and not yet taken
+ * for dispatch or removed, periodic messages counting once. With a capacity
+ * set, the {@link OverflowPolicy} decides what happens to a message sent to
+ * a full queue.
+ *
+ * <p>
+ * Due messages of {@link Handler#setStealable(boolean) stealable} handlers
+ * go through a shared queue instead of the lane, merged with it by time.
+ * The loopers of a {@link LooperGroup} are peers: one that runs out of work
+ * takes messages from the shared queues of the others before it parks.
+ */
+final class MessageQueue {
+	private final Lane mLane;
+
+	/** The lanes of the priorities above normal, by priority - 1. */
+	private final MessageLane[] mPriorityLanes = new MessageLane[Message.PRIORITY_URGENT];
+	/** Messages taken in a row from each priority lane. Looper thread only. */
+	private final int[] mStreaks = new int[Message.PRIORITY_URGENT];
+	static final int PRIORITY_BURST = 16;
+	private final TimerQueue mTimers;
+	private final WaitStrategy mWaitStrategy;
+	private final Thread mLooperThread;
+
+	/**
+	 * True for a looper in fixed-tick mode, which only takes the lane
+	 * messages sent before the start of the current tick.
+	 */
+	private final boolean mTicked;
+
+	/**
+	 * Granularity of the timer wake-ups, see
+	 * {@link LooperConfig#setTimerSlack}, or 0.
+	 */
+	private final long mSlackNanos;
+
+	/** Maximum depth, 0 if unbounded. */
+	private final int mCapacity;
+	private final OverflowPolicy mPolicy;
+	private final long mBlockNanos;
+
+	/** Messages ever admitted. */
+	private final AtomicLong mEnqueued = new AtomicLong();
+	/** Messages ever taken or dropped by the looper; looper thread only. */
+	private final AtomicLong mRetired = new AtomicLong();
+	/** Messages ever removed by handlers. */
+	private final AtomicLong mRemoved = new AtomicLong();
+	private final AtomicLong mOverflows = new AtomicLong();
+	private volatile int mPeakDepth;
+	/** Times the looper thread parked; looper thread only. */
+	private volatile long mParks;
+
+	/** Guards the wait of producers blocked on a full queue. */
+	private final ReentrantLock mLock = new ReentrantLock();
+	private final Condition mNotFull = mLock.newCondition();
+	/** Number of producers waiting on mNotFull, changed under mLock. */
+	private volatile int mBlocked;
+
+	/**
+	 * Timers drained by {@link #nextBatch} that did not fit into the batch,
+	 * from mDrainedPos to mDrainedCount. Looper thread only.
+	 */
+	private Message[] mDrained;
+	private int mDrainedPos;
+	private int mDrainedCount;
+
+	/**
+	 * Due messages of stealable handlers, taken by the looper or by an idle
+	 * peer.
+	 */
+	private final ConcurrentLinkedQueue<Message> mShared = new ConcurrentLinkedQueue<Message>();
+	/** The other queues of the group, or null if there are none. */
+	private volatile MessageQueue[] mPeers;
+	/** The peer to steal from first. Looper thread only. */
+	private int mVictim;
+	/** Messages taken from peers; looper thread only. */
+	private volatile long mSteals;
+
+	/** The looper thread while it is parked waiting for work, else null. */
+	private volatile Thread mWaiter;
+	private volatile boolean mQuitting;
+
+	/** Busy spins of {@link WaitStrategy#SPIN_THEN_PARK} before it yields. */
+	private static final int SPIN_TRIES = 1000;
+	/** Yields of {@link WaitStrategy#SPIN_THEN_PARK} before it parks. */
+	private static final int YIELD_TRIES = 100;
+
+	/**
+	 * Creates the queue of the looper of the calling thread.
+	 */
+	MessageQueue(Lane lane, TimerQueue timers, LooperConfig config) {
+		mLane = lane;
+		for (int i = 0; i < mPriorityLanes.length; i++) {
+			mPriorityLanes[i] = new MessageLane();
+		}
+		mTimers = timers;
+		mWaitStrategy = config.getWaitStrategy();
+		mCapacity = config.getCapacity();
+		mPolicy = config.getOverflowPolicy();
+		mBlockNanos = config.getBlockTimeout();
+		mLooperThread = Thread.currentThread();
+		mTicked = config.getTickPeriod() > 0;
+		mSlackNanos = config.getTimerSlack();
+	}
+
+	/**
+	 * Enqueues a message whose {@link Message#time} and {@link Message#when}
+	 * have been set by the sender.
+	 *
+	 * @return false if the looper is quitting or the queue is full, and the
+	 *         message was not queued
+	 */
+	boolean enqueueMessage(Message msg) {
+		if (mQuitting) {
+			return false;
+		}
+		if (!reserve()) {
+			return overflow(msg);
+		}
+		if (msg.period == 0 && msg.time - msg.when <= 0) {
+			if (isShared(msg)) {
+				if (msg.target.mTracking || mPolicy == OverflowPolicy.COALESCE) {
+					track(msg);
+				}
+				mShared.offer(msg);
+				signal();
+				wakePeer();
+				return true;
+			}
+			Lane lane = laneFor(msg);
+			if (tracks(msg.target, lane)) {
+				track(msg);
+			}
+			if (!lane.offer(msg)) {
+				removed();
+				ringFull();
+				return false;
+			}
+		} else {
+			MessageIndex index = msg.target.mIndex;
+			synchronized (index) {
+				index.add(msg);
+				if (!mTimers.schedule(msg)) {
+					// the looper is not going to wake up any earlier for it
+					return true;
+				}
+			}
+		}
+		signal();
+		return true;
+	}
+
+	/**
+	 * Enqueues a message with the given contents that is due now. On a
+	 * {@link RingLane} the contents are written straight into a slot, without
+	 * any message being obtained.
+	 *
+	 * @return false if the looper is quitting or the queue is full, and the
+	 *         message was not queued
+	 */
+	boolean enqueue(Handler target, int what, int arg1, int arg2, Object obj, Runnable callback) {
+		if (tracks(target, mLane) || (target.mStealable && !mTicked)) {
+			// tracking needs a message that can be indexed, stealing one
+			// that can leave the queue
+			Message msg = Message.obtain(target, what, arg1, arg2, obj);
+			msg.callback = callback;
+			long now = System.nanoTime();
+			msg.when = now;
+			msg.time = now;
+			if (!enqueueMessage(msg)) {
+				msg.recycle();
+				return false;
+			}
+			return true;
+		}
+		if (mQuitting) {
+			return false;
+		}
+		if (!reserve()) {
+			mOverflows.incrementAndGet();
+			return false;
+		}
+		if (!mLane.offer(target, what, arg1, arg2, obj, callback)) {
+			removed();
+			ringFull();
+			return false;
+		}
+		signal();
+		return true;
+	}
+
+	/**
+	 * Enqueues a message that is due now, or merges it into the pending
+	 * message with the same key sent the same way. Such messages are tracked
+	 * in the index while they wait in the lane, or, on a looper with a ring
+	 * buffer, queued with the timers.
+	 *
+	 * @return false if the looper is quitting or the queue is full, and the
+	 *         message was not queued
+	 */
+	boolean enqueueCoalesced(Message msg, boolean matchObj) {
+		if (mQuitting) {
+			return false;
+		}
+		MessageIndex index = msg.target.mIndex;
+		// a merge needs no room, so look before reserving
+		if (merge(index, msg, matchObj)) {
+			return true;
+		}
+		if (!reserve()) {
+			return overflow(msg);
+		}
+		boolean viaTimers = msg.priority == Message.PRIORITY_NORMAL && !(mLane instanceof MessageLane);
+		boolean earliest = false;
+		synchronized (index) {
+			if (merge(index, msg, matchObj)) {
+				// lost a race with another sender of the same key
+				removed();
+				return true;
+			}
+			msg.flags |= Message.FLAG_COALESCED | (matchObj ? Message.FLAG_MATCH_OBJ : 0);
+			if (viaTimers) {
+				index.add(msg);
+				earliest = mTimers.schedule(msg);
+			} else {
+				msg.flags |= Message.FLAG_TRACKED;
+				index.add(msg);
+			}
+		}
+		if (!viaTimers) {
+			// a tracked message always goes to a MessageLane, which never
+			// refuses
+			laneFor(msg).offer(msg);
+			earliest = true;
+		}
+		if (earliest) {
+			signal();
+		}
+		return true;
+	}
+
+	/**
+	 * Hands the contents of msg to the pending coalesced message with the
+	 * same key, if any, and recycles msg.
+	 */
+	private boolean merge(MessageIndex index, Message msg, boolean matchObj) {
+		synchronized (index) {
+			Message pending = index.findCoalesced(msg.what, msg.obj, matchObj);
+			if (pending == null) {
+				return false;
+			}
+			// the looper reads the contents only after claiming it under
+			// this lock
+			pending.arg1 = msg.arg1;
+			pending.arg2 = msg.arg2;
+			pending.obj = msg.obj;
+		}
+		msg.recycle();
+		return true;
+	}
+
+	/**
+	 * Returns true if the due message goes through the shared queue. Fixed
+	 * tick loopers keep every message, since peers would not respect their
+	 * ticks.
+	 */
+	private boolean isShared(Message msg) {
+		return msg.target.mStealable && msg.priority == Message.PRIORITY_NORMAL && !mTicked;
+	}
+
+	/**
+	 * Sets the queues this one steals from when idle, and that steal from it.
+	 */
+	void setPeers(MessageQueue[] peers) {
+		mPeers = peers;
+	}
+
+	long stealCount() {
+		return mSteals;
+	}
+
+	/**
+	 * Unparks an idle peer for a shared message, unless the looper itself is
+	 * parked and going to take it. The looper may have been signalled and be
+	 * about to run something long, so it checks for shared messages again in
+	 * {@link #handOff()}.
+	 */
+	private void wakePeer() {
+		if (mWaiter == null) {
+			unparkPeer();
+		}
+	}
+
+	/**
+	 * Called by the looper before it dispatches: leaves the shared messages
+	 * to an idle peer rather than have them wait behind this dispatch.
+	 */
+	private void handOff() {
+		if (mPeers != null && !mShared.isEmpty()) {
+			unparkPeer();
+		}
+	}
+
+	private void unparkPeer() {
+		MessageQueue[] peers = mPeers;
+		if (peers == null) {
+			return;
+		}
+		for (MessageQueue peer : peers) {
+			Thread waiter = peer.mWaiter;
+			if (waiter != null) {
+				LockSupport.unpark(waiter);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Takes a shared message from a peer, trying each in turn from the one
+	 * after the last victim. The message leaves the depth of the peer, as if
+	 * it had been removed, once it is claimed with {@link #take(Message)}.
+	 */
+	private Message steal() {
+		MessageQueue[] peers = mPeers;
+		if (peers == null) {
+			return null;
+		}
+		for (int i = 0; i < peers.length; i++) {
+			int victim = mVictim;
+			mVictim = (victim + 1) % peers.length;
+			MessageQueue peer = peers[victim];
+			if (peer.mQuitting) {
+				continue;
+			}
+			Message msg = peer.mShared.poll();
+			if (msg != null) {
+				mSteals++;
+				return msg;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns true if a peer has a shared message to steal.
+	 */
+	private boolean canSteal() {
+		MessageQueue[] peers = mPeers;
+		if (peers == null) {
+			return false;
+		}
+		for (MessageQueue peer : peers) {
+			if (!peer.mShared.isEmpty() && !peer.mQuitting) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private Lane laneFor(Message msg) {
+		return (msg.priority == Message.PRIORITY_NORMAL) ? mLane : mPriorityLanes[msg.priority - 1];
+	}
+
+	/**
+	 * Admits one more message, applying the overflow policy if the queue is
+	 * full: {@link OverflowPolicy#DROP_OLDEST} admits it anyway and
+	 * {@link OverflowPolicy#BLOCK} waits for room, except on the looper
+	 * thread, which would wait for itself.
+	 *
+	 * @return false if the message may not be queued
+	 */
+	private boolean reserve() {
+		if (mCapacity == 0) {
+			updatePeak(mEnqueued.incrementAndGet());
+			return true;
+		}
+		long deadline = 0;
+		boolean waited = false;
+		for (;;) {
+			long enqueued = mEnqueued.get();
+			boolean full = enqueued - retired() >= mCapacity;
+			if (!full || mPolicy == OverflowPolicy.DROP_OLDEST) {
+				if (mEnqueued.compareAndSet(enqueued, enqueued + 1)) {
+					if (full) {
+						// the looper drops the oldest due message for it
+						mOverflows.incrementAndGet();
+					}
+					updatePeak(enqueued + 1);
+					return true;
+				}
+			} else if (mPolicy != OverflowPolicy.BLOCK || Thread.currentThread() == mLooperThread) {
+				return false;
+			} else {
+				if (!waited) {
+					deadline = System.nanoTime() + mBlockNanos;
+					waited = true;
+				}
+				if (!awaitRoom(deadline)) {
+					return false;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Handles a message that found the queue full.
+	 *
+	 * @return true if the message was coalesced into a queued one
+	 */
+	private boolean overflow(Message msg) {
+		mOverflows.incrementAndGet();
+		return mPolicy == OverflowPolicy.COALESCE && coalesce(msg);
+	}
+
+	/**
+	 * Merges a message into a queued one of the same target, what and obj
+	 * that is due no later, by handing over its args. Periodic messages and
+	 * runnables are never merged, nor are messages waiting for a
+	 * {@link Reply} or journaled ones, whose records would replay the wrong
+	 * args. The message is recycled on success.
+	 */
+	private boolean coalesce(Message msg) {
+		if (msg.callback != null || msg.period != 0 || msg.reply != null || msg.journalId != 0) {
+			return false;
+		}
+		MessageIndex index = msg.target.mIndex;
+		synchronized (index) {
+			for (Message m = index.first(msg.what); m != null; m = m.indexNext) {
+				if (m.obj == msg.obj && m.period == 0 && m.time - msg.time <= 0 && m.reply == null
+						&& m.journalId == 0 && (m.flags & Message.FLAG_CANCELLED) == 0) {
+					// the looper reads the args only after claiming it
+					// under this lock
+					m.arg1 = msg.arg1;
+					m.arg2 = msg.arg2;
+					msg.recycle();
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns true if a due message of the target is indexed while it waits
+	 * in the given lane: always on a looper that coalesces, else if the
+	 * target tracks its messages and the lane keeps them as they are, which
+	 * a ring buffer does not.
+	 */
+	private boolean tracks(Handler target, Lane lane) {
+		return mPolicy == OverflowPolicy.COALESCE || (target.mTracking && lane instanceof MessageLane);
+	}
+
+	/**
+	 * Indexes a message that goes through the lane, so that it can be
+	 * coalesced or removed like a scheduled one.
+	 */
+	private void track(Message msg) {
+		MessageIndex index = msg.target.mIndex;
+		synchronized (index) {
+			msg.flags |= Message.FLAG_TRACKED;
+			index.add(msg);
+		}
+	}
+
+	/**
+	 * Counts a message that a lane refused while the looper runs, which only
+	 * a full ring does, as an overflow.
+	 */
+	private void ringFull() {
+		if (!mQuitting) {
+			mOverflows.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Waits until the queue has room, the deadline passes or the looper
+	 * quits.
+	 *
+	 * @return true if there is room
+	 */
+	private boolean awaitRoom(long deadline) {
+		final ReentrantLock lock = mLock;
+		lock.lock();
+		try {
+			mBlocked++;
+			try {
+				// mBlocked is written before the depth is read, and the
+				// looper retires before it reads mBlocked, so one of the two
+				// sees the other
+				while (!mQuitting && depth() >= mCapacity) {
+					long nanos = deadline - System.nanoTime();
+					if (nanos <= 0) {
+						return false;
+					}
+					mNotFull.awaitNanos(nanos);
+				}
+				return !mQuitting;
+			} finally {
+				mBlocked--;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void wakeBlocked(boolean all) {
+		final ReentrantLock lock = mLock;
+		lock.lock();
+		try {
+			if (all) {
+				mNotFull.signalAll();
+			} else {
+				mNotFull.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Counts a message taken for dispatch or dropped. Looper thread only.
+	 */
+	private void retire() {
+		// a volatile store, which orders it before the read of mBlocked
+		mRetired.set(mRetired.get() + 1);
+		if (mBlocked != 0) {
+			wakeBlocked(false);
+		}
+	}
+
+	/**
+	 * Counts a message removed before the looper took it.
+	 */
+	private void removed() {
+		mRemoved.incrementAndGet();
+		if (mBlocked != 0) {
+			wakeBlocked(false);
+		}
+	}
+
+	/**
+	 * Counts a message of the target taken for dispatch out of the queue it
+	 * was sent to: this one, or the peer it was stolen from. Looper thread
+	 * only.
+	 */
+	private void retire(Handler target) {
+		MessageQueue owner = target.getLooper().mQueue;
+		if (owner == this) {
+			retire();
+		} else {
+			owner.removed();
+		}
+	}
+
+	private long retired() {
+		return mRetired.get() + mRemoved.get();
+	}
+
+	private void updatePeak(long enqueued) {
+		int depth = (int) (enqueued - retired());
+		if (depth > mPeakDepth) {
+			// racy, a concurrent larger peak may be lost
+			mPeakDepth = depth;
+		}
+	}
+
+	/**
+	 * Returns the number of messages queued: sent and neither taken for
+	 * dispatch nor removed.
+	 */
+	int depth() {
+		long retired = retired();
+		return (int) (mEnqueued.get() - retired);
+	}
+
+	int peakDepth() {
+		return mPeakDepth;
+	}
+
+	int capacity() {
+		return mCapacity;
+	}
+
+	/**
+	 * Returns how many messages found the queue full: rejected, timed out,
+	 * coalesced or admitted in place of a dropped one.
+	 */
+	long overflowCount() {
+		return mOverflows.get();
+	}
+
+	long parkCount() {
+		return mParks;
+	}
+
+	/**
+	 * Hands a dispatched message of the lane back: a ring slot is freed for
+	 * the producers, any other message is recycled.
+	 */
+	void release(Message msg) {
+		mLane.release(msg);
+	}
+
+	/**
+	 * Schedules the next run of a periodic message that has just been
+	 * dispatched, or recycles it if it was removed in the meantime.
+	 */
+	void requeue(Message msg) {
+		MessageIndex index = msg.target.mIndex;
+		boolean scheduled;
+		boolean earliest = false;
+		Reply<?> reply = null;
+		synchronized (index) {
+			scheduled = !mQuitting && (msg.flags & Message.FLAG_CANCELLED) == 0;
+			if (scheduled) {
+				earliest = mTimers.schedule(msg);
+			} else {
+				index.remove(msg);
+				reply = msg.reply;
+				msg.recycle();
+			}
+		}
+		if (!scheduled) {
+			retire();
+			failReply(reply, "message removed");
+		} else if (earliest) {
+			signal();
+		}
+	}
+
+	/**
+	 * Drops a periodic message whose handler threw while dispatching it: it
+	 * leaves the index and the journal, is counted out and recycled.
+	 */
+	void abandon(Message msg) {
+		Handler target = msg.target;
+		if (msg.journalId != 0) {
+			MessageJournal journal = target.mJournal;
+			if (journal != null) {
+				journal.cancel(msg.journalId);
+			}
+		}
+		MessageIndex index = target.mIndex;
+		synchronized (index) {
+			index.remove(msg);
+			msg.recycle();
+		}
+		retire();
+	}
+
+	/**
+	 * Removes the scheduled messages of a handler with the given what, and
+	 * the given obj unless it is null.
+	 */
+	void removeMessages(Handler h, int what, Object object) {
+		MessageIndex index = h.mIndex;
+		List<Reply<?>> replies = null;
+		synchronized (index) {
+			Message msg = index.first(what);
+			while (msg != null) {
+				Message next = msg.indexNext;
+				if (object == null || msg.obj == object) {
+					replies = cancel(index, msg, replies);
+				}
+				msg = next;
+			}
+		}
+		failReplies(replies);
+	}
+
+	/**
+	 * Removes the scheduled messages of a handler that carry the given
+	 * callback, and the given obj unless it is null.
+	 */
+	void removeCallbacks(Handler h, Runnable r, Object object) {
+		MessageIndex index = h.mIndex;
+		List<Reply<?>> replies = null;
+		synchronized (index) {
+			Message msg = index.firstCallback();
+			while (msg != null) {
+				Message next = msg.indexNext;
+				if (msg.callback == r && (object == null || msg.obj == object)) {
+					replies = cancel(index, msg, replies);
+				}
+				msg = next;
+			}
+		}
+		failReplies(replies);
+	}
+
+	boolean hasMessages(Handler h, int what, Object object) {
+		MessageIndex index = h.mIndex;
+		synchronized (index) {
+			for (Message msg = index.first(what); msg != null; msg = msg.indexNext) {
+				if (object == null || msg.obj == object) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Takes a message out of the index and the timers. A message that is not
+	 * in the timers is in the lane or being dispatched; it is flagged so that
+	 * the looper recycles it instead of dispatching or rescheduling it. Call
+	 * only when holding the index lock.
+	 *
+	 * @param replies
+	 *            the replies of the messages recycled so far, or null
+	 * @return replies, with the reply of msg added if it was recycled now
+	 */
+	private List<Reply<?>> cancel(MessageIndex index, Message msg, List<Reply<?>> replies) {
+		index.remove(msg);
+		if (msg.journalId != 0) {
+			MessageJournal journal = msg.target.mJournal;
+			if (journal != null) {
+				journal.cancel(msg.journalId);
+			}
+		}
+		if ((msg.flags & Message.FLAG_TRACKED) != 0) {
+			// still in the lane: counted out now, recycled when polled
+			msg.flags |= Message.FLAG_CANCELLED;
+			replies = addReply(replies, msg);
+			removed();
+		} else if (mTimers.cancel(msg)) {
+			replies = addReply(replies, msg);
+			msg.recycle();
+			removed();
+		} else {
+			msg.flags |= Message.FLAG_CANCELLED;
+		}
+		return replies;
+	}
+
+	private static List<Reply<?>> addReply(List<Reply<?>> replies, Message msg) {
+		if (msg.reply != null) {
+			if (replies == null) {
+				replies = new ArrayList<Reply<?>>();
+			}
+			replies.add(msg.reply);
+		}
+		return replies;
+	}
+
+	private static void failReplies(List<Reply<?>> replies) {
+		if (replies != null) {
+			for (Reply<?> reply : replies) {
+				failReply(reply, "message removed");
+			}
+		}
+	}
+
+	/**
+	 * Fails the reply of a message that is removed or dropped, unless it is
+	 * complete. Call without holding any lock: a reply made off a looper
+	 * runs its callbacks right away.
+	 */
+	private static void failReply(Reply<?> reply, String why) {
+		if (reply != null && !reply.isDone()) {
+			reply.fail(new CancellationException(why));
+		}
+	}
+
+	/**
+	 * Claims a message polled from the timers, or a tracked one polled from
+	 * the lane, for dispatch. Returns false, after recycling it, if the
+	 * message was removed while being polled.
+	 */
+	private boolean claim(Message msg) {
+		Handler target = msg.target;
+		MessageIndex index = target.mIndex;
+		boolean cancelled;
+		boolean counted = false;
+		Reply<?> reply = null;
+		synchronized (index) {
+			cancelled = (msg.flags & Message.FLAG_CANCELLED) != 0;
+			if (cancelled) {
+				// cancel() has counted a tracked message out already
+				counted = (msg.flags & Message.FLAG_TRACKED) != 0;
+				reply = msg.reply;
+				msg.recycle();
+			} else if (msg.period == 0) {
+				index.remove(msg);
+			} else {
+				// a periodic message stays queued
+				return true;
+			}
+		}
+		if (!counted) {
+			retire(target);
+		}
+		failReply(reply, "message removed");
+		return !cancelled;
+	}
+
+	/**
+	 * Takes a polled message for dispatch, from the lane, the timers or a
+	 * peer. Returns false, after recycling it, if it was removed. The
+	 * messages of a batch are taken by the looper one by one, right before
+	 * each is dispatched, so that one removed by an earlier message of the
+	 * batch is not dispatched.
+	 */
+	boolean take(Message msg) {
+		if ((msg.flags & (Message.FLAG_TRACKED | Message.FLAG_INDEXED | Message.FLAG_CANCELLED)) != 0
+				|| msg.period != 0) {
+			return claim(msg);
+		}
+		retire(msg.target);
+		return true;
+	}
+
+	/**
+	 * Disposes of a message of a batch that the looper quits before
+	 * dispatching: counts it out, frees it and fails its reply. A journaled
+	 * message keeps its record, to run after a restart.
+	 */
+	void discard(Message msg) {
+		if (!take(msg)) {
+			return;
+		}
+		Reply<?> reply = msg.reply;
+		if ((msg.flags & Message.FLAG_SLOT) != 0) {
+			mLane.release(msg);
+		} else {
+			if (msg.period != 0) {
+				// claimed periodic messages stay indexed
+				MessageIndex index = msg.target.mIndex;
+				synchronized (index) {
+					index.remove(msg);
+				}
+			}
+			msg.recycle();
+		}
+		failReply(reply, "looper quit");
+	}
+
+	/**
+	 * Drops the oldest due messages while the queue holds more than its
+	 * capacity. Delayed and periodic messages are never dropped. Called
+	 * before polling, when no polled ring slot is outstanding.
+	 */
+	private void dropOverflow() {
+		while (depth() > mCapacity) {
+			Message msg = mLane.poll();
+			if (msg == null) {
+				return;
+			}
+			Reply<?> reply = msg.reply;
+			if ((msg.flags & Message.FLAG_TRACKED) != 0) {
+				if (!claim(msg)) {
+					continue;
+				}
+				msg.recycle();
+			} else {
+				mLane.release(msg);
+				retire();
+			}
+			failReply(reply, "message dropped");
+		}
+	}
+
+	private void signal() {
+		Thread waiter = mWaiter;
+		if (waiter != null) {
+			LockSupport.unpark(waiter);
+		}
+	}
+
+	/**
+	 * Blocks until a message is due and returns it, or returns null once
+	 * {@link #quit()} has been called.
+	 */
+	Message next() throws InterruptedException {
+		for (;;) {
+			if (mQuitting) {
+				return null;
+			}
+			Message msg = pollDue(System.nanoTime());
+			if (msg == null) {
+				msg = steal();
+				if (msg != null && !take(msg)) {
+					continue;
+				}
+			}
+			if (msg != null) {
+				handOff();
+				return msg;
+			}
+			await();
+		}
+	}
+
+	/**
+	 * Blocks until messages are due and stores them in batch, or returns -1
+	 * once {@link #quit()} has been called. The looper takes each message
+	 * with {@link #take(Message)} right before dispatching it.
+	 *
+	 * @return the number of messages stored at the start of batch
+	 */
+	int nextBatch(Message[] batch) throws InterruptedException {
+		if (mDrained == null || mDrained.length != batch.length) {
+			mDrained = new Message[batch.length];
+		}
+		for (;;) {
+			if (mQuitting) {
+				return -1;
+			}
+			int count = drainDue(System.nanoTime(), batch);
+			if (count == 0) {
+				Message stolen = steal();
+				if (stolen != null) {
+					batch[count++] = stolen;
+				}
+			}
+			if (count > 0) {
+				handOff();
+				return count;
+			}
+			await();
+		}
+	}
+
+	/**
+	 * Fills batch with due messages of the lane and the timers, merged by
+	 * time. All due timers are drained with one lock acquisition; those that
+	 * do not fit wait in mDrained for the next batch. The messages are left
+	 * in the index until the looper takes them.
+	 */
+	private int drainDue(long now, Message[] batch) {
+		if (mPolicy == OverflowPolicy.DROP_OLDEST) {
+			dropOverflow();
+		}
+		int max = batch.length;
+		Message[] drained = mDrained;
+		if (mDrainedPos == mDrainedCount) {
+			mDrainedPos = 0;
+			mDrainedCount = 0;
+			TimerQueue timers = mTimers;
+			if (timers.hasNext() && timers.nextTime() - now <= 0) {
+				mDrainedCount = timers.drainDue(now, drained, max);
+			}
+		}
+		int n = 0;
+		while (n < max) {
+			Message urgent = pollPriority(now);
+			if (urgent != null) {
+				batch[n++] = urgent;
+				continue;
+			}
+			Message timer = (mDrainedPos < mDrainedCount) ? drained[mDrainedPos] : null;
+			Message immediate = mLane.peek();
+			Message shared = mShared.peek();
+			boolean fromShared = shared != null && (immediate == null || shared.time - immediate.time < 0);
+			if (fromShared) {
+				immediate = shared;
+			}
+			if (timer != null && (immediate == null || timer.time - immediate.time < 0)) {
+				drained[mDrainedPos++] = null;
+				batch[n++] = timer;
+			} else if (immediate != null) {
+				// a shared message may have been stolen since the peek
+				Message msg = fromShared ? mShared.poll() : mLane.poll();
+				if (msg == null) {
+					break;
+				}
+				batch[n++] = msg;
+			} else {
+				break;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Polls the highest priority lane that has a message, unless it has used
+	 * up its burst while a lower level has work. Returns null if the normal
+	 * level is to be served.
+	 */
+	private Message pollPriority(long now) {
+		for (int i = mPriorityLanes.length - 1; i >= 0; i--) {
+			MessageLane lane = mPriorityLanes[i];
+			if (lane.isEmpty()) {
+				mStreaks[i] = 0;
+				continue;
+			}
+			if (mTicked && sentAfter(lane.peek(), now)) {
+				continue;
+			}
+			if (mStreaks[i] >= PRIORITY_BURST && hasLowerWork(i, now)) {
+				// let one message of a lower level through
+				mStreaks[i] = 0;
+				continue;
+			}
+			Message msg = lane.poll();
+			if (msg != null) {
+				mStreaks[i]++;
+				return msg;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns true if a level below the given priority lane has a message
+	 * ready.
+	 */
+	private boolean hasLowerWork(int lane, long now) {
+		for (int i = lane - 1; i >= 0; i--) {
+			if (!mPriorityLanes[i].isEmpty()) {
+				return true;
+			}
+		}
+		if (mDrainedPos < mDrainedCount || !mLane.isEmpty() || !mShared.isEmpty()) {
+			return true;
+		}
+		TimerQueue timers = mTimers;
+		return timers.hasNext() && timers.nextTime() - now <= 0;
+	}
+
+	private boolean lanesEmpty() {
+		if (!mLane.isEmpty() || !mShared.isEmpty()) {
+			return false;
+		}
+		for (MessageLane lane : mPriorityLanes) {
+			if (!lane.isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the due message of the highest priority, or the earliest due
+	 * message of the lane and the timers, or null if there is none. The timer
+	 * lock is only taken when something is due.
+	 */
+	private Message pollDue(long now) {
+		if (mPolicy == OverflowPolicy.DROP_OLDEST) {
+			dropOverflow();
+		}
+		Message urgent = pollPriority(now);
+		if (urgent != null) {
+			return take(urgent) ? urgent : null;
+		}
+		Message immediate = mLane.peek();
+		if (mTicked && sentAfter(immediate, now)) {
+			// waits for the next tick
+			immediate = null;
+		}
+		Message shared = mShared.peek();
+		boolean fromShared = shared != null && (immediate == null || shared.time - immediate.time < 0);
+		if (fromShared) {
+			immediate = shared;
+		}
+		TimerQueue timers = mTimers;
+		if (timers.hasNext()) {
+			long nextTime = timers.nextTime();
+			if (nextTime - now <= 0 && (immediate == null || nextTime - immediate.time < 0)) {
+				Message msg = timers.pollDue(now);
+				if (msg != null) {
+					// a removed message leaves nothing to return this time;
+					// next() comes straight back without parking
+					return claim(msg) ? msg : null;
+				}
+			}
+		}
+		if (immediate == null) {
+			return null;
+		}
+		// a shared message may have been stolen since the peek
+		Message msg = fromShared ? mShared.poll() : mLane.poll();
+		return (msg != null && take(msg)) ? msg : null;
+	}
+
+	private static boolean sentAfter(Message msg, long tick) {
+		return msg != null && msg.when - tick > 0;
+	}
+
+	/**
+	 * Returns the next message of a fixed tick that started at tick: a
+	 * message sent before the tick, or a timer due by then. Returns null once
+	 * there are none left or the queue is quitting.
+	 */
+	Message nextInTick(long tick) {
+		while (!mQuitting) {
+			Message msg = pollDue(tick);
+			if (msg != null) {
+				return msg;
+			}
+			if (!hasTickWork(tick)) {
+				return null;
+			}
+		}
+		return null;
+	}
+
+	private boolean hasTickWork(long tick) {
+		if (isDueInTick(mLane.peek(), tick)) {
+			return true;
+		}
+		for (MessageLane lane : mPriorityLanes) {
+			if (isDueInTick(lane.peek(), tick)) {
+				return true;
+			}
+		}
+		TimerQueue timers = mTimers;
+		return timers.hasNext() && timers.nextTime() - tick <= 0;
+	}
+
+	private static boolean isDueInTick(Message msg, long tick) {
+		return msg != null && msg.when - tick <= 0;
+	}
+
+	/**
+	 * Waits for the start of the next tick at deadline. Senders do not wake
+	 * the looper in fixed-tick mode; only {@link #quit()} does.
+	 */
+	void awaitTick(long deadline) throws InterruptedException {
+		for (;;) {
+			if (mQuitting) {
+				return;
+			}
+			long delay = deadline - System.nanoTime();
+			if (delay <= 0) {
+				return;
+			}
+			switch (mWaitStrategy) {
+			case BUSY_SPIN:
+				break;
+			case YIELD:
+				Thread.yield();
+				break;
+			default:
+				LockSupport.parkNanos(this, delay);
+				break;
+			}
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+	}
+
+	/**
+	 * Waits with the configured {@link WaitStrategy} until a producer signals
+	 * or the next timer becomes due.
+	 */
+	private void await() throws InterruptedException {
+		switch (mWaitStrategy) {
+		case BUSY_SPIN:
+			spin(-1, 0);
+			return;
+		case YIELD:
+			spin(0, -1);
+			return;
+		case SPIN_THEN_PARK:
+			if (spin(SPIN_TRIES, YIELD_TRIES)) {
+				return;
+			}
+			break;
+		default:
+			break;
+		}
+		park();
+	}
+
+	/**
+	 * Spins until there is work, first busily for spins rounds, then yielding
+	 * for yields rounds; -1 stands for no limit. Spinning looper threads are
+	 * never published as mWaiter, so producers skip the unpark.
+	 *
+	 * @return false if the rounds ran out before there was work
+	 */
+	private boolean spin(int spins, int yields) throws InterruptedException {
+		for (;;) {
+			if (hasWork()) {
+				return true;
+			}
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			if (spins != 0) {
+				if (spins > 0) {
+					spins--;
+				}
+			} else if (yields != 0) {
+				if (yields > 0) {
+					yields--;
+				}
+				Thread.yield();
+			} else {
+				return false;
+			}
+		}
+	}
+
+	private boolean hasWork() {
+		if (mQuitting || !lanesEmpty() || canSteal()) {
+			return true;
+		}
+		TimerQueue timers = mTimers;
+		return timers.hasNext() && wakeTime(timers.nextTime()) - System.nanoTime() <= 0;
+	}
+
+	/**
+	 * Returns when the looper wakes up for a timer due at time: time itself,
+	 * or with a timer slack, the end of the slot of the slack grid holding
+	 * time, so that timers close to each other share one wake-up.
+	 */
+	private long wakeTime(long time) {
+		long slack = mSlackNanos;
+		if (slack == 0) {
+			return time;
+		}
+		long offset = time % slack;
+		if (offset < 0) {
+			offset += slack;
+		}
+		return (offset == 0) ? time : time + (slack - offset);
+	}
+
+	/**
+	 * Parks the looper thread until a producer signals or the next timer
+	 * becomes due.
+	 */
+	private void park() throws InterruptedException {
+		mWaiter = Thread.currentThread();
+		try {
+			// re-check after publishing mWaiter, so a concurrent enqueue
+			// either sees us waiting or is seen here
+			if (mQuitting || !lanesEmpty() || canSteal()) {
+				return;
+			}
+			TimerQueue timers = mTimers;
+			if (timers.hasNext()) {
+				long delay = wakeTime(timers.nextTime()) - System.nanoTime();
+				if (delay > 0) {
+					mParks++;
+					LockSupport.parkNanos(this, delay);
+				}
+			} else {
+				mParks++;
+				LockSupport.park(this);
+			}
+		} finally {
+			mWaiter = null;
+		}
+		if (Thread.interrupted()) {
+			throw new InterruptedException();
+		}
+	}
+
+	/**
+	 * Stops the queue: pending messages are no longer dispatched and further
+	 * sends are refused.
+	 */
+	void quit() {
+		mQuitting = true;
+		mLane.close();
+		signal();
+		if (mTicked) {
+			LockSupport.unpark(mLooperThread);
+		}
+		if (mBlocked != 0) {
+			wakeBlocked(true);
+		}
+	}
+
+	boolean isQuitting() {
+		return mQuitting;
+	}
+
+	/**
+	 * Returns the earliest scheduled timer if known, or null.
+	 */
+	Message peekDelayed() {
+		return mTimers.peek();
+	}
+
+	/**
+	 * Returns a snapshot of the messages waiting for their time.
+	 */
+	Message[] delayedMessages() {
+		return mTimers.toArray();
+	}
+
+	@Override
+	public String toString() {
+		return "MessageQueue{" + Integer.toHexString(System.identityHashCode(this)) + "}";
+	}
+}
@@ -0,0 +1,36 @@
+package pin.core;
+
+/**
+ * What a {@link Looper} with a capacity does with a message sent while its
+ * queue is full, set with {@link LooperConfig#setCapacity(int, OverflowPolicy)}.
+ * Every such message counts towards {@link Looper#getOverflowCount()}.
+ */
+public enum OverflowPolicy {
+	/**
+	 * Refuses the message: the send method returns false and the message
+	 * stays with the caller.
+	 */
+	REJECT,
+	/**
+	 * Makes the sender wait for room up to a timeout, then refuses the
+	 * message like {@link #REJECT}. A message sent from the looper thread
+	 * itself is refused right away.
+	 */
+	BLOCK,
+	/**
+	 * Queues the message and lets the looper discard the oldest message
+	 * that is due, unseen, to get back to capacity. Delayed and periodic
+	 * messages are never dropped, so a queue full of them can go past its
+	 * capacity.
+	 */
+	DROP_OLDEST,
+	/**
+	 * Merges the message into a queued one of the same handler, what and obj
+	 * that is due no later, which then carries the new arg1 and arg2. If
+	 * there is none, or the message is a runnable or periodic, it is refused
+	 * like {@link #REJECT}. Due messages are indexed by their handler under
+	 * this policy, so sending them takes the handler's lock. It cannot be
+	 * combined with {@link LooperConfig#setRingBuffer(int)}.
+	 */
+	COALESCE,
+}
@@ -0,0 +1,402 @@
+package pin.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The pending result of a call to another looper, returned by
+ * {@link Handler#call(java.util.concurrent.Callable)},
+ * {@link Handler#ask(Message)} and
+ * {@link AsyncTask#submit(java.util.concurrent.Callable)}. Nothing waits
+ * for it: the callbacks given to {@link #whenDone(Callback)} run on the
+ * {@link Looper} of the thread that made the call once the result is in, so
+ * a handler can call another one and carry on with the answer on its own
+ * thread, without a reply message or a correlation id.
+ *
+ * <pre>
+ * storage.call(new Callable&lt;Player&gt;() {
+ * 	public Player call() {
+ * 		return loadPlayer(id);
+ * 	}
+ * }).whenDone(new Reply.Callback&lt;Player&gt;() {
+ * 	public void onReply(Player player, Throwable error) {
+ * 		// back on the calling looper
+ * 	}
+ * });
+ * </pre>
+ *
+ * Replies compose without blocking any thread: {@link #then(Transform)}
+ * transforms the result on the calling looper,
+ * {@link #thenOnLooper(Looper, Transform)} on another one,
+ * {@link #combine(Reply, Reply, Combiner)} joins two replies and
+ * {@link #timeout(long, TimeUnit)} gives up waiting. The replies they return
+ * keep running their callbacks on the looper of the original reply.
+ *
+ * <p>
+ * Calls made from a thread without a looper run their callbacks on the thread
+ * that completes the reply. Callbacks of a looper that has quit are dropped.
+ *
+ * @param <V>
+ *            the type of the result
+ */
+public final class Reply<V> {
+	private static final Logger LOGGER = LoggerFactory.getLogger(Reply.class);
+
+	/**
+	 * Receives the outcome of a reply.
+	 */
+	public interface Callback<V> {
+		/**
+		 * @param result
+		 *            the result, or null if the call failed
+		 * @param error
+		 *            why the call failed, or null if it succeeded
+		 */
+		public void onReply(V result, Throwable error);
+	}
+
+	/**
+	 * Computes a value from the result of a reply.
+	 */
+	public interface Transform<V, R> {
+		public R apply(V result) throws Exception;
+	}
+
+	/**
+	 * Computes a value from the results of two replies.
+	 */
+	public interface Combiner<A, B, R> {
+		public R combine(A a, B b) throws Exception;
+	}
+
+	/** Where the callbacks run, or null for the completing thread. */
+	private final Handler mHandler;
+	private boolean mDone;
+	private V mResult;
+	private Throwable mError;
+	private Listener mListeners;
+
+	/**
+	 * Creates a pending reply whose callbacks run on the looper of the
+	 * current thread.
+	 */
+	public Reply() {
+		Looper looper = Looper.myLooper();
+		mHandler = (looper == null) ? null : looper.replyHandler();
+	}
+
+	private Reply(Handler handler) {
+		mHandler = handler;
+	}
+
+	/**
+	 * Returns a reply that is complete once all the given replies are, with
+	 * their results in the same order, or that fails with the first of them
+	 * that fails. This is how a call is scattered over several handlers and
+	 * gathered again.
+	 */
+	public static <V> Reply<List<V>> all(Collection<? extends Reply<? extends V>> replies) {
+		final Reply<List<V>> all = new Reply<List<V>>();
+		final Object[] results = new Object[replies.size()];
+		if (results.length == 0) {
+			all.complete(Collections.<V> emptyList());
+			return all;
+		}
+		final AtomicInteger remaining = new AtomicInteger(results.length);
+		int i = 0;
+		for (Reply<? extends V> reply : replies) {
+			final int index = i++;
+			reply.listen(new Callback<V>() {
+				@Override
+				@SuppressWarnings("unchecked")
+				public void onReply(V result, Throwable error) {
+					if (error != null) {
+						all.fail(error);
+						return;
+					}
+					results[index] = result;
+					if (remaining.decrementAndGet() == 0) {
+						all.complete((List<V>) (List<?>) Arrays.asList(results));
+					}
+				}
+			}, null);
+		}
+		return all;
+	}
+
+	/**
+	 * Same as {@link #all(Collection)} for replies given one by one, as in
+	 * {@code Reply.all(player, inventory)}.
+	 */
+	@SafeVarargs
+	public static <V> Reply<List<V>> all(Reply<? extends V>... replies) {
+		List<Reply<? extends V>> list = new ArrayList<Reply<? extends V>>(replies.length);
+		for (Reply<? extends V> reply : replies) {
+			list.add(reply);
+		}
+		return all(list);
+	}
+
+	/**
+	 * Returns a reply that is complete with the value the combiner computes
+	 * from the results of both replies, on the looper of the current thread,
+	 * or that fails with the first of them that fails.
+	 */
+	public static <A, B, R> Reply<R> combine(Reply<? extends A> a, Reply<? extends B> b,
+			final Combiner<? super A, ? super B, ? extends R> combiner) {
+		if (combiner == null) {
+			throw new NullPointerException("combiner");
+		}
+		return Reply.<Object> all(a, b).then(new Transform<List<Object>, R>() {
+			@Override
+			@SuppressWarnings("unchecked")
+			public R apply(List<Object> results) throws Exception {
+				return combiner.combine((A) results.get(0), (B) results.get(1));
+			}
+		});
+	}
+
+	/**
+	 * Returns a reply that is complete with the value the transform computes
+	 * from the result of this one. The transform runs where the callbacks of
+	 * this reply run, and is skipped if this reply fails; the returned reply
+	 * fails then, or if the transform throws.
+	 */
+	public <R> Reply<R> then(Transform<? super V, ? extends R> transform) {
+		return then(transform, mHandler);
+	}
+
+	/**
+	 * Same as {@link #then(Transform)}, except that the transform runs on the
+	 * given looper, e.g. one dedicated to blocking I/O. The callbacks of the
+	 * returned reply still run where those of this reply do, so a chain can
+	 * hop between loopers and come back to the caller with the result.
+	 */
+	public <R> Reply<R> thenOnLooper(Looper looper, Transform<? super V, ? extends R> transform) {
+		return then(transform, looper.replyHandler());
+	}
+
+	private <R> Reply<R> then(final Transform<? super V, ? extends R> transform, Handler handler) {
+		if (transform == null) {
+			throw new NullPointerException("transform");
+		}
+		final Reply<R> next = new Reply<R>(mHandler);
+		listen(new Callback<V>() {
+			@Override
+			public void onReply(V result, Throwable error) {
+				if (error != null) {
+					next.fail(error);
+					return;
+				}
+				R value;
+				try {
+					value = transform.apply(result);
+				} catch (Exception e) {
+					next.fail(e);
+					return;
+				}
+				next.complete(value);
+			}
+		}, handler);
+		return next;
+	}
+
+	/**
+	 * Returns a reply that completes like this one, or fails with a
+	 * {@link TimeoutException} if this one is not complete within the
+	 * timeout. The call itself is not cancelled.
+	 *
+	 * @throws IllegalStateException
+	 *             if the reply was created on a thread without a looper,
+	 *             which leaves nothing to time it with
+	 */
+	public Reply<V> timeout(final long timeout, final TimeUnit unit) {
+		final Handler handler = mHandler;
+		if (handler == null) {
+			throw new IllegalStateException("no looper to time out on");
+		}
+		final Reply<V> timed = new Reply<V>(handler);
+		final Runnable expire = new Runnable() {
+			@Override
+			public void run() {
+				timed.fail(new TimeoutException("no reply within " + timeout + " " + unit));
+			}
+		};
+		handler.postDelayed(expire, timeout, unit);
+		listen(new Callback<V>() {
+			@Override
+			public void onReply(V result, Throwable error) {
+				handler.removeCallbacks(expire);
+				timed.finish(result, error);
+			}
+		}, null);
+		return timed;
+	}
+
+	/**
+	 * Completes the reply with a result. Only the first completion counts.
+	 *
+	 * @return false if the reply was already complete
+	 */
+	public boolean complete(V result) {
+		return finish(result, null);
+	}
+
+	/**
+	 * Completes the reply with a failure. Only the first completion counts.
+	 *
+	 * @return false if the reply was already complete
+	 */
+	public boolean fail(Throwable error) {
+		if (error == null) {
+			throw new NullPointerException("error");
+		}
+		return finish(null, error);
+	}
+
+	/**
+	 * Runs the callback with the outcome on the looper of the thread that
+	 * created the reply, right away if the reply is already complete.
+	 *
+	 * @return this reply
+	 */
+	public Reply<V> whenDone(Callback<? super V> callback) {
+		if (callback == null) {
+			throw new NullPointerException("callback");
+		}
+		listen(callback, mHandler);
+		return this;
+	}
+
+	public synchronized boolean isDone() {
+		return mDone;
+	}
+
+	/**
+	 * Returns the result, or null if the reply is pending or failed.
+	 */
+	public synchronized V getResult() {
+		return mResult;
+	}
+
+	/**
+	 * Returns why the call failed, or null if the reply is pending or
+	 * succeeded.
+	 */
+	public synchronized Throwable getError() {
+		return mError;
+	}
+
+	/**
+	 * Completes the reply from the result of a message asked with
+	 * {@link Handler#ask(Message)}.
+	 */
+	@SuppressWarnings("unchecked")
+	boolean completeUnchecked(Object result) {
+		return finish((V) result, null);
+	}
+
+	private boolean finish(V result, Throwable error) {
+		Listener listeners;
+		synchronized (this) {
+			if (mDone) {
+				return false;
+			}
+			mDone = true;
+			mResult = result;
+			mError = error;
+			listeners = mListeners;
+			mListeners = null;
+		}
+		// callbacks were pushed on a stack, notify them in order
+		Listener ordered = null;
+		while (listeners != null) {
+			Listener next = listeners.mNext;
+			listeners.mNext = ordered;
+			ordered = listeners;
+			listeners = next;
+		}
+		for (Listener l = ordered; l != null; l = l.mNext) {
+			notify(l);
+		}
+		return true;
+	}
+
+	private void listen(Callback<? super V> callback, Handler handler) {
+		Listener listener = new Listener(callback, handler);
+		synchronized (this) {
+			if (!mDone) {
+				listener.mNext = mListeners;
+				mListeners = listener;
+				return;
+			}
+		}
+		notify(listener);
+	}
+
+	private void notify(Listener listener) {
+		Handler handler = listener.mHandler;
+		if (handler == null) {
+			listener.run();
+		} else if (!handler.sendMessage(handler.obtainMessage(0, listener))) {
+			LOGGER.warn(this + " dropped a callback, " + handler.getLooper() + " is not accepting messages");
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "Reply{" + Integer.toHexString(System.identityHashCode(this)) + (mDone ? (mError == null ? " done" : " failed")
+				: " pending") + "}";
+	}
+
+	/**
+	 * A callback waiting for the reply, chained in a stack.
+	 */
+	private final class Listener {
+		final Callback<? super V> mCallback;
+		final Handler mHandler;
+		Listener mNext;
+
+		Listener(Callback<? super V> callback, Handler handler) {
+			mCallback = callback;
+			mHandler = handler;
+		}
+
+		void run() {
+			V result;
+			Throwable error;
+			synchronized (Reply.this) {
+				result = mResult;
+				error = mError;
+			}
+			try {
+				mCallback.onReply(result, error);
+			} catch (Exception e) {
+				LOGGER.error("error on reply callback", e);
+			}
+		}
+	}
+
+	/**
+	 * Runs the callbacks of the replies created on a looper; one per looper.
+	 */
+	static final class ReplyHandler extends Handler {
+		ReplyHandler(Looper looper) {
+			super(looper);
+		}
+
+		@Override
+		public void handleMessage(Message msg) {
+			((Reply<?>.Listener) msg.obj).run();
+		}
+	}
+}
@@ -0,0 +1,213 @@
+package pin.core;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded {@link Lane} on a ring of preallocated message slots, claimed by
+ * sequence number in the manner of the LMAX Disruptor.
+ *
+ * <p>
+ * A producer claims the next sequence with a compare-and-set on the cursor,
+ * writes the message contents into the slot of that sequence and publishes it
+ * by storing the round of the sequence into the slot's availability flag. The
+ * looper reads the slots in sequence order and releases each one after its
+ * dispatch. Sending never allocates and never touches the {@link MessagePool};
+ * slots are reused in place and are never recycled.
+ *
+ * <p>
+ * When every slot is in use, producers wait for the looper to release one,
+ * for as long as the ring was created with, and then give up. The looper
+ * thread cannot wait for itself, so sending to a full ring from its own
+ * thread fails right away.
+ */
+final class RingLane implements Lane {
+	/** Longest pause of a producer waiting for a slot. */
+	private static final long MAX_BACKOFF_NANOS = 1000000;
+
+	private final Message[] mSlots;
+	private final int mMask;
+	private final int mShift;
+
+	/** Round of the sequence last published into each slot. */
+	private final AtomicIntegerArray mAvailable;
+
+	/** Highest claimed sequence. */
+	private final AtomicLong mCursor = new AtomicLong(-1);
+
+	/** Sequences below this one have been released by the looper. */
+	private final AtomicLong mReleased = new AtomicLong();
+
+	/** Next sequence to poll, only touched by the looper. */
+	private long mNext;
+
+	/** How long a producer waits for a slot, or -1 for as long as it takes. */
+	private final long mWaitNanos;
+
+	private final Thread mConsumer;
+	private volatile boolean mClosed;
+
+	/**
+	 * Creates the ring for the looper of the calling thread.
+	 *
+	 * @param capacity
+	 *            number of slots, a power of two
+	 * @param waitNanos
+	 *            how long a producer waits for a slot of a full ring, 0 not
+	 *            to wait, or -1 to wait until the looper frees one
+	 */
+	RingLane(int capacity, long waitNanos) {
+		if (capacity < 1 || (capacity & (capacity - 1)) != 0) {
+			throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+		}
+		mSlots = new Message[capacity];
+		for (int i = 0; i < capacity; i++) {
+			Message slot = new Message();
+			slot.flags = Message.FLAG_SLOT;
+			mSlots[i] = slot;
+		}
+		mMask = capacity - 1;
+		mShift = Integer.numberOfTrailingZeros(capacity);
+		mAvailable = new AtomicIntegerArray(capacity);
+		for (int i = 0; i < capacity; i++) {
+			mAvailable.set(i, -1);
+		}
+		mWaitNanos = waitNanos;
+		mConsumer = Thread.currentThread();
+	}
+
+	@Override
+	public boolean offer(Message msg) {
+		long seq = claim();
+		if (seq < 0) {
+			return false;
+		}
+		Message slot = mSlots[(int) seq & mMask];
+		slot.target = msg.target;
+		slot.what = msg.what;
+		slot.arg1 = msg.arg1;
+		slot.arg2 = msg.arg2;
+		slot.obj = msg.obj;
+		slot.callback = msg.callback;
+		slot.when = msg.when;
+		slot.time = msg.time;
+		slot.reply = msg.reply;
+		slot.deadline = msg.deadline;
+		slot.journalId = msg.journalId;
+		publish(seq);
+		msg.recycle();
+		return true;
+	}
+
+	@Override
+	public boolean offer(Handler target, int what, int arg1, int arg2, Object obj, Runnable callback) {
+		long seq = claim();
+		if (seq < 0) {
+			return false;
+		}
+		Message slot = mSlots[(int) seq & mMask];
+		slot.target = target;
+		slot.what = what;
+		slot.arg1 = arg1;
+		slot.arg2 = arg2;
+		slot.obj = obj;
+		slot.callback = callback;
+		long now = System.nanoTime();
+		slot.when = now;
+		slot.time = now;
+		publish(seq);
+		return true;
+	}
+
+	/**
+	 * Claims the next sequence, waiting while its slot is still in use.
+	 *
+	 * @return the sequence, or -1 if the lane was closed or stayed full
+	 */
+	private long claim() {
+		long deadline = 0;
+		long backoff = 0;
+		for (;;) {
+			if (mClosed) {
+				return -1;
+			}
+			long current = mCursor.get();
+			long next = current + 1;
+			if (next - mSlots.length < mReleased.get()) {
+				if (mCursor.compareAndSet(current, next)) {
+					return next;
+				}
+			} else {
+				// the slot still holds the message of the previous round
+				if (mWaitNanos == 0 || Thread.currentThread() == mConsumer) {
+					return -1;
+				}
+				long now = System.nanoTime();
+				if (backoff == 0) {
+					deadline = now + mWaitNanos;
+				} else if (mWaitNanos > 0 && now - deadline >= 0) {
+					return -1;
+				}
+				// the looper frees slots without signalling, so poll with a
+				// growing pause
+				backoff = Math.min(backoff * 2 + 1000, MAX_BACKOFF_NANOS);
+				LockSupport.parkNanos(backoff);
+			}
+		}
+	}
+
+	private void publish(long seq) {
+		mAvailable.lazySet((int) seq & mMask, (int) (seq >>> mShift));
+	}
+
+	@Override
+	public Message peek() {
+		long seq = mNext;
+		int index = (int) seq & mMask;
+		return (mAvailable.get(index) == (int) (seq >>> mShift)) ? mSlots[index] : null;
+	}
+
+	@Override
+	public Message poll() {
+		Message slot = peek();
+		if (slot != null) {
+			mNext++;
+		}
+		return slot;
+	}
+
+	/**
+	 * Returns true if nothing has been claimed since the last poll. A slot that
+	 * is claimed but not published yet makes the lane non-empty.
+	 */
+	@Override
+	public boolean isEmpty() {
+		return mCursor.get() < mNext;
+	}
+
+	/**
+	 * Frees the slot of the oldest polled message. Slots are released in the
+	 * order they were polled, which is the order the looper dispatches them.
+	 */
+	@Override
+	public void release(Message msg) {
+		msg.target = null;
+		msg.obj = null;
+		msg.callback = null;
+		msg.reply = null;
+		msg.replyKept = false;
+		msg.deadline = 0;
+		msg.journalId = 0;
+		mReleased.lazySet(mReleased.get() + 1);
+	}
+
+	@Override
+	public void close() {
+		mClosed = true;
+	}
+
+	int capacity() {
+		return mSlots.length;
+	}
+}
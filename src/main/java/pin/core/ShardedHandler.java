@@ -0,0 +1,113 @@
+package pin.core;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One handler per looper of a {@link LooperGroup}, addressed as a single
+ * handler by key: the key picks the shard, and a key always picks the same
+ * shard, so all messages for it are handled by one thread in order.
+ *
+ * <p>
+ * Keys are spread by their {@link Object#hashCode()}; the long overloads
+ * avoid boxing numeric ids.
+ */
+public final class ShardedHandler {
+	private final Handler[] mHandlers;
+
+	ShardedHandler(Handler[] handlers) {
+		mHandlers = handlers;
+	}
+
+	public int size() {
+		return mHandlers.length;
+	}
+
+	public Handler getHandler(int shard) {
+		return mHandlers[shard];
+	}
+
+	/**
+	 * Returns the shard handler that owns the given key.
+	 */
+	public Handler getHandler(Object key) {
+		return mHandlers[shardOf(key.hashCode(), mHandlers.length)];
+	}
+
+	public Handler getHandler(long key) {
+		return mHandlers[shardOf((int) (key ^ (key >>> 32)), mHandlers.length)];
+	}
+
+	/**
+	 * Returns a message from the pool targeted at the shard of the key, ready
+	 * for {@link Message#sendToTarget()}.
+	 */
+	public Message obtainMessage(Object key, int what) {
+		return getHandler(key).obtainMessage(what);
+	}
+
+	public Message obtainMessage(Object key, int what, Object obj) {
+		return getHandler(key).obtainMessage(what, obj);
+	}
+
+	public Message obtainMessage(Object key, int what, int arg1, int arg2, Object obj) {
+		return getHandler(key).obtainMessage(what, arg1, arg2, obj);
+	}
+
+	public Message obtainMessage(long key, int what) {
+		return getHandler(key).obtainMessage(what);
+	}
+
+	public Message obtainMessage(long key, int what, Object obj) {
+		return getHandler(key).obtainMessage(what, obj);
+	}
+
+	public Message obtainMessage(long key, int what, int arg1, int arg2, Object obj) {
+		return getHandler(key).obtainMessage(what, arg1, arg2, obj);
+	}
+
+	public boolean sendMessage(Object key, Message msg) {
+		return getHandler(key).sendMessage(msg);
+	}
+
+	public boolean sendMessage(long key, Message msg) {
+		return getHandler(key).sendMessage(msg);
+	}
+
+	public boolean sendMessageDelayed(Object key, Message msg, long delay, TimeUnit unit) {
+		return getHandler(key).sendMessageDelayed(msg, delay, unit);
+	}
+
+	public boolean sendMessageDelayed(long key, Message msg, long delay, TimeUnit unit) {
+		return getHandler(key).sendMessageDelayed(msg, delay, unit);
+	}
+
+	public boolean post(Object key, Runnable r) {
+		return getHandler(key).post(r);
+	}
+
+	public boolean post(long key, Runnable r) {
+		return getHandler(key).post(r);
+	}
+
+	/**
+	 * Removes the scheduled messages with the given what from every shard.
+	 */
+	public void removeMessages(int what) {
+		for (Handler handler : mHandlers) {
+			handler.removeMessages(what);
+		}
+	}
+
+	/**
+	 * Removes the scheduled messages with the given what and obj from the
+	 * shard of the key.
+	 */
+	public void removeMessages(Object key, int what, Object obj) {
+		getHandler(key).removeMessages(what, obj);
+	}
+
+	static int shardOf(int hash, int shards) {
+		int h = hash ^ (hash >>> 16);
+		return (h & 0x7fffffff) % shards;
+	}
+}
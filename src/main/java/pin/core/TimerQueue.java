@@ -0,0 +1,66 @@
+package pin.core;
+
+/**
+ * Holds the messages of a {@link Looper} that are not due yet, including
+ * every periodic message between two runs. {@link #schedule} and
+ * {@link #cancel} may be called from any thread; {@link #pollDue} is only
+ * called by the looper thread.
+ *
+ * <p>
+ * Implementations record where a message is stored in
+ * {@link Message#heapIndex}, which is -1 while the message is not queued.
+ */
+interface TimerQueue {
+
+	/**
+	 * Schedules a message for {@link Message#time}.
+	 *
+	 * @return true if the message may be due before anything scheduled so
+	 *         far, in which case a waiting looper has to be woken up
+	 */
+	boolean schedule(Message msg);
+
+	/**
+	 * Removes a scheduled message.
+	 *
+	 * @return false if the message was not scheduled here
+	 */
+	boolean cancel(Message msg);
+
+	/**
+	 * Removes and returns a message whose time has come, or null.
+	 */
+	Message pollDue(long now);
+
+	/**
+	 * Removes up to max messages whose time has come, in dispatch order, and
+	 * stores them at the start of batch.
+	 *
+	 * @return the number of messages stored
+	 */
+	int drainDue(long now, Message[] batch, int max);
+
+	/**
+	 * Returns true if {@link #nextTime()} is meaningful. Readable without
+	 * locking.
+	 */
+	boolean hasNext();
+
+	/**
+	 * Returns the earliest time at which {@link #pollDue} may have work to do.
+	 * Readable without locking.
+	 */
+	long nextTime();
+
+	/**
+	 * Returns the earliest scheduled message if known, or null.
+	 */
+	Message peek();
+
+	int size();
+
+	/**
+	 * Returns a snapshot of the scheduled messages.
+	 */
+	Message[] toArray();
+}
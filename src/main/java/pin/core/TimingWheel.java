@@ -0,0 +1,365 @@
+package pin.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hierarchical timing wheel (Varghese and Lauck) for the delayed messages of a
+ * {@link Looper}. Scheduling and cancelling are O(1) regardless of how many
+ * timers are pending, which makes it the better choice over the
+ * {@link Looper.DelayedWorkQueue} heap for loopers that keep hundreds of
+ * thousands of timers alive.
+ *
+ * <p>
+ * Time is divided into ticks of a configurable length. There are
+ * {@value #LEVELS} wheels of {@value #WHEEL_SIZE} slots; a slot of level n
+ * spans 64^n ticks and is cascaded into the lower levels when the wheel
+ * reaches it. Timers beyond the top level wait in an overflow list. A message
+ * is dispatched on the first tick boundary at or after its time, so it is
+ * never early and at most one tick late; messages falling on the same tick are
+ * dispatched in the order they were scheduled.
+ *
+ * <p>
+ * Every slot keeps a FIFO doubly linked list through
+ * {@link Message#timerPrev}/{@link Message#timerNext}, and
+ * {@link Message#heapIndex} holds the slot, so a message can be unlinked
+ * without a search. One bitmap per level records the occupied slots, which
+ * lets the looper jump straight to the next tick with work instead of
+ * ticking through idle time.
+ */
+final class TimingWheel implements TimerQueue {
+	private static final int WHEEL_BITS = 6;
+	private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+	private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+	private static final int LEVELS = 6;
+
+	/** List of timers beyond the range of the top level. */
+	private static final int OVERFLOW = LEVELS * WHEEL_SIZE;
+	/** List of timers whose tick has passed, in dispatch order. */
+	private static final int DUE = OVERFLOW + 1;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final long mTickNanos;
+	private final long mStartTime;
+	private final Message[] mHeads = new Message[DUE + 1];
+	private final Message[] mTails = new Message[DUE + 1];
+	private final long[] mOccupied = new long[LEVELS];
+
+	/** Last tick that has been processed, counted from mStartTime. */
+	private long mCurrentTick;
+	private int mSize;
+
+	private volatile long mNextTime;
+	private volatile boolean mHasNext;
+
+	/**
+	 * @param tickNanos
+	 *            resolution of the wheel in nanoseconds
+	 */
+	TimingWheel(long tickNanos) {
+		if (tickNanos <= 0) {
+			throw new IllegalArgumentException("tick must be positive: " + tickNanos);
+		}
+		mTickNanos = tickNanos;
+		mStartTime = System.nanoTime();
+	}
+
+	@Override
+	public boolean schedule(Message msg) {
+		final ReentrantLock lock = this.lock;
+		lock.lock();
+		try {
+			boolean hadNext = mHasNext;
+			long oldNext = mNextTime;
+			place(msg);
+			mSize++;
+			updateNext();
+			return !hadNext || mNextTime - oldNext < 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean cancel(Message msg) {
+		final ReentrantLock lock = this.lock;
+		lock.lock();
+		try {
+			int id = msg.heapIndex;
+			if (id < 0 || id > DUE || (msg.timerPrev == null && mHeads[id] != msg)) {
+				return false;
+			}
+			unlink(msg);
+			mSize--;
+			updateNext();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Message pollDue(long now) {
+		final ReentrantLock lock = this.lock;
+		lock.lock();
+		try {
+			advance(now);
+			Message msg = mHeads[DUE];
+			if (msg != null) {
+				unlink(msg);
+				mSize--;
+			}
+			updateNext();
+			return msg;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int drainDue(long now, Message[] batch, int max) {
+		final ReentrantLock lock = this.lock;
+		lock.lock();
+		try {
+			advance(now);
+			int n = 0;
+			Message msg;
+			while (n < max && (msg = mHeads[DUE]) != null) {
+				unlink(msg);
+				mSize--;
+				batch[n++] = msg;
+			}
+			updateNext();
+			return n;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		return mHasNext;
+	}
+
+	@Override
+	public long nextTime() {
+		return mNextTime;
+	}
+
+	@Override
+	public Message peek() {
+		final ReentrantLock lock = this.lock;
+		lock.lock();
+		try {
+			return mHeads[DUE];
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		final ReentrantLock lock = this.lock;
+		lock.lock();
+		try {
+			return mSize;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Message[] toArray() {
+		final ReentrantLock lock = this.lock;
+		lock.lock();
+		try {
+			List<Message> all = new ArrayList<Message>(mSize);
+			for (int id = 0; id <= DUE; id++) {
+				for (Message m = mHeads[id]; m != null; m = m.timerNext) {
+					all.add(m);
+				}
+			}
+			return all.toArray(new Message[all.size()]);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the first tick at or after the given time. Call only when
+	 * holding lock.
+	 */
+	private long expiryTick(long time) {
+		long d = time - mStartTime;
+		if (d <= 0) {
+			return 0;
+		}
+		return d / mTickNanos + ((d % mTickNanos != 0) ? 1 : 0);
+	}
+
+	/**
+	 * Puts a message into the slot matching its tick relative to the current
+	 * tick. Call only when holding lock.
+	 */
+	private void place(Message msg) {
+		long tick = expiryTick(msg.time);
+		long current = mCurrentTick;
+		if (tick <= current) {
+			link(DUE, msg);
+			return;
+		}
+		for (int level = 0; level < LEVELS; level++) {
+			int shift = WHEEL_BITS * (level + 1);
+			if ((tick >>> shift) == (current >>> shift)) {
+				int slot = (int) ((tick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+				link(level * WHEEL_SIZE + slot, msg);
+				return;
+			}
+		}
+		link(OVERFLOW, msg);
+	}
+
+	/**
+	 * Processes every tick up to now, moving expired timers to the due list.
+	 * Idle stretches are skipped in one step. Call only when holding lock.
+	 */
+	private void advance(long now) {
+		long d = now - mStartTime;
+		long target = d > 0 ? d / mTickNanos : 0;
+		while (mCurrentTick < target) {
+			long next = nextEventTick();
+			if (next < 0 || next > target) {
+				mCurrentTick = target;
+				return;
+			}
+			mCurrentTick = next;
+			processTick(next);
+		}
+	}
+
+	/**
+	 * Cascades the higher level slots that start at this tick, top level
+	 * first, and then expires the level 0 slot. Call only when holding lock.
+	 */
+	private void processTick(long tick) {
+		if ((tick & ((1L << (WHEEL_BITS * LEVELS)) - 1)) == 0) {
+			cascade(OVERFLOW);
+		}
+		for (int level = LEVELS - 1; level > 0; level--) {
+			int shift = WHEEL_BITS * level;
+			if ((tick & ((1L << shift) - 1)) == 0) {
+				cascade(level * WHEEL_SIZE + (int) ((tick >>> shift) & WHEEL_MASK));
+			}
+		}
+		cascade((int) (tick & WHEEL_MASK));
+	}
+
+	/**
+	 * Re-places every message of a list relative to the current tick. Call
+	 * only when holding lock.
+	 */
+	private void cascade(int id) {
+		Message msg = mHeads[id];
+		if (msg == null) {
+			return;
+		}
+		mHeads[id] = null;
+		mTails[id] = null;
+		if (id < OVERFLOW) {
+			mOccupied[id >>> WHEEL_BITS] &= ~(1L << (id & WHEEL_MASK));
+		}
+		while (msg != null) {
+			Message next = msg.timerNext;
+			msg.timerPrev = null;
+			msg.timerNext = null;
+			place(msg);
+			msg = next;
+		}
+	}
+
+	/**
+	 * Returns the next tick at which a slot expires or cascades, or -1 if only
+	 * the due list holds messages. Call only when holding lock.
+	 */
+	private long nextEventTick() {
+		long current = mCurrentTick;
+		for (int level = 0; level < LEVELS; level++) {
+			long bits = mOccupied[level];
+			if (bits == 0) {
+				continue;
+			}
+			int shift = WHEEL_BITS * level;
+			int pos = (int) ((current >>> shift) & WHEEL_MASK);
+			long ahead = (pos == WHEEL_MASK) ? 0 : bits & (-1L << (pos + 1));
+			if (ahead != 0) {
+				int blockShift = shift + WHEEL_BITS;
+				long blockStart = (current >>> blockShift) << blockShift;
+				return blockStart + ((long) Long.numberOfTrailingZeros(ahead) << shift);
+			}
+		}
+		if (mHeads[OVERFLOW] != null) {
+			int shift = WHEEL_BITS * LEVELS;
+			return ((current >>> shift) + 1) << shift;
+		}
+		return -1;
+	}
+
+	/**
+	 * Refreshes the lock-free mirror read by the looper. Call only when
+	 * holding lock.
+	 */
+	private void updateNext() {
+		Message due = mHeads[DUE];
+		if (due != null) {
+			mNextTime = due.time;
+			mHasNext = true;
+			return;
+		}
+		long tick = nextEventTick();
+		if (tick < 0) {
+			mHasNext = false;
+		} else {
+			mNextTime = mStartTime + tick * mTickNanos;
+			mHasNext = true;
+		}
+	}
+
+	private void link(int id, Message msg) {
+		msg.heapIndex = id;
+		msg.timerNext = null;
+		Message tail = mTails[id];
+		msg.timerPrev = tail;
+		if (tail == null) {
+			mHeads[id] = msg;
+			if (id < OVERFLOW) {
+				mOccupied[id >>> WHEEL_BITS] |= 1L << (id & WHEEL_MASK);
+			}
+		} else {
+			tail.timerNext = msg;
+		}
+		mTails[id] = msg;
+	}
+
+	private void unlink(Message msg) {
+		int id = msg.heapIndex;
+		Message prev = msg.timerPrev;
+		Message next = msg.timerNext;
+		if (prev == null) {
+			mHeads[id] = next;
+		} else {
+			prev.timerNext = next;
+		}
+		if (next == null) {
+			mTails[id] = prev;
+		} else {
+			next.timerPrev = prev;
+		}
+		if (mHeads[id] == null && id < OVERFLOW) {
+			mOccupied[id >>> WHEEL_BITS] &= ~(1L << (id & WHEEL_MASK));
+		}
+		msg.timerPrev = null;
+		msg.timerNext = null;
+		msg.heapIndex = -1;
+	}
+}
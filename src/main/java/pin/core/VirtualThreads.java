@@ -0,0 +1,214 @@
+package pin.core;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs work on virtual threads where the JVM has them (Java 21 and later),
+ * so that code blocking on Redis, HTTP or a database holds a cheap virtual
+ * thread rather than one of a bounded pool of platform threads. They are
+ * looked up by reflection, so this class loads on any JVM; where they are
+ * missing, or turned off with {@code -D}{@value #PROPERTY}{@code =false},
+ * {@link #isSupported()} is false and the callers fall back to platform
+ * threads, see {@link AsyncTask#IO_EXECUTOR}.
+ *
+ * <p>
+ * Virtual threads suit blocking work. They cannot be bound to CPUs, and up to
+ * Java 21 a virtual thread blocking inside a synchronized block keeps its
+ * carrier thread blocked as well.
+ */
+public final class VirtualThreads {
+	private static final Logger LOGGER = LoggerFactory.getLogger(VirtualThreads.class);
+
+	/** The system property that turns virtual threads off when false. */
+	public static final String PROPERTY = "pin.virtualThreads";
+
+	/** Thread.ofVirtual(), or null if not supported. */
+	private static final Method OF_VIRTUAL;
+	/** Thread.Builder.name(String) */
+	private static final Method NAME;
+	/** Thread.Builder.unstarted(Runnable) */
+	private static final Method UNSTARTED;
+	/** Thread.isVirtual() */
+	private static final Method IS_VIRTUAL;
+
+	static {
+		Method ofVirtual = null;
+		Method name = null;
+		Method unstarted = null;
+		Method isVirtual = null;
+		if (!"false".equals(System.getProperty(PROPERTY))) {
+			try {
+				Class<?> builder = Class.forName("java.lang.Thread$Builder");
+				ofVirtual = Thread.class.getMethod("ofVirtual");
+				name = builder.getMethod("name", String.class);
+				unstarted = builder.getMethod("unstarted", Runnable.class);
+				isVirtual = Thread.class.getMethod("isVirtual");
+				// a preview feature that is not enabled throws here
+				unstarted.invoke(ofVirtual.invoke(null), new Runnable() {
+					@Override
+					public void run() {
+					}
+				});
+			} catch (ClassNotFoundException e) {
+				ofVirtual = null;
+			} catch (NoSuchMethodException e) {
+				ofVirtual = null;
+			} catch (IllegalAccessException e) {
+				ofVirtual = null;
+			} catch (InvocationTargetException e) {
+				LOGGER.info("virtual threads not available: " + e.getCause());
+				ofVirtual = null;
+			}
+		}
+		OF_VIRTUAL = ofVirtual;
+		NAME = name;
+		UNSTARTED = unstarted;
+		IS_VIRTUAL = isVirtual;
+	}
+
+	/**
+	 * 私有构造函数
+	 */
+	private VirtualThreads() {
+
+	}
+
+	/**
+	 * Returns true if this JVM runs virtual threads and they are not turned
+	 * off.
+	 */
+	public static boolean isSupported() {
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * Returns true if the thread is a virtual thread.
+	 */
+	public static boolean isVirtual(Thread thread) {
+		if (IS_VIRTUAL == null) {
+			return false;
+		}
+		try {
+			return (Boolean) IS_VIRTUAL.invoke(thread);
+		} catch (IllegalAccessException e) {
+			return false;
+		} catch (InvocationTargetException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Creates a virtual thread that is not started yet.
+	 *
+	 * @throws IllegalStateException
+	 *             if virtual threads are not supported
+	 */
+	public static Thread newThread(String name, Runnable task) {
+		if (OF_VIRTUAL == null) {
+			throw new IllegalStateException("virtual threads are not supported");
+		}
+		try {
+			Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name);
+			return (Thread) UNSTARTED.invoke(builder, task);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		} catch (InvocationTargetException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * Returns an executor that starts a virtual thread per task, named with
+	 * the prefix and a number, so that any number of blocking tasks can be in
+	 * flight at once.
+	 *
+	 * @throws IllegalStateException
+	 *             if virtual threads are not supported
+	 */
+	public static Executor newExecutor(final String prefix) {
+		if (OF_VIRTUAL == null) {
+			throw new IllegalStateException("virtual threads are not supported");
+		}
+		return new Executor() {
+			private final AtomicInteger mCount = new AtomicInteger(1);
+
+			@Override
+			public void execute(Runnable command) {
+				newThread(prefix + mCount.getAndIncrement(), command).start();
+			}
+		};
+	}
+
+	/**
+	 * Starts a looper on a new virtual thread and returns it once prepared, or
+	 * on a {@link HandlerThread} where virtual threads are not supported. A
+	 * virtual looper costs no platform thread while it waits for messages,
+	 * which suits many loopers that mostly block; it should park rather than
+	 * spin, so keep the default {@link WaitStrategy}. Stop it with
+	 * {@link Looper#quit()} and wait for {@link Looper#getThread()}.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the config binds the looper to CPUs, which a virtual
+	 *             thread cannot be
+	 * @throws RuntimeException
+	 *             whatever {@link Looper#prepare(LooperConfig)} threw on the
+	 *             new thread
+	 */
+	public static Looper startLooper(String name, final LooperConfig config) {
+		if (OF_VIRTUAL == null) {
+			HandlerThread thread = new HandlerThread(name, config);
+			thread.start();
+			return thread.getLooper();
+		}
+		if (config.getCpuAffinity() != null) {
+			throw new IllegalArgumentException("a virtual thread cannot be bound to cpus");
+		}
+		final CountDownLatch prepared = new CountDownLatch(1);
+		final Looper[] looper = new Looper[1];
+		final Throwable[] failure = new Throwable[1];
+		newThread(name, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Looper.prepare(config);
+					looper[0] = Looper.myLooper();
+				} catch (RuntimeException e) {
+					failure[0] = e;
+					return;
+				} catch (Error e) {
+					failure[0] = e;
+					return;
+				} finally {
+					prepared.countDown();
+				}
+				Looper.loop();
+			}
+		}).start();
+		boolean interrupted = false;
+		while (true) {
+			try {
+				prepared.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if (failure[0] instanceof Error) {
+			throw (Error) failure[0];
+		}
+		if (failure[0] != null) {
+			throw (RuntimeException) failure[0];
+		}
+		return looper[0];
+	}
+}
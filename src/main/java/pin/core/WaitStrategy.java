@@ -0,0 +1,32 @@
+package pin.core;
+
+/**
+ * How an idle {@link Looper} waits for its next message, set with
+ * {@link LooperConfig#setWaitStrategy(WaitStrategy)}. The strategies trade CPU
+ * for the latency between a message being sent or becoming due and its
+ * dispatch starting.
+ */
+public enum WaitStrategy {
+	/**
+	 * Parks the looper thread until a producer unparks it or the next timer is
+	 * due. Uses no CPU while idle, but every idle-to-busy transition pays for
+	 * the thread wake-up. This is the default.
+	 */
+	PARK,
+	/**
+	 * Spins on the queue and yields the CPU between checks. Wakes up quickly
+	 * while leaving room to other threads, but shows as a busy core.
+	 */
+	YIELD,
+	/**
+	 * Spins on the queue without ever giving up the CPU. Lowest latency; only
+	 * for loopers that own a dedicated core.
+	 */
+	BUSY_SPIN,
+	/**
+	 * Spins for a short while, then yields for a while, then parks. Keeps the
+	 * latency of spinning for messages arriving back to back while an idle
+	 * looper still ends up parked.
+	 */
+	SPIN_THEN_PARK,
+}
@@ -0,0 +1,68 @@
+/*
+ * Native side of pin.core.Affinity.
+ *
+ * The built library is committed, force-added past the *.so ignore rule.
+ * Rebuild it on Linux after changing this file, from this directory:
+ *
+ *   gcc -O2 -shared -fPIC -I$JAVA_HOME/include -I$JAVA_HOME/include/linux \
+ *       -o ../resources/natives/libpinaffinity-64.so pinaffinity.c
+ */
+#define _GNU_SOURCE
+#include <jni.h>
+#include <errno.h>
+#include <sched.h>
+
+#define WORDS (CPU_SETSIZE / 64)
+
+JNIEXPORT jint JNICALL Java_pin_core_Affinity_setAffinity0(JNIEnv *env, jclass cls, jlongArray mask)
+{
+	cpu_set_t set;
+	jsize n = (*env)->GetArrayLength(env, mask);
+	jlong *words = (*env)->GetLongArrayElements(env, mask, NULL);
+	jsize i;
+	int bit;
+
+	if (words == NULL) {
+		return ENOMEM;
+	}
+	CPU_ZERO(&set);
+	for (i = 0; i < n && i < WORDS; i++) {
+		for (bit = 0; bit < 64; bit++) {
+			if (words[i] & (1ULL << bit)) {
+				CPU_SET(i * 64 + bit, &set);
+			}
+		}
+	}
+	(*env)->ReleaseLongArrayElements(env, mask, words, JNI_ABORT);
+	return (sched_setaffinity(0, sizeof(set), &set) == 0) ? 0 : errno;
+}
+
+JNIEXPORT jlongArray JNICALL Java_pin_core_Affinity_getAffinity0(JNIEnv *env, jclass cls)
+{
+	cpu_set_t set;
+	jlong words[WORDS];
+	jlongArray mask;
+	int cpu;
+
+	if (sched_getaffinity(0, sizeof(set), &set) != 0) {
+		return NULL;
+	}
+	for (cpu = 0; cpu < WORDS; cpu++) {
+		words[cpu] = 0;
+	}
+	for (cpu = 0; cpu < CPU_SETSIZE; cpu++) {
+		if (CPU_ISSET(cpu, &set)) {
+			words[cpu / 64] |= (jlong) (1ULL << (cpu % 64));
+		}
+	}
+	mask = (*env)->NewLongArray(env, WORDS);
+	if (mask != NULL) {
+		(*env)->SetLongArrayRegion(env, mask, 0, WORDS, words);
+	}
+	return mask;
+}
+
+JNIEXPORT jint JNICALL Java_pin_core_Affinity_getCpu0(JNIEnv *env, jclass cls)
+{
+	return sched_getcpu();
+}
@@ -0,0 +1,99 @@
+package com.pin.core;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import pin.core.Affinity;
+import pin.core.Handler;
+import pin.core.HandlerThread;
+import pin.core.LatencyHistogram;
+import pin.core.LooperConfig;
+import pin.core.Message;
+
+/**
+ * Measures the jitter of a 1ms fixed-rate message, as the lateness of each
+ * run against its scheduled time, while one noise thread per CPU burns CPU
+ * and thrashes the cache. It runs once with every thread unbound, then with
+ * the looper bound to the last CPU and the noise bound to the others. Needs
+ * the pinaffinity native and at least two CPUs to show a difference.
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.mainClass=com.pin.core.AffinityJitterBenchmark -Dexec.classpathScope=test -Djava.library.path=.
+ * </pre>
+ */
+public class AffinityJitterBenchmark {
+	private static final int WARMUP = 1000;
+	private static final int SAMPLES = 5000;
+	private static final int NOISE_BYTES = 8 << 20;
+
+	private static volatile boolean sStop;
+
+	public static void main(String[] args) throws InterruptedException {
+		int cpus = Runtime.getRuntime().availableProcessors();
+		System.out.println("affinity supported: " + Affinity.isSupported() + ", cpus: " + cpus);
+		if (cpus < 2) {
+			System.out.println("a single CPU leaves no core to isolate; both runs share it");
+		}
+		System.out.println("unbound " + run(cpus, false));
+		System.out.println("bound   " + run(cpus, true));
+	}
+
+	private static String run(int cpus, final boolean bound) throws InterruptedException {
+		final int looperCpu = cpus - 1;
+		final int[] noiseCpus = new int[Math.max(1, cpus - 1)];
+		for (int i = 0; i < noiseCpus.length; i++) {
+			noiseCpus[i] = (cpus > 1) ? i : 0;
+		}
+
+		sStop = false;
+		Thread[] noise = new Thread[cpus];
+		for (int i = 0; i < noise.length; i++) {
+			noise[i] = new Thread("noise-" + i) {
+				@Override
+				public void run() {
+					if (bound) {
+						Affinity.setCurrentThread(noiseCpus);
+					}
+					byte[] garbage = new byte[NOISE_BYTES];
+					int pos = 0;
+					while (!sStop) {
+						// a cache line at a time, over more than the cache
+						garbage[pos]++;
+						pos = (pos + 64) % garbage.length;
+					}
+				}
+			};
+			noise[i].setDaemon(true);
+			noise[i].start();
+		}
+
+		LooperConfig config = new LooperConfig();
+		if (bound) {
+			config.setCpuAffinity(looperCpu);
+		}
+		HandlerThread thread = new HandlerThread("bench-jitter", config);
+		thread.start();
+		final LatencyHistogram lateness = new LatencyHistogram();
+		final CountDownLatch done = new CountDownLatch(WARMUP + SAMPLES);
+		Handler handler = new Handler(thread.getLooper()) {
+			private int mRuns;
+
+			@Override
+			public void handleMessage(Message msg) {
+				if (mRuns++ >= WARMUP) {
+					lateness.record(System.nanoTime() - msg.time);
+				}
+				done.countDown();
+			}
+		};
+		handler.sendMessageAtFixedRate(handler.obtainMessage(1), 1, 1, TimeUnit.MILLISECONDS);
+		done.await();
+		thread.quit();
+		thread.join();
+		sStop = true;
+		for (Thread t : noise) {
+			t.join();
+		}
+		return lateness.snapshot().toString();
+	}
+}
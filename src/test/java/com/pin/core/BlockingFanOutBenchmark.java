@@ -0,0 +1,66 @@
+package com.pin.core;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import pin.core.AsyncTask;
+import pin.core.Looper;
+import pin.core.VirtualThreads;
+
+/**
+ * Fans out blocking calls, each a sleep standing for a Redis or HTTP round
+ * trip, through every executor of {@link AsyncTask}, and prints how long the
+ * whole fan-out took and how many calls were rejected. The virtual thread
+ * run needs Java 21; on older JVMs {@link AsyncTask#IO_EXECUTOR} falls back
+ * to the elastic pool and both runs measure the same thing.
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.mainClass=com.pin.core.BlockingFanOutBenchmark -Dexec.classpathScope=test
+ * </pre>
+ */
+public class BlockingFanOutBenchmark {
+	private static final int CALLS = 10000;
+	private static final long LATENCY_MILLIS = 20;
+
+	public static void main(String[] args) throws InterruptedException {
+		// AsyncTask binds its static handler to the looper of the thread that
+		// loads it
+		Looper.prepare();
+		System.out.println("virtual threads supported: " + VirtualThreads.isSupported() + ", " + CALLS + " calls of "
+				+ LATENCY_MILLIS + "ms");
+		System.out.println("thread pool " + run(AsyncTask.THREAD_POOL_EXECUTOR));
+		System.out.println("elastic     " + run(AsyncTask.ELASTIC_EXECUTOR));
+		System.out.println("io          " + run(AsyncTask.IO_EXECUTOR));
+		System.exit(0);
+	}
+
+	private static String run(Executor executor) throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(CALLS);
+		Runnable call = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(LATENCY_MILLIS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				done.countDown();
+			}
+		};
+		int rejected = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < CALLS; i++) {
+			try {
+				executor.execute(call);
+			} catch (RejectedExecutionException e) {
+				rejected++;
+				done.countDown();
+			}
+		}
+		done.await();
+		long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		return millis + "ms (" + (millis / LATENCY_MILLIS) + "x one call), " + rejected + " rejected";
+	}
+}
@@ -0,0 +1,524 @@
+package com.pin.core;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import pin.core.AsyncTask;
+import pin.core.ElasticExecutor;
+import pin.core.Handler;
+import pin.core.HandlerThread;
+import pin.core.Looper;
+import pin.core.LooperConfig;
+import pin.core.Message;
+import pin.core.Reply;
+import pin.core.VirtualThreads;
+
+public class TestAsyncTask {
+	/** The looper AsyncTask is initialized on, which no test publishes to. */
+	private static HandlerThread sMain;
+
+	private HandlerThread mCaller;
+	private Thread mCallerThread;
+	private final List<String> mLog = Collections.synchronizedList(new ArrayList<String>());
+
+	@BeforeClass
+	public static void setUpClass() throws InterruptedException {
+		sMain = new HandlerThread("TestAsyncTask-main");
+		sMain.start();
+		runOn(sMain, new Runnable() {
+			@Override
+			public void run() {
+				AsyncTask.init();
+			}
+		});
+	}
+
+	@AfterClass
+	public static void tearDownClass() {
+		sMain.quit();
+	}
+
+	@Before
+	public void setUp() {
+		mCaller = new HandlerThread("TestAsyncTask-caller");
+		mCaller.start();
+		mCallerThread = mCaller;
+	}
+
+	@After
+	public void tearDown() {
+		mCaller.quit();
+	}
+
+	@Test
+	public void testPublishOnExecutingLooper() throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+		runOn(mCaller, new Runnable() {
+			@Override
+			public void run() {
+				new AsyncTask<Integer, Integer, Integer>() {
+					@Override
+					protected Integer doInBackground(Integer... params) {
+						publishProgress(params[0]);
+						return params[0] * 2;
+					}
+
+					@Override
+					protected void onProgressUpdate(Integer... values) {
+						log("progress " + values[0]);
+					}
+
+					@Override
+					protected void onPostExecute(Integer result) {
+						log("result " + result);
+						done.countDown();
+					}
+				}.execute(21);
+			}
+		});
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals("[progress 21 true, result 42 true]", mLog.toString());
+	}
+
+	@Test
+	public void testCoalescedProgress() throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+		final int count = 50;
+		final List<Integer> updates = Collections.synchronizedList(new ArrayList<Integer>());
+		runOn(mCaller, new Runnable() {
+			@Override
+			public void run() {
+				new AsyncTask<Void, Integer, Void>() {
+					@Override
+					protected Void doInBackground(Void... params) {
+						for (int i = 0; i < count; i++) {
+							publishProgress(i);
+							try {
+								Thread.sleep(2);
+							} catch (InterruptedException e) {
+								Thread.currentThread().interrupt();
+							}
+						}
+						return null;
+					}
+
+					@Override
+					protected void onProgressUpdate(Integer... values) {
+						updates.add(values[0]);
+					}
+
+					@Override
+					protected void onPostExecute(Void result) {
+						updates.add(-1);
+						done.countDown();
+					}
+				}.setProgressInterval(30, TimeUnit.MILLISECONDS).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+			}
+		});
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+
+		// the first update right away, then one per 30ms of about 100ms, and
+		// the last one before the result
+		assertTrue(updates.toString(), updates.size() <= 8);
+		assertEquals(0, updates.get(0).intValue());
+		assertEquals(count - 1, updates.get(updates.size() - 2).intValue());
+		assertEquals(-1, updates.get(updates.size() - 1).intValue());
+		for (int i = 1; i < updates.size() - 1; i++) {
+			assertTrue(updates.toString(), updates.get(i) > updates.get(i - 1));
+		}
+	}
+
+	@Test
+	public void testCompose() throws InterruptedException {
+		final HandlerThread io = new HandlerThread("TestAsyncTask-io");
+		io.start();
+		final CountDownLatch done = new CountDownLatch(3);
+		runOn(mCaller, new Runnable() {
+			@Override
+			public void run() {
+				Reply<Integer> doubled = AsyncTask.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() {
+						return 20;
+					}
+				}).then(new Reply.Transform<Integer, Integer>() {
+					@Override
+					public Integer apply(Integer result) {
+						log("then");
+						return result + 1;
+					}
+				}).thenOnLooper(io.getLooper(), new Reply.Transform<Integer, Integer>() {
+					@Override
+					public Integer apply(Integer result) {
+						mLog.add("io " + (Thread.currentThread() == io));
+						return result * 2;
+					}
+				});
+				Reply<String> name = AsyncTask.submit(new Callable<String>() {
+					@Override
+					public String call() {
+						return "answer";
+					}
+				});
+				Reply.combine(name, doubled, new Reply.Combiner<String, Integer, String>() {
+					@Override
+					public String combine(String a, Integer b) {
+						return a + " " + b;
+					}
+				}).whenDone(new Reply.Callback<String>() {
+					@Override
+					public void onReply(String result, Throwable error) {
+						log(result);
+						done.countDown();
+					}
+				});
+
+				AsyncTask.submit(new Callable<Object>() {
+					@Override
+					public Object call() throws Exception {
+						throw new IllegalStateException("failed");
+					}
+				}).then(new Reply.Transform<Object, Object>() {
+					@Override
+					public Object apply(Object result) {
+						log("skipped");
+						return result;
+					}
+				}).whenDone(new Reply.Callback<Object>() {
+					@Override
+					public void onReply(Object result, Throwable error) {
+						log("error " + error.getMessage());
+						done.countDown();
+					}
+				});
+
+				new Reply<Object>().timeout(10, TimeUnit.MILLISECONDS).whenDone(new Reply.Callback<Object>() {
+					@Override
+					public void onReply(Object result, Throwable error) {
+						log("timeout " + (error instanceof TimeoutException));
+						done.countDown();
+					}
+				});
+			}
+		});
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		io.quit();
+
+		List<String> log = new ArrayList<String>(mLog);
+		Collections.sort(log);
+		assertEquals("[answer 42 true, error failed true, io true, then true, timeout true true]", log.toString());
+	}
+
+	@Test
+	public void testElasticExecutor() throws InterruptedException {
+		ElasticExecutor executor = new ElasticExecutor("testElasticExecutor");
+		// serial per key, parallel across keys
+		final int keys = 4;
+		final int tasks = 50;
+		final List<List<Integer>> runs = new ArrayList<List<Integer>>();
+		final CountDownLatch done = new CountDownLatch(keys * tasks);
+		for (int k = 0; k < keys; k++) {
+			runs.add(Collections.synchronizedList(new ArrayList<Integer>()));
+		}
+		for (int i = 0; i < tasks; i++) {
+			for (int k = 0; k < keys; k++) {
+				final List<Integer> run = runs.get(k);
+				final int task = i;
+				executor.serial(k).execute(new Runnable() {
+					@Override
+					public void run() {
+						run.add(task);
+						done.countDown();
+					}
+				});
+			}
+		}
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		for (List<Integer> run : runs) {
+			assertEquals(tasks, run.size());
+			for (int i = 0; i < tasks; i++) {
+				assertEquals(i, run.get(i).intValue());
+			}
+		}
+
+		// an Error ends the thread of a key but not the key
+		final CountDownLatch errorGate = new CountDownLatch(1);
+		final CountDownLatch afterError = new CountDownLatch(1);
+		executor.execute("error", new Runnable() {
+			@Override
+			public void run() {
+				try {
+					errorGate.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		executor.execute("error", new Runnable() {
+			@Override
+			public void run() {
+				throw new AssertionError("expected");
+			}
+		});
+		executor.execute("error", new Runnable() {
+			@Override
+			public void run() {
+				afterError.countDown();
+			}
+		});
+		errorGate.countDown();
+		assertTrue(afterError.await(5, TimeUnit.SECONDS));
+
+		// blocked threads make the pool grow up to its maximum
+		final int max = executor.getTargetSize() + 4;
+		executor.setMaxThreads(max).setTargetWait(1, TimeUnit.MILLISECONDS);
+		final CountDownLatch gate = new CountDownLatch(1);
+		Runnable blocked = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					gate.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		for (int i = 0; i < max + 2; i++) {
+			executor.execute(blocked);
+		}
+		for (int i = 0; i < 50 && executor.getActiveCount() < max; i++) {
+			Thread.sleep(50);
+			executor.execute(blocked);
+		}
+		assertEquals(max, executor.getActiveCount());
+		assertEquals(max, executor.getTargetSize());
+		assertTrue(executor.getQueuedCount() > 0);
+		gate.countDown();
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+		assertTrue(executor.getQueueWait().getCount() >= max + 2);
+	}
+
+	@Test
+	public void testElasticExecutorSaturation() throws InterruptedException {
+		ElasticExecutor executor = new ElasticExecutor("testElasticExecutorSaturation", 2).setMaxThreads(1);
+		final CountDownLatch gate = new CountDownLatch(1);
+		final CountDownLatch started = new CountDownLatch(1);
+		Runnable blocked = new Runnable() {
+			@Override
+			public void run() {
+				started.countDown();
+				try {
+					gate.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		executor.execute(blocked);
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		executor.execute(blocked);
+		executor.execute(blocked);
+		assertEquals(2, executor.getQueuedCount());
+		try {
+			executor.execute(blocked);
+			fail();
+		} catch (RejectedExecutionException e) {
+			// queue full
+		}
+		assertEquals(1, executor.getRejectedCount());
+
+		executor.setCallerRuns(true);
+		final Thread caller = Thread.currentThread();
+		final AtomicBoolean ranOnCaller = new AtomicBoolean();
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				ranOnCaller.set(Thread.currentThread() == caller);
+			}
+		});
+		assertTrue(ranOnCaller.get());
+		assertEquals(2, executor.getRejectedCount());
+		assertEquals(1, executor.getActiveCount());
+		gate.countDown();
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+		assertEquals(3, executor.getCompletedCount());
+	}
+
+	@Test
+	public void testElasticExecutorKeyRejected() throws InterruptedException {
+		// a pool that never gets a thread, and blocks in its thread factory
+		// once armed
+		final AtomicBoolean armed = new AtomicBoolean();
+		final CountDownLatch creating = new CountDownLatch(1);
+		final CountDownLatch gate = new CountDownLatch(1);
+		final ElasticExecutor executor = new ElasticExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				if (armed.compareAndSet(true, false)) {
+					creating.countDown();
+					try {
+						gate.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				return null;
+			}
+		}, 1);
+		final AtomicInteger ran = new AtomicInteger();
+		final Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				ran.incrementAndGet();
+			}
+		};
+		// fills the queue
+		executor.execute(task);
+		armed.set(true);
+		final AtomicBoolean rejected = new AtomicBoolean();
+		Thread first = new Thread() {
+			@Override
+			public void run() {
+				try {
+					executor.execute("key", task);
+				} catch (RejectedExecutionException e) {
+					rejected.set(true);
+				}
+			}
+		};
+		first.start();
+		assertTrue(creating.await(5, TimeUnit.SECONDS));
+		// queued behind the first task of the key, which is about to fail
+		executor.execute("key", task);
+		gate.countDown();
+		first.join();
+		assertTrue(rejected.get());
+		// both tasks of the key are rejected, none is lost silently
+		assertEquals(2, executor.getRejectedCount());
+		assertEquals(1, executor.getQueuedCount());
+		executor.shutdown();
+
+		// an Error does not make the thread that threw it run the key
+		final ElasticExecutor saturated = new ElasticExecutor("testElasticExecutorKeyRejected", 1).setMaxThreads(1)
+				.setCallerRuns(true);
+		final CountDownLatch errorGate = new CountDownLatch(1);
+		final CountDownLatch started = new CountDownLatch(1);
+		final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+		saturated.execute("error", new Runnable() {
+			@Override
+			public void run() {
+				threads.add(Thread.currentThread());
+				started.countDown();
+				try {
+					errorGate.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				throw new AssertionError("expected");
+			}
+		});
+		saturated.execute("error", new Runnable() {
+			@Override
+			public void run() {
+				threads.add(Thread.currentThread());
+			}
+		});
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		final CountDownLatch filled = new CountDownLatch(1);
+		// fills the queue, and runs once the thread that threw is replaced
+		saturated.execute(new Runnable() {
+			@Override
+			public void run() {
+				filled.countDown();
+			}
+		});
+		errorGate.countDown();
+		assertTrue(filled.await(5, TimeUnit.SECONDS));
+		saturated.shutdown();
+		assertTrue(saturated.awaitTermination(5, TimeUnit.SECONDS));
+		assertEquals(1, threads.size());
+		assertEquals(1, saturated.getRejectedCount());
+	}
+
+	@Test
+	public void testIoExecutor() throws InterruptedException {
+		// more blocking calls in flight than THREAD_POOL_EXECUTOR takes
+		final int count = 200;
+		final CountDownLatch done = new CountDownLatch(count);
+		final AtomicInteger virtual = new AtomicInteger();
+		for (int i = 0; i < count; i++) {
+			AsyncTask.IO_EXECUTOR.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (VirtualThreads.isVirtual(Thread.currentThread())) {
+						virtual.incrementAndGet();
+					}
+					try {
+						Thread.sleep(20);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					done.countDown();
+				}
+			});
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals(VirtualThreads.isSupported() ? count : 0, virtual.get());
+
+		Looper looper = VirtualThreads.startLooper("testIoExecutor", new LooperConfig());
+		assertEquals(VirtualThreads.isSupported(), VirtualThreads.isVirtual(looper.getThread()));
+		final CountDownLatch handled = new CountDownLatch(1);
+		new Handler(looper) {
+			@Override
+			public void handleMessage(Message msg) {
+				handled.countDown();
+			}
+		}.sendMessage(1);
+		assertTrue(handled.await(5, TimeUnit.SECONDS));
+		looper.quit();
+		looper.getThread().join(5000);
+		assertFalse(looper.getThread().isAlive());
+	}
+
+	/**
+	 * Records an event and whether it happened on the caller looper.
+	 */
+	private void log(String event) {
+		mLog.add(event + " " + (Thread.currentThread() == mCallerThread));
+	}
+
+	private static void runOn(HandlerThread thread, final Runnable runnable) throws InterruptedException {
+		final CountDownLatch ran = new CountDownLatch(1);
+		new Handler(thread.getLooper()) {
+			@Override
+			public void handleMessage(Message msg) {
+			}
+		}.post(new Runnable() {
+			@Override
+			public void run() {
+				runnable.run();
+				ran.countDown();
+			}
+		});
+		assertTrue(ran.await(5, TimeUnit.SECONDS));
+	}
+}
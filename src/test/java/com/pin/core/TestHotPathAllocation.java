@@ -0,0 +1,124 @@
+package com.pin.core;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import pin.core.DispatchStats;
+import pin.core.Handler;
+import pin.core.HandlerThread;
+import pin.core.LooperConfig;
+import pin.core.Message;
+
+/**
+ * Checks that a steady-state send plus dispatch allocates nothing, on the
+ * sending thread and on the looper thread.
+ */
+public class TestHotPathAllocation {
+	private static final int ROUNDS = 100;
+	private static final int ROUND_SIZE = 1000;
+
+	/** Slack for the allocation of the measurement itself. */
+	private static final long MAX_BYTES = 64 * 1024;
+
+	@Test
+	public void testDefaultLooper() throws InterruptedException {
+		checkAllocation(new LooperConfig());
+	}
+
+	@Test
+	public void testBatchedLooper() throws InterruptedException {
+		checkAllocation(new LooperConfig().setBatchSize(64));
+	}
+
+	@Test
+	public void testRingBufferLooper() throws InterruptedException {
+		checkAllocation(new LooperConfig().setRingBuffer(4096));
+	}
+
+	@Test
+	public void testDispatchStats() throws InterruptedException {
+		DispatchStats.setEnabled(true);
+		try {
+			checkAllocation(new LooperConfig().setBatchSize(64));
+		} finally {
+			DispatchStats.setEnabled(false);
+		}
+	}
+
+	private void checkAllocation(LooperConfig config) throws InterruptedException {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		HandlerThread thread = new HandlerThread("TestHotPathAllocation", config);
+		thread.start();
+		try {
+			CountingHandler handler = new CountingHandler(thread);
+			long looperId = thread.getId();
+			long producerId = Thread.currentThread().getId();
+
+			// warm up: fill the message pool and let the JIT settle
+			send(handler, ROUNDS * ROUND_SIZE);
+
+			long looperBefore = threads.getThreadAllocatedBytes(looperId);
+			long producerBefore = threads.getThreadAllocatedBytes(producerId);
+			send(handler, ROUNDS * ROUND_SIZE);
+			long producer = threads.getThreadAllocatedBytes(producerId) - producerBefore;
+			long looper = threads.getThreadAllocatedBytes(looperId) - looperBefore;
+
+			assertTrue("producer allocated " + producer + " bytes", producer < MAX_BYTES);
+			assertTrue("looper allocated " + looper + " bytes", looper < MAX_BYTES);
+		} finally {
+			thread.quit();
+			thread.join();
+		}
+	}
+
+	/**
+	 * Sends count messages through every send flavour, in rounds small
+	 * enough for the message pool to keep up.
+	 */
+	private static void send(CountingHandler handler, int count) {
+		for (int sent = 0; sent < count;) {
+			for (int i = 0; i < ROUND_SIZE; i += 4) {
+				handler.sendMessage(handler.obtainMessage(1, i, 0));
+				handler.sendMessage(2);
+				handler.sendMessage(3, i, 0, handler);
+				handler.post(handler.mTask);
+			}
+			sent += ROUND_SIZE;
+			while (handler.mHandled != sent + handler.mBase) {
+				Thread.yield();
+			}
+		}
+		handler.mBase += count;
+	}
+
+	private static class CountingHandler extends Handler {
+		volatile int mHandled;
+		int mBase;
+
+		final Runnable mTask = new Runnable() {
+			@Override
+			public void run() {
+				mHandled++;
+			}
+		};
+
+		CountingHandler(HandlerThread thread) {
+			super(thread.getLooper());
+		}
+
+		@Override
+		public void handleMessage(Message msg) {
+			mHandled++;
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package com.pin.core;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import pin.core.Handler;
+import pin.core.HandlerThread;
+import pin.core.LooperConfig;
+import pin.core.Message;
+import pin.core.MessageJournal;
+import pin.core.OverflowPolicy;
+import pin.io.Serializable;
+
+public class TestMessageJournal {
+	private static final int MSG_BUFF = 1;
+	private static final int MSG_TICK = 2;
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private HandlerThread mThread;
+
+	@Before
+	public void setUp() {
+		mThread = new HandlerThread("TestMessageJournal");
+		mThread.start();
+	}
+
+	@After
+	public void tearDown() {
+		mThread.quit();
+	}
+
+	@Test
+	public void testReloadPendingMessages() throws IOException, InterruptedException {
+		File dir = mFolder.newFolder("timers");
+		MessageJournal journal = MessageJournal.open(dir, 4096);
+		journal.setMinDelay(10, TimeUnit.MILLISECONDS);
+		RecordingHandler handler = new RecordingHandler(mThread, 1);
+		assertEquals(0, journal.register("buff", handler, null));
+
+		handler.sendMessageDelayed(handler.obtainMessage(MSG_BUFF, 7, 0, new Buff("haste")), 1, TimeUnit.HOURS);
+		handler.sendMessageDelayed(handler.obtainMessage(MSG_BUFF, 8, 0, new Buff("slow")), 1, TimeUnit.HOURS);
+		handler.sendMessageAtFixedRate(handler.obtainMessage(MSG_TICK), 2, 2, TimeUnit.HOURS);
+		// too short to journal
+		handler.sendMessageDelayed(handler.obtainMessage(MSG_BUFF, 9, 0, new Buff("short")), 1, TimeUnit.MILLISECONDS);
+		// dispatched, so cancelled in the journal
+		handler.sendMessageDelayed(handler.obtainMessage(MSG_BUFF, 10, 0, new Buff("done")), 20, TimeUnit.MILLISECONDS);
+		assertEquals(4, journal.getPendingCount());
+		assertTrue(handler.await());
+		handler.removeMessages(MSG_BUFF, null);
+		assertEquals(1, journal.getPendingCount());
+
+		handler.sendMessageDelayed(handler.obtainMessage(MSG_BUFF, 11, 0, new Buff("haste")), 1, TimeUnit.HOURS);
+		journal.close();
+
+		// restart
+		MessageJournal reloaded = MessageJournal.open(dir, 4096);
+		assertEquals(2, reloaded.getPendingCount());
+		RecordingHandler restarted = new RecordingHandler(mThread, 0);
+		assertEquals(2, reloaded.register("buff", restarted, new MessageJournal.Decoder() {
+			@Override
+			public Object deserialize(int what, String data) {
+				return new Buff(data);
+			}
+		}));
+		assertTrue(restarted.hasMessages(MSG_BUFF));
+		assertTrue(restarted.hasMessages(MSG_TICK));
+		restarted.removeMessages(MSG_TICK);
+		assertEquals(1, reloaded.getPendingCount());
+		reloaded.close();
+	}
+
+	@Test
+	public void testCompaction() throws IOException, InterruptedException {
+		File dir = mFolder.newFolder("timers");
+		MessageJournal journal = MessageJournal.open(dir, 4096);
+		journal.setMinDelay(0, TimeUnit.MILLISECONDS);
+		RecordingHandler handler = new RecordingHandler(mThread, 0);
+		journal.register("buff", handler, null);
+
+		// far more records than the segment holds
+		for (int i = 0; i < 1000; i++) {
+			Buff buff = new Buff("buff " + i);
+			handler.sendMessageDelayed(handler.obtainMessage(MSG_BUFF, i, 0, buff), 1, TimeUnit.HOURS);
+			if (i % 10 != 0) {
+				handler.removeMessages(MSG_BUFF, buff);
+			}
+		}
+		assertEquals(100, journal.getPendingCount());
+		// compacted in the background, once on open and again since
+		for (int i = 0; i < 50 && journal.getCompactionCount() < 2; i++) {
+			Thread.sleep(100);
+		}
+		assertTrue(journal.getCompactionCount() > 1);
+		journal.close();
+
+		MessageJournal reloaded = MessageJournal.open(dir, 4096);
+		assertEquals(100, reloaded.getPendingCount());
+		reloaded.close();
+		assertEquals(1, dir.list().length);
+	}
+
+	@Test
+	public void testCorruptRecord() throws IOException {
+		File dir = mFolder.newFolder("timers");
+		MessageJournal journal = MessageJournal.open(dir, 4096);
+		journal.setMinDelay(0, TimeUnit.MILLISECONDS);
+		RecordingHandler handler = new RecordingHandler(mThread, 0);
+		journal.register("buff", handler, null);
+		handler.sendMessageDelayed(handler.obtainMessage(MSG_BUFF, new Buff("haste")), 1, TimeUnit.HOURS);
+		handler.sendMessageDelayed(handler.obtainMessage(MSG_BUFF, new Buff("slow")), 1, TimeUnit.HOURS);
+		handler.sendMessageDelayed(handler.obtainMessage(MSG_BUFF, new Buff("regen")), 1, TimeUnit.HOURS);
+		journal.close();
+
+		// flip a byte of the second record, as a torn write would
+		File[] files = dir.listFiles();
+		assertEquals(1, files.length);
+		RandomAccessFile file = new RandomAccessFile(files[0], "rw");
+		try {
+			byte[] bytes = new byte[(int) file.length()];
+			file.readFully(bytes);
+			int at = new String(bytes, "ISO-8859-1").indexOf("slow");
+			assertTrue(at > 0);
+			file.seek(at);
+			file.write('S');
+		} finally {
+			file.close();
+		}
+
+		// the log ends before the bad record
+		MessageJournal reloaded = MessageJournal.open(dir, 4096);
+		assertEquals(1, reloaded.getPendingCount());
+		reloaded.close();
+	}
+
+	@Test
+	public void testNoCoalescing() throws IOException {
+		File dir = mFolder.newFolder("timers");
+		MessageJournal journal = MessageJournal.open(dir, 4096);
+		journal.setMinDelay(0, TimeUnit.MILLISECONDS);
+		HandlerThread thread = new HandlerThread("testNoCoalescing", new LooperConfig().setCapacity(1,
+				OverflowPolicy.COALESCE));
+		thread.start();
+		try {
+			RecordingHandler handler = new RecordingHandler(thread, 0);
+			journal.register("buff", handler, null);
+			assertTrue(handler.sendMessageDelayed(handler.obtainMessage(MSG_BUFF, 1, 0), 1, TimeUnit.HOURS));
+			// merging would leave the record of the second one to replay
+			assertFalse(handler.sendMessageDelayed(handler.obtainMessage(MSG_BUFF, 2, 0), 1, TimeUnit.HOURS));
+			assertEquals(1, journal.getPendingCount());
+		} finally {
+			thread.quit();
+			journal.close();
+		}
+	}
+
+	private static class RecordingHandler extends Handler {
+		private final CountDownLatch mDone;
+
+		RecordingHandler(HandlerThread thread, int expected) {
+			super(thread.getLooper());
+			mDone = new CountDownLatch(expected);
+		}
+
+		/**
+		 * Waits for the expected messages, and for the looper to be done
+		 * with the last of them, journal included.
+		 */
+		boolean await() throws InterruptedException {
+			if (!mDone.await(5, TimeUnit.SECONDS)) {
+				return false;
+			}
+			final CountDownLatch synced = new CountDownLatch(1);
+			post(new Runnable() {
+				@Override
+				public void run() {
+					synced.countDown();
+				}
+			});
+			return synced.await(5, TimeUnit.SECONDS);
+		}
+
+		@Override
+		public void handleMessage(Message msg) {
+			if (msg.arg1 == 10) {
+				mDone.countDown();
+			}
+		}
+	}
+
+	private static class Buff implements Serializable {
+		private final String mName;
+
+		Buff(String name) {
+			mName = name;
+		}
+
+		@Override
+		public String serialize() {
+			return mName;
+		}
+	}
+}
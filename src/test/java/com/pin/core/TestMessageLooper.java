@@ -2,15 +2,39 @@ package com.pin.core;
 
 import static org.junit.Assert.*;
 
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import pin.core.DispatchStats;
 import pin.core.Handler;
 import pin.core.HandlerThread;
 import pin.core.Looper;
+import pin.core.LooperConfig;
+import pin.core.LooperGroup;
+import pin.core.LooperWatchdog;
 import pin.core.Message;
+import pin.core.OverflowPolicy;
+import pin.core.Reply;
+import pin.core.ShardedHandler;
+import pin.core.WaitStrategy;
 
 public class TestMessageLooper {
 
@@ -41,6 +65,966 @@ public class TestMessageLooper {
 //		}
 	}
 
+	@Test
+	public void testProducerOrder() throws InterruptedException {
+		checkProducerOrder(new HandlerThread("testProducerOrder"));
+	}
+
+	@Test
+	public void testBatchedProducerOrder() throws InterruptedException {
+		checkProducerOrder(new HandlerThread("testBatchedProducerOrder", new LooperConfig().setBatchSize(64)));
+	}
+
+	@Test
+	public void testSpinThenParkProducerOrder() throws InterruptedException {
+		checkProducerOrder(new HandlerThread("testSpinThenParkProducerOrder", new LooperConfig()
+				.setWaitStrategy(WaitStrategy.SPIN_THEN_PARK)));
+	}
+
+	@Test
+	public void testRingBufferProducerOrder() throws InterruptedException {
+		checkProducerOrder(new HandlerThread("testRingBufferProducerOrder", new LooperConfig().setRingBuffer(64)));
+	}
+
+	@Test
+	public void testBatchedRingBufferProducerOrder() throws InterruptedException {
+		checkProducerOrder(new HandlerThread("testBatchedRingBufferProducerOrder", new LooperConfig().setRingBuffer(64)
+				.setBatchSize(16)));
+	}
+
+	@Test
+	public void testBatchedPeriodic() throws InterruptedException {
+		HandlerThread handlerThread = new HandlerThread("testBatchedPeriodic", new LooperConfig().setBatchSize(16));
+		handlerThread.start();
+
+		final CountDownLatch fixedRate = new CountDownLatch(5);
+		final CountDownLatch fixedDelay = new CountDownLatch(5);
+		final CountDownLatch delayed = new CountDownLatch(100);
+		Handler handler = new Handler(handlerThread.getLooper()) {
+			@Override
+			public void handleMessage(Message msg) {
+				switch (msg.what) {
+				case 1:
+					fixedRate.countDown();
+					break;
+				case 2:
+					fixedDelay.countDown();
+					break;
+				default:
+					delayed.countDown();
+				}
+			}
+		};
+		handler.sendMessageAtFixedRate(handler.obtainMessage(1), 0, 5, TimeUnit.MILLISECONDS);
+		handler.sendMessageAtFixedDelay(handler.obtainMessage(2), 0, 5, TimeUnit.MILLISECONDS);
+		for (int i = 0; i < 100; i++) {
+			handler.sendMessageDelayed(handler.obtainMessage(3), 10, TimeUnit.MILLISECONDS);
+		}
+
+		assertTrue(fixedRate.await(5, TimeUnit.SECONDS));
+		assertTrue(fixedDelay.await(5, TimeUnit.SECONDS));
+		assertTrue(delayed.await(5, TimeUnit.SECONDS));
+		assertTrue(handlerThread.quit());
+	}
+
+	@Test
+	public void testBatchedRemove() throws InterruptedException {
+		HandlerThread handlerThread = new HandlerThread("testBatchedRemove", new LooperConfig().setBatchSize(16));
+		handlerThread.start();
+
+		final CountDownLatch gate = new CountDownLatch(1);
+		final List<Integer> handled = Collections.synchronizedList(new ArrayList<Integer>());
+		Handler handler = new Handler(handlerThread.getLooper()) {
+			@Override
+			public void handleMessage(Message msg) {
+				if (msg.what == 0) {
+					try {
+						gate.await();
+					} catch (InterruptedException e) {
+					}
+				}
+				handled.add(msg.what);
+				if (msg.what == 1) {
+					removeMessages(2);
+					removeMessages(3);
+				}
+			}
+		};
+		handler.sendMessage(0);
+		// all due by the time the gate opens, so drained in one batch
+		handler.sendMessageDelayed(handler.obtainMessage(1), 1, TimeUnit.MILLISECONDS);
+		handler.sendMessageDelayed(handler.obtainMessage(2), 2, TimeUnit.MILLISECONDS);
+		handler.sendMessageAtFixedRate(handler.obtainMessage(3), 3, 1000, TimeUnit.MILLISECONDS);
+		Thread.sleep(20);
+		gate.countDown();
+		final CountDownLatch synced = new CountDownLatch(1);
+		handler.post(new Runnable() {
+			@Override
+			public void run() {
+				synced.countDown();
+			}
+		});
+		assertTrue(synced.await(5, TimeUnit.SECONDS));
+
+		assertEquals("[0, 1]", handled.toString());
+		assertFalse(handler.hasMessages(3));
+		assertEquals(0, handlerThread.getLooper().getQueueDepth());
+		assertTrue(handlerThread.quit());
+	}
+
+	private void checkProducerOrder(HandlerThread handlerThread) throws InterruptedException {
+		handlerThread.start();
+
+		final int producers = 8;
+		final int perProducer = 10000;
+		final int[] lastSeen = new int[producers];
+		Arrays.fill(lastSeen, -1);
+		final AtomicBoolean ordered = new AtomicBoolean(true);
+		final CountDownLatch received = new CountDownLatch(producers * perProducer);
+
+		final Handler handler = new Handler(handlerThread.getLooper()) {
+			@Override
+			public void handleMessage(Message msg) {
+				if (msg.arg2 != lastSeen[msg.arg1] + 1) {
+					ordered.set(false);
+				}
+				lastSeen[msg.arg1] = msg.arg2;
+				received.countDown();
+			}
+		};
+
+		for (int p = 0; p < producers; p++) {
+			final int producer = p;
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < perProducer; i++) {
+						if ((i & 1) == 0) {
+							handler.sendMessage(handler.obtainMessage(0, producer, i));
+						} else {
+							handler.sendMessage(0, producer, i);
+						}
+					}
+				}
+			}).start();
+		}
+
+		assertTrue(received.await(10, TimeUnit.SECONDS));
+		assertTrue(ordered.get());
+		assertTrue(handlerThread.quit());
+	}
+
+	@Test
+	public void testTimingWheel() throws InterruptedException {
+		// a 50us tick spreads 300ms of delays over three levels of the wheel
+		HandlerThread handlerThread = new HandlerThread("testTimingWheel", new LooperConfig().setTimingWheel(50,
+				TimeUnit.MICROSECONDS));
+		handlerThread.start();
+
+		final int count = 2000;
+		final AtomicBoolean early = new AtomicBoolean(false);
+		final CountDownLatch received = new CountDownLatch(count);
+		final CountDownLatch ticks = new CountDownLatch(5);
+		Handler handler = new Handler(handlerThread.getLooper()) {
+			@Override
+			public void handleMessage(Message msg) {
+				if (msg.what == 1) {
+					ticks.countDown();
+					return;
+				}
+				if (System.nanoTime() < msg.time) {
+					early.set(true);
+				}
+				received.countDown();
+			}
+		};
+
+		Random random = new Random(42);
+		for (int i = 0; i < count; i++) {
+			handler.sendMessageDelayed(handler.obtainMessage(0), random.nextInt(300000), TimeUnit.MICROSECONDS);
+		}
+		handler.sendMessageAtFixedRate(handler.obtainMessage(1), 0, 20, TimeUnit.MILLISECONDS);
+
+		assertTrue(received.await(5, TimeUnit.SECONDS));
+		assertTrue(ticks.await(5, TimeUnit.SECONDS));
+		assertFalse(early.get());
+		assertTrue(handlerThread.quit());
+	}
+
+	@Test
+	public void testRemoveMessages() throws InterruptedException {
+		HandlerThread handlerThread = new HandlerThread("testRemoveMessages");
+		handlerThread.start();
+
+		final AtomicInteger periodicRuns = new AtomicInteger();
+		final AtomicInteger removedRuns = new AtomicInteger();
+		final CountDownLatch stopped = new CountDownLatch(1);
+		final Handler handler = new Handler(handlerThread.getLooper()) {
+			@Override
+			public void handleMessage(Message msg) {
+				if (msg.what == 1) {
+					if (periodicRuns.incrementAndGet() == 3) {
+						// stop the periodic message from its own dispatch
+						removeMessages(1);
+						stopped.countDown();
+					}
+				} else {
+					removedRuns.incrementAndGet();
+				}
+			}
+		};
+		Runnable removedCallback = new Runnable() {
+			@Override
+			public void run() {
+				removedRuns.incrementAndGet();
+			}
+		};
+
+		Object token = new Object();
+		handler.sendMessageAtFixedRate(handler.obtainMessage(1), 0, 10, TimeUnit.MILLISECONDS);
+		handler.sendMessageDelayed(handler.obtainMessage(2, token), 50, TimeUnit.MILLISECONDS);
+		handler.sendMessageDelayed(handler.obtainMessage(2), 50, TimeUnit.MILLISECONDS);
+		handler.sendMessageAtFixedDelay(handler.obtainMessage(3), 50, 10, TimeUnit.MILLISECONDS);
+		handler.postDelayed(removedCallback, 50, TimeUnit.MILLISECONDS);
+		assertTrue(handler.hasMessages(2, token));
+		assertTrue(handler.hasMessages(3));
+
+		handler.removeMessages(2, token);
+		assertFalse(handler.hasMessages(2, token));
+		assertTrue(handler.hasMessages(2));
+		handler.removeMessages(2);
+		handler.removeMessages(3);
+		handler.removeCallbacks(removedCallback);
+		assertFalse(handler.hasMessages(2));
+		assertFalse(handler.hasMessages(3));
+
+		assertTrue(stopped.await(5, TimeUnit.SECONDS));
+		Thread.sleep(100);
+		assertEquals(3, periodicRuns.get());
+		assertEquals(0, removedRuns.get());
+		assertFalse(handler.hasMessages(1));
+		assertTrue(handlerThread.quit());
+	}
+
+	@Test
+	public void testRemoveDueMessages() throws InterruptedException {
+		GatedHandler handler = GatedHandler.start(new LooperConfig());
+		handler.setTracking(true);
+		final AtomicInteger ran = new AtomicInteger();
+		Runnable runnable = new Runnable() {
+			@Override
+			public void run() {
+				ran.incrementAndGet();
+			}
+		};
+		handler.post(runnable);
+		handler.sendMessage(1);
+		handler.sendMessage(handler.obtainMessage(2));
+		Reply<Object> reply = handler.ask(handler.obtainMessage(3));
+		assertTrue(handler.hasMessages(1));
+		assertTrue(handler.hasMessages(2));
+		assertEquals(4, handler.getLooper().getQueueDepth());
+
+		handler.removeCallbacks(runnable);
+		handler.removeMessages(1);
+		handler.removeMessages(3);
+		assertFalse(handler.hasMessages(1));
+		assertTrue(reply.getError() instanceof CancellationException);
+		assertEquals(1, handler.getLooper().getQueueDepth());
+
+		// untracked messages are out of reach
+		handler.setTracking(false);
+		handler.sendMessage(4);
+		assertFalse(handler.hasMessages(4));
+		assertEquals("[0, 2, 4]", handler.finish(3));
+		assertEquals(0, ran.get());
+	}
+
+	@Test
+	public void testPeriodicThrows() throws InterruptedException {
+		HandlerThread thread = new HandlerThread("testPeriodicThrows");
+		thread.start();
+		final AtomicInteger runs = new AtomicInteger();
+		Handler handler = new Handler(thread.getLooper()) {
+			@Override
+			public void handleMessage(Message msg) {
+				runs.incrementAndGet();
+				throw new IllegalStateException("expected");
+			}
+		};
+		assertTrue(handler.sendMessageAtFixedRate(handler.obtainMessage(5), 0, 1, TimeUnit.MILLISECONDS));
+		Thread.sleep(50);
+		// a periodic message stops repeating when its handler throws
+		assertEquals(1, runs.get());
+		assertFalse(handler.hasMessages(5));
+		assertEquals(0, handler.getLooper().getQueueDepth());
+		thread.quit();
+	}
+
+	@Test
+	public void testUntrackedSendSkipsIndex() throws Exception {
+		HandlerThread thread = new HandlerThread("testUntrackedSendSkipsIndex");
+		thread.start();
+		final CountDownLatch handled = new CountDownLatch(100);
+		final Handler handler = new Handler(thread.getLooper()) {
+			@Override
+			public void handleMessage(Message msg) {
+				handled.countDown();
+			}
+		};
+		assertFalse(handler.isTracking());
+		Field field = Handler.class.getDeclaredField("mIndex");
+		field.setAccessible(true);
+		Object index = field.get(handler);
+		final CountDownLatch sent = new CountDownLatch(1);
+		Thread sender = new Thread() {
+			@Override
+			public void run() {
+				for (int i = 0; i < 50; i++) {
+					handler.sendMessage(1);
+					handler.sendMessage(handler.obtainMessage(2));
+				}
+				sent.countDown();
+			}
+		};
+		synchronized (index) {
+			// neither the sender nor the looper waits for the index
+			sender.start();
+			assertTrue(sent.await(5, TimeUnit.SECONDS));
+			assertTrue(handled.await(5, TimeUnit.SECONDS));
+
+			handler.setTracking(true);
+			final CountDownLatch tracked = new CountDownLatch(1);
+			new Thread() {
+				@Override
+				public void run() {
+					handler.sendMessage(3);
+					tracked.countDown();
+				}
+			}.start();
+			assertFalse(tracked.await(100, TimeUnit.MILLISECONDS));
+		}
+		thread.quit();
+	}
+
+	@Test
+	public void testDispatchStats() throws InterruptedException {
+		HandlerThread handlerThread = new HandlerThread("testDispatchStats");
+		handlerThread.start();
+		DispatchStats.setEnabled(true);
+		try {
+			final CountDownLatch received = new CountDownLatch(10);
+			SleepingHandler handler = new SleepingHandler(handlerThread.getLooper(), received);
+			for (int i = 0; i < 10; i++) {
+				handler.sendMessage(handler.obtainMessage(5));
+			}
+			assertTrue(received.await(5, TimeUnit.SECONDS));
+			Thread.sleep(50);
+
+			assertEquals(10, DispatchStats.getHandling(SleepingHandler.class, 5).getCount());
+			assertTrue(DispatchStats.getHandling(SleepingHandler.class).getPercentile(50) >= TimeUnit.MILLISECONDS.toNanos(2));
+			// the last message waited for the nine before it
+			assertTrue(DispatchStats.getQueueWait(SleepingHandler.class, 5).getMax() >= TimeUnit.MILLISECONDS.toNanos(18));
+			assertEquals(0, DispatchStats.getHandling(SleepingHandler.class, 6).getCount());
+		} finally {
+			DispatchStats.setEnabled(false);
+			handlerThread.quit();
+		}
+	}
+
+	@Test
+	public void testLooperGroup() throws InterruptedException {
+		LooperGroup group = new LooperGroup("testLooperGroup", 4);
+		final int keys = 64;
+		final int perKey = 50;
+		final Thread[] owners = new Thread[keys];
+		final int[] last = new int[keys];
+		final AtomicBoolean ordered = new AtomicBoolean(true);
+		final AtomicInteger handled = new AtomicInteger();
+		ShardedHandler handler = group.newHandler(new Handler.Callback() {
+			@Override
+			public boolean handleMessage(Message msg) {
+				int key = msg.arg1;
+				// only the owning thread ever touches the slot of a key
+				if (owners[key] == null) {
+					owners[key] = Thread.currentThread();
+				} else if (owners[key] != Thread.currentThread() || last[key] + 1 != msg.arg2) {
+					ordered.set(false);
+				}
+				last[key] = msg.arg2;
+				handled.incrementAndGet();
+				return true;
+			}
+		});
+		for (int i = 0; i < perKey; i++) {
+			for (int key = 0; key < keys; key++) {
+				handler.obtainMessage((long) key, 1, key, i, null).sendToTarget();
+			}
+		}
+		assertTrue(group.drain(5, TimeUnit.SECONDS));
+		assertEquals(keys * perKey, handled.get());
+		assertTrue(ordered.get());
+		assertSame(handler.getHandler(7L), handler.getHandler(7L));
+		assertTrue(group.quitSafely(5, TimeUnit.SECONDS));
+		assertFalse(handler.post(1L, new Runnable() {
+			@Override
+			public void run() {
+			}
+		}));
+	}
+
+	@Test
+	public void testBoundedQueue() throws InterruptedException {
+		GatedHandler rejecting = GatedHandler.start(new LooperConfig().setCapacity(4, OverflowPolicy.REJECT));
+		for (int i = 1; i <= 4; i++) {
+			assertTrue(rejecting.sendMessage(i));
+		}
+		assertFalse(rejecting.sendMessage(5));
+		assertFalse(rejecting.sendMessageAtFixedRate(rejecting.obtainMessage(6), 1, 1, TimeUnit.HOURS));
+		assertEquals(4, rejecting.getLooper().getQueueDepth());
+		assertEquals(2, rejecting.getLooper().getOverflowCount());
+		assertEquals("[0, 1, 2, 3, 4]", rejecting.finish(5));
+		assertEquals(0, rejecting.getLooper().getQueueDepth());
+
+		GatedHandler dropping = GatedHandler.start(new LooperConfig().setCapacity(2, OverflowPolicy.DROP_OLDEST));
+		for (int i = 1; i <= 4; i++) {
+			assertTrue(dropping.sendMessage(i));
+		}
+		assertEquals("[0, 3, 4]", dropping.finish(3));
+
+		GatedHandler coalescing = GatedHandler.start(new LooperConfig().setCapacity(2, OverflowPolicy.COALESCE));
+		assertTrue(coalescing.sendMessage(1, 10, 0));
+		assertTrue(coalescing.sendMessage(2));
+		assertTrue(coalescing.sendMessage(1, 11, 0));
+		assertFalse(coalescing.sendMessage(3));
+		assertEquals("[0, 1:11, 2]", coalescing.finish(3));
+
+		final GatedHandler blocking = GatedHandler.start(new LooperConfig().setCapacity(1, 200, TimeUnit.MILLISECONDS));
+		assertTrue(blocking.sendMessage(1));
+		long start = System.nanoTime();
+		assertFalse(blocking.sendMessage(2));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(150));
+		new Timer().schedule(new TimerTask() {
+			@Override
+			public void run() {
+				blocking.mGate.countDown();
+			}
+		}, 20);
+		assertTrue(blocking.sendMessage(3));
+		assertEquals("[0, 1, 3]", blocking.finish(3));
+	}
+
+	@Test
+	public void testRingBufferFull() throws InterruptedException {
+		GatedHandler rejecting = GatedHandler.start(new LooperConfig().setRingBuffer(2).setCapacity(100,
+				OverflowPolicy.REJECT));
+		// the slot of message 0 is held while it is handled
+		assertTrue(rejecting.sendMessage(1));
+		assertFalse(rejecting.sendMessage(2));
+		assertEquals(1, rejecting.getLooper().getOverflowCount());
+		assertEquals("[0, 1]", rejecting.finish(2));
+
+		final GatedHandler blocking = GatedHandler.start(new LooperConfig().setRingBuffer(2).setCapacity(100, 200,
+				TimeUnit.MILLISECONDS));
+		assertTrue(blocking.sendMessage(1));
+		long start = System.nanoTime();
+		assertFalse(blocking.sendMessage(2));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(150));
+		new Timer().schedule(new TimerTask() {
+			@Override
+			public void run() {
+				blocking.mGate.countDown();
+			}
+		}, 20);
+		assertTrue(blocking.sendMessage(3));
+		assertEquals("[0, 1, 3]", blocking.finish(3));
+
+		// the looper cannot wait for itself
+		HandlerThread thread = new HandlerThread("testRingBufferFull", new LooperConfig().setRingBuffer(2));
+		thread.start();
+		final List<Boolean> sent = new ArrayList<Boolean>();
+		final CountDownLatch done = new CountDownLatch(1);
+		Handler handler = new Handler(thread.getLooper()) {
+			@Override
+			public void handleMessage(Message msg) {
+				if (msg.what == 1) {
+					sent.add(sendMessage(2));
+					sent.add(sendMessage(2));
+					done.countDown();
+				}
+			}
+		};
+		handler.sendMessage(1);
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals("[true, false]", sent.toString());
+		thread.quit();
+	}
+
+	@Test
+	public void testRingBufferResend() throws InterruptedException {
+		HandlerThread thread = new HandlerThread("testRingBufferResend", new LooperConfig().setRingBuffer(4));
+		thread.start();
+		final List<Integer> resent = Collections.synchronizedList(new ArrayList<Integer>());
+		final CountDownLatch done = new CountDownLatch(20);
+		Handler handler = new Handler(thread.getLooper()) {
+			@Override
+			public void handleMessage(Message msg) {
+				if (msg.what == 1) {
+					// the slot is copied out rather than put with the timers
+					// while the ring reuses it
+					msg.what = 3;
+					sendMessageDelayed(msg, 1, TimeUnit.MILLISECONDS);
+				} else if (msg.what == 3) {
+					resent.add(msg.arg1);
+					done.countDown();
+				}
+			}
+		};
+		for (int i = 0; i < 20; i++) {
+			handler.sendMessage(1, i, 0);
+			for (int j = 0; j < 5; j++) {
+				handler.sendMessage(2);
+			}
+		}
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		Collections.sort(resent);
+		List<Integer> expected = new ArrayList<Integer>();
+		for (int i = 0; i < 20; i++) {
+			expected.add(i);
+		}
+		assertEquals(expected, resent);
+		thread.quit();
+	}
+
+	@Test
+	public void testPriority() throws InterruptedException {
+		GatedHandler handler = GatedHandler.start(new LooperConfig());
+		for (int i = 1; i <= 40; i++) {
+			handler.sendMessage(handler.obtainMessage(1, i, 0));
+		}
+		for (int i = 1; i <= 40; i++) {
+			handler.sendMessageAtFrontOfQueue(handler.obtainMessage(2, i, 0));
+		}
+		String handled = handler.finish(81);
+		StringBuilder expected = new StringBuilder("[0");
+		int normal = 1;
+		for (int urgent = 1; urgent <= 40; urgent++) {
+			expected.append(", 2:").append(urgent);
+			if (urgent % 16 == 0) {
+				// the normal level gets a turn after every burst
+				expected.append(", 1:").append(normal++);
+			}
+		}
+		while (normal <= 40) {
+			expected.append(", 1:").append(normal++);
+		}
+		assertEquals(expected.append("]").toString(), handled);
+	}
+
+	@Test
+	public void testSendMessageCoalesced() throws InterruptedException {
+		GatedHandler handler = GatedHandler.start(new LooperConfig());
+		for (int i = 1; i <= 5; i++) {
+			assertTrue(handler.sendMessageCoalesced(handler.obtainMessage(1, i, 0)));
+		}
+		handler.sendMessage(handler.obtainMessage(2, 1, 0));
+		Object[] players = new Object[100];
+		for (int round = 1; round <= 3; round++) {
+			for (int p = 0; p < players.length; p++) {
+				if (players[p] == null) {
+					players[p] = new Object();
+				}
+				handler.sendMessageCoalesced(handler.obtainMessage(3, round, 0, players[p]), true);
+			}
+		}
+		handler.sendMessageCoalesced(handler.obtainMessage(4, 1, 0));
+		handler.removeMessages(4);
+		assertEquals(102, handler.getLooper().getQueueDepth());
+
+		StringBuilder expected = new StringBuilder("[0, 1:5, 2:1");
+		for (int p = 0; p < players.length; p++) {
+			expected.append(", 3:3");
+		}
+		assertEquals(expected.append("]").toString(), handler.finish(103));
+	}
+
+	@Test
+	public void testLooperWatchdog() throws InterruptedException {
+		HandlerThread thread = new HandlerThread("testLooperWatchdog");
+		thread.start();
+		final CountDownLatch blocked = new CountDownLatch(1);
+		Handler handler = new Handler(thread.getLooper()) {
+			@Override
+			public void handleMessage(Message msg) {
+				if (msg.what == 2) {
+					try {
+						blocked.await();
+					} catch (InterruptedException e) {
+					}
+				}
+			}
+		};
+		final List<LooperWatchdog.Stall> stalls = Collections.synchronizedList(new ArrayList<LooperWatchdog.Stall>());
+		LooperWatchdog watchdog = new LooperWatchdog(20, TimeUnit.MILLISECONDS);
+		watchdog.setListener(new LooperWatchdog.Listener() {
+			@Override
+			public void onStall(LooperWatchdog.Stall stall) {
+				stalls.add(stall);
+			}
+		});
+		watchdog.watch(thread.getLooper());
+		watchdog.start();
+		try {
+			handler.sendMessage(1);
+			handler.sendMessage(2);
+			Thread.sleep(200);
+			blocked.countDown();
+			handler.sendMessage(1);
+			Thread.sleep(50);
+		} finally {
+			watchdog.stop();
+			thread.quit();
+		}
+
+		// reported once, while still blocked
+		assertEquals(1, stalls.size());
+		LooperWatchdog.Stall stall = stalls.get(0);
+		assertSame(handler, stall.getHandler());
+		assertEquals(2, stall.getWhat());
+		assertTrue(stall.getDuration() >= TimeUnit.MILLISECONDS.toNanos(20));
+		assertTrue(stall.toString(), stall.toString().contains("CountDownLatch.await"));
+		assertEquals(1, watchdog.getStallCount(handler.getClass()));
+	}
+
+	@Test
+	public void testUnansweredAsk() throws InterruptedException {
+		HandlerThread thread = new HandlerThread("testUnansweredAsk");
+		thread.start();
+		Handler handler = new Handler(thread.getLooper()) {
+			@Override
+			public void handleMessage(Message msg) {
+				if (msg.what == 2) {
+					final Reply<Object> kept = msg.getReply();
+					post(new Runnable() {
+						@Override
+						public void run() {
+							kept.complete("later");
+						}
+					});
+				} else if (msg.what == 3) {
+					throw new IllegalArgumentException("expected");
+				}
+			}
+		};
+		Reply<Object> unanswered = handler.ask(handler.obtainMessage(1));
+		Reply<Object> kept = handler.ask(handler.obtainMessage(2));
+		Reply<Object> thrown = handler.ask(handler.obtainMessage(3));
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!(unanswered.isDone() && kept.isDone() && thrown.isDone())
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+		}
+		assertTrue(unanswered.getError() instanceof IllegalStateException);
+		assertEquals("later", kept.getResult());
+		assertTrue(thrown.getError() instanceof IllegalArgumentException);
+		thread.quit();
+	}
+
+	@Test
+	public void testCallAndAsk() throws InterruptedException {
+		final LooperGroup group = new LooperGroup("testCallAndAsk", 3);
+		final ShardedHandler workers = group.newHandler(new Handler.Callback() {
+			@Override
+			public boolean handleMessage(Message msg) {
+				if (msg.what == 1) {
+					msg.reply(msg.arg1 * 2);
+				} else {
+					msg.replyError(new IllegalArgumentException("what " + msg.what));
+				}
+				return true;
+			}
+		});
+		HandlerThread caller = new HandlerThread("testCallAndAsk-caller");
+		caller.start();
+		final Thread callerThread = caller;
+		final List<String> results = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch done = new CountDownLatch(3);
+		new Handler(caller.getLooper()) {
+			@Override
+			public void handleMessage(Message msg) {
+			}
+		}.post(new Runnable() {
+			@Override
+			public void run() {
+				List<Reply<Integer>> replies = new ArrayList<Reply<Integer>>();
+				for (int i = 0; i < workers.size(); i++) {
+					replies.add(workers.getHandler(i).<Integer> ask(workers.getHandler(i).obtainMessage(1, i + 1, 0)));
+				}
+				Reply.all(replies).whenDone(new Reply.Callback<List<Integer>>() {
+					@Override
+					public void onReply(List<Integer> result, Throwable error) {
+						results.add("all " + result + " " + (Thread.currentThread() == callerThread));
+						done.countDown();
+					}
+				});
+				workers.getHandler(0).call(new Callable<String>() {
+					@Override
+					public String call() {
+						return Thread.currentThread().getName();
+					}
+				}).whenDone(new Reply.Callback<String>() {
+					@Override
+					public void onReply(String result, Throwable error) {
+						results.add("call " + result + " " + (Thread.currentThread() == callerThread));
+						done.countDown();
+					}
+				});
+				workers.getHandler(1).ask(workers.getHandler(1).obtainMessage(2)).whenDone(new Reply.Callback<Object>() {
+					@Override
+					public void onReply(Object result, Throwable error) {
+						results.add("error " + error.getMessage() + " " + (Thread.currentThread() == callerThread));
+						done.countDown();
+					}
+				});
+			}
+		});
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		caller.quit();
+		group.quit();
+
+		Collections.sort(results);
+		assertEquals("[all [2, 4, 6] true, call testCallAndAsk-0 true, error what 2 true]", results.toString());
+	}
+
+	@Test
+	public void testFixedTick() throws InterruptedException {
+		final List<String> log = Collections.synchronizedList(new ArrayList<String>());
+		HandlerThread thread = new HandlerThread("testFixedTick", new LooperConfig().setTickRate(20,
+				TimeUnit.MILLISECONDS, new Looper.TickListener() {
+					@Override
+					public void onTick(long tick) {
+						log.add("tick");
+					}
+				}));
+		thread.start();
+		final Handler handler = new Handler(thread.getLooper()) {
+			@Override
+			public void handleMessage(Message msg) {
+				log.add(String.valueOf(msg.what));
+				if (msg.what == 3) {
+					// sent during the tick, so handled in the next one
+					sendMessage(4);
+				} else if (msg.what == 5) {
+					try {
+						Thread.sleep(70);
+					} catch (InterruptedException e) {
+					}
+				}
+			}
+		};
+		Looper looper = thread.getLooper();
+		Thread.sleep(30);
+		handler.sendMessage(1);
+		handler.sendMessage(2);
+		handler.sendMessage(3);
+		Thread.sleep(60);
+		long skipped = looper.getSkippedTicks();
+		handler.sendMessage(5);
+		Thread.sleep(150);
+		thread.quit();
+		thread.join();
+
+		assertTrue(log.toString(), log.toString().contains("3, tick, 4, tick"));
+		assertTrue(log.toString(), log.toString().contains("5, tick"));
+		assertTrue(looper.getSkippedTicks() - skipped >= 2);
+		assertTrue(looper.getTickOverruns() >= 1);
+		assertEquals(looper.getTickCount(), looper.getTickDurations().getCount());
+		// on the grid: about one tick per period over the whole run
+		assertTrue(String.valueOf(looper.getTickCount() + looper.getSkippedTicks()),
+				looper.getTickCount() + looper.getSkippedTicks() >= 10);
+	}
+
+	@Test
+	public void testTimerSlack() throws InterruptedException {
+		final long slack = TimeUnit.MILLISECONDS.toNanos(25);
+		HandlerThread thread = new HandlerThread("testTimerSlack", new LooperConfig().setTimerSlack(25,
+				TimeUnit.MILLISECONDS));
+		thread.start();
+		final int count = 100;
+		final CountDownLatch done = new CountDownLatch(count);
+		final AtomicInteger late = new AtomicInteger();
+		Handler handler = new Handler(thread.getLooper()) {
+			@Override
+			public void handleMessage(Message msg) {
+				long lateness = System.nanoTime() - msg.time;
+				if (lateness < 0 || lateness > slack + TimeUnit.MILLISECONDS.toNanos(15)) {
+					late.incrementAndGet();
+				}
+				done.countDown();
+			}
+		};
+		Thread.sleep(10);
+		long parks = thread.getLooper().getParkCount();
+		for (int i = 0; i < count; i++) {
+			// scattered over 100ms
+			handler.sendMessageDelayed(handler.obtainMessage(1), 1000 + i * 997 % 100000, TimeUnit.MICROSECONDS);
+		}
+		assertTrue(done.await(2, TimeUnit.SECONDS));
+		parks = thread.getLooper().getParkCount() - parks;
+		thread.quit();
+
+		assertEquals(0, late.get());
+		// one wake-up per slot of 25ms, give or take the slot boundaries
+		assertTrue(String.valueOf(parks), parks <= 8);
+	}
+
+	@Test
+	public void testWorkStealing() throws InterruptedException {
+		LooperGroup group = new LooperGroup("testWorkStealing", 2);
+		final CountDownLatch gate = new CountDownLatch(1);
+		final StringBuilder order = new StringBuilder();
+		Handler ordered = new Handler(group.getLooper(0)) {
+			@Override
+			public void handleMessage(Message msg) {
+				if (msg.what == 0) {
+					try {
+						gate.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				order.append(msg.what).append(", ");
+			}
+		};
+		final int count = 100;
+		final CountDownLatch done = new CountDownLatch(count);
+		final Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+		Handler stateless = new Handler(group.getLooper(0)) {
+			@Override
+			public void handleMessage(Message msg) {
+				threads.add(Thread.currentThread().getName());
+				done.countDown();
+			}
+		};
+		stateless.setStealable(true);
+		assertTrue(stateless.isStealable());
+
+		// looper 0 is stuck, its peer takes the stealable messages
+		ordered.sendMessage(0);
+		for (int i = 0; i < count; i++) {
+			ordered.sendMessage(i + 1);
+			stateless.sendMessage(i);
+		}
+		assertTrue(done.await(2, TimeUnit.SECONDS));
+		assertEquals(Collections.singleton("testWorkStealing-1"), threads);
+		assertEquals(count, group.getLooper(1).getStealCount());
+		assertEquals(count, group.getLooper(0).getQueueDepth());
+
+		gate.countDown();
+		assertTrue(group.drain(2, TimeUnit.SECONDS));
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i <= count; i++) {
+			expected.append(i).append(", ");
+		}
+		assertEquals(expected.toString(), order.toString());
+		assertEquals(0, group.getLooper(0).getQueueDepth());
+		assertTrue(group.quitSafely(2, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testDeadline() throws InterruptedException {
+		GatedHandler handler = GatedHandler.start(new LooperConfig());
+		Message msg = handler.obtainMessage(1);
+		msg.setDeadline(10, TimeUnit.MILLISECONDS);
+		handler.sendMessage(msg);
+		handler.sendMessage(2);
+		msg = handler.obtainMessage(3);
+		msg.setDeadline(1, TimeUnit.SECONDS);
+		handler.sendMessage(msg);
+		msg = handler.obtainMessage(5);
+		msg.setDeadline(10, TimeUnit.MILLISECONDS);
+		Reply<Object> reply = handler.ask(msg);
+		msg = handler.obtainMessage(4);
+		msg.setDeadline(10, TimeUnit.MILLISECONDS);
+		handler.sendMessageDelayed(msg, 5, TimeUnit.MILLISECONDS);
+		Thread.sleep(50);
+
+		assertEquals("[0, expired 1, 2, 3, expired 5, expired 4]", handler.finish(6));
+		assertEquals(3, handler.getExpiredCount());
+		assertTrue(reply.getError() instanceof TimeoutException);
+	}
+
+	/**
+	 * Holds its looper in the first message until {@link #finish} so that the
+	 * queue fills up, and records the messages it handles.
+	 */
+	static class GatedHandler extends Handler {
+		private final HandlerThread mThread;
+		final CountDownLatch mGate = new CountDownLatch(1);
+		private final List<String> mHandled = Collections.synchronizedList(new ArrayList<String>());
+
+		private GatedHandler(HandlerThread thread) {
+			super(thread.getLooper());
+			mThread = thread;
+		}
+
+		static GatedHandler start(LooperConfig config) throws InterruptedException {
+			HandlerThread thread = new HandlerThread("GatedHandler", config);
+			thread.start();
+			GatedHandler handler = new GatedHandler(thread);
+			handler.sendMessage(0);
+			while (handler.getLooper().getQueueDepth() != 0) {
+				Thread.sleep(1);
+			}
+			return handler;
+		}
+
+		String finish(int count) throws InterruptedException {
+			mGate.countDown();
+			long deadline = System.currentTimeMillis() + 5000;
+			while (mHandled.size() < count && System.currentTimeMillis() < deadline) {
+				Thread.sleep(1);
+			}
+			Thread.sleep(20);
+			mThread.quit();
+			return mHandled.toString();
+		}
+
+		@Override
+		public void handleMessage(Message msg) {
+			if (msg.what == 0) {
+				try {
+					mGate.await();
+				} catch (InterruptedException e) {
+				}
+			}
+			mHandled.add((msg.arg1 == 0) ? String.valueOf(msg.what) : msg.what + ":" + msg.arg1);
+		}
+
+		@Override
+		public void onExpired(Message msg) {
+			mHandled.add("expired " + msg.what);
+		}
+	}
+
+	static class SleepingHandler extends Handler {
+		private final CountDownLatch mReceived;
+
+		SleepingHandler(Looper looper, CountDownLatch received) {
+			super(looper);
+			mReceived = received;
+		}
+
+		@Override
+		public void handleMessage(Message msg) {
+			try {
+				Thread.sleep(2);
+			} catch (InterruptedException e) {
+			}
+			mReceived.countDown();
+		}
+	}
+
 	class TestHandler extends Handler {
 
 		public TestHandler(Looper looper) {
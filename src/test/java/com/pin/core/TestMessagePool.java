@@ -0,0 +1,110 @@
+package com.pin.core;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import pin.core.Message;
+import pin.core.MessagePool;
+import pin.core.VirtualThreads;
+
+public class TestMessagePool {
+
+	@Test
+	public void testCrossThreadRecycle() throws InterruptedException {
+		final int count = 10000;
+		final List<Message> messages = new ArrayList<Message>(count);
+		for (int i = 0; i < count; i++) {
+			messages.add(Message.obtain());
+		}
+
+		// recycle on another thread, like a looper does
+		Thread recycler = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for (Message msg : messages) {
+					msg.recycle();
+				}
+			}
+		});
+		recycler.start();
+		recycler.join();
+
+		// the recycled messages come back through the overflow tier
+		long misses = MessagePool.getMissCount();
+		for (int i = 0; i < count / 2; i++) {
+			Message.obtain();
+		}
+		assertEquals(misses, MessagePool.getMissCount());
+	}
+
+	@Test
+	public void testShortLivedThreadHits() throws InterruptedException {
+		fillOverflowTier();
+		final int batch = MessagePool.getLocalCapacity() / 2;
+		long hits = MessagePool.getHitCount();
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				// served from two batches, far below the flush threshold
+				for (int i = 0; i < batch + 1; i++) {
+					Message.obtain();
+				}
+			}
+		});
+		thread.start();
+		thread.join();
+		// the hits of the first batch are published with the second one
+		assertTrue(MessagePool.getHitCount() - hits >= batch);
+	}
+
+	@Test
+	public void testVirtualThreadSkipsLocalPool() throws InterruptedException {
+		Assume.assumeTrue(VirtualThreads.isSupported());
+		fillOverflowTier();
+		int size = MessagePool.getGlobalSize();
+		assertTrue(size > 0);
+		Thread thread = VirtualThreads.newThread("testVirtualThreadSkipsLocalPool", new Runnable() {
+			@Override
+			public void run() {
+				Message.obtain().recycle();
+			}
+		});
+		thread.start();
+		thread.join();
+		// a dead virtual thread keeps no batch
+		assertEquals(size, MessagePool.getGlobalSize());
+	}
+
+	private static void fillOverflowTier() throws InterruptedException {
+		final List<Message> messages = new ArrayList<Message>();
+		for (int i = 0; i < 1000; i++) {
+			messages.add(Message.obtain());
+		}
+		Thread recycler = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for (Message msg : messages) {
+					msg.recycle();
+				}
+			}
+		});
+		recycler.start();
+		recycler.join();
+	}
+
+	@Test
+	public void testRecycleClearsMessage() {
+		Message msg = Message.obtain(null, 1, 2, 3, "obj");
+		msg.recycle();
+		Message reused = Message.obtain();
+		assertSame(msg, reused);
+		assertEquals(0, reused.what);
+		assertEquals(0, reused.arg1);
+		assertNull(reused.obj);
+	}
+}
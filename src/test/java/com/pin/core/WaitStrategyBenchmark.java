@@ -0,0 +1,72 @@
+package com.pin.core;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import pin.core.Handler;
+import pin.core.HandlerThread;
+import pin.core.LatencyHistogram;
+import pin.core.LooperConfig;
+import pin.core.Message;
+import pin.core.WaitStrategy;
+
+/**
+ * Measures the latency from {@link Handler#sendMessage(Message)} to the start
+ * of {@link Handler#handleMessage(Message)} for every {@link WaitStrategy}.
+ * The sender pauses between messages so that the looper goes idle each time,
+ * which is the case the strategies differ on. The spinning strategies need a
+ * core of their own; on a machine without spare cores they starve the sender
+ * and come out far behind {@link WaitStrategy#PARK}.
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.mainClass=com.pin.core.WaitStrategyBenchmark -Dexec.classpathScope=test
+ * </pre>
+ */
+public class WaitStrategyBenchmark {
+	private static final int WARMUP = 20000;
+	private static final int MESSAGES = 100000;
+	private static final long PAUSE_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+	public static void main(String[] args) throws InterruptedException {
+		for (WaitStrategy strategy : WaitStrategy.values()) {
+			System.out.println(strategy + " " + run(strategy));
+		}
+	}
+
+	private static String run(WaitStrategy strategy) throws InterruptedException {
+		HandlerThread thread = new HandlerThread("bench-" + strategy, new LooperConfig().setWaitStrategy(strategy));
+		thread.start();
+		final LatencyHistogram latency = new LatencyHistogram();
+		final CountDownLatch done = new CountDownLatch(WARMUP + MESSAGES);
+		Handler handler = new Handler(thread.getLooper()) {
+			@Override
+			public void handleMessage(Message msg) {
+				long sent = ((long) msg.arg1 << 32) | (msg.arg2 & 0xffffffffL);
+				if (msg.what == 1) {
+					latency.record(System.nanoTime() - sent);
+				}
+				done.countDown();
+			}
+		};
+		for (int i = 0; i < WARMUP + MESSAGES; i++) {
+			long now = System.nanoTime();
+			handler.sendMessage(handler.obtainMessage(i < WARMUP ? 0 : 1, (int) (now >>> 32), (int) now));
+			pause();
+		}
+		done.await();
+		thread.quit();
+		thread.join();
+		return latency.snapshot().toString();
+	}
+
+	/**
+	 * Waits without parking, so the sender's own wake-up does not add to the
+	 * measurement.
+	 */
+	private static void pause() {
+		long end = System.nanoTime() + PAUSE_NANOS;
+		while (System.nanoTime() - end < 0) {
+			// spin
+		}
+	}
+}